@@ -0,0 +1,115 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import org.openjdk.jmh.annotations.*;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enrichment of a hit list against a synthetic species of realistic size, from a single edition up to the full
+ * analysis over every edition followed by stability.
+ * <p>
+ * P-values are memoized. The cold single edition run starts from an empty memo each time, as for the first request on
+ * an edition; everything else shares the application-wide memo, which is warm after the first invocation as for
+ * repeated requests.
+ *
+ * @author mjacobson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class EnrichmentBenchmark {
+
+    @Param({ "20000" })
+    public int genes;
+
+    @Param({ "45000" })
+    public int terms;
+
+    @Param({ "150" })
+    public int editions;
+
+    @Param({ "300" })
+    public int hitListSize;
+
+    @Param({ "BONFERRONI", "BH" })
+    public MultipleTestCorrection correction;
+
+    private SyntheticFixture fixture;
+
+    // Most recent edition, for the single edition benchmark
+    private CompletePopulation<GeneOntologyTerm, Gene> sample;
+    private Population<GeneOntologyTerm> population;
+
+    private EnrichmentAnalysis analysis;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        fixture = new SyntheticFixture( genes, terms, editions, hitListSize, 12345 );
+        HyperGeometricUtilities.ensureLogFactorials( genes );
+
+        List<Edition> eds = fixture.getEditions();
+        Edition ed = eds.get( eds.size() - 1 );
+        sample = CompletePopulation.denseCompletePopulation( fixture.getSample().get( ed ) );
+        population = Population.cachedGOPopulation( fixture.getCache(), ed );
+
+        analysis = newAnalysis();
+    }
+
+    @Benchmark
+    public Enrichment<GeneOntologyTerm, Gene> runAnalysisCold() {
+        return runAnalysis( new HyperGeometricCache( 1 << 16 ) );
+    }
+
+    @Benchmark
+    public Enrichment<GeneOntologyTerm, Gene> runAnalysisWarm() {
+        return runAnalysis( HyperGeometricCache.shared() );
+    }
+
+    @Benchmark
+    public EnrichmentAnalysis enrichmentAnalysis() {
+        return newAnalysis();
+    }
+
+    @Benchmark
+    public StabilityAnalysis stabilityAnalysis() {
+        return new StabilityAnalysis( analysis );
+    }
+
+    private Enrichment<GeneOntologyTerm, Gene> runAnalysis( HyperGeometricCache logProbCache ) {
+        Enrichment<GeneOntologyTerm, Gene> enrichment = new Enrichment<>( correction, 0.05, 5, 200 );
+        enrichment.runAnalysis( sample, population, logProbCache );
+        return enrichment;
+    }
+
+    private EnrichmentAnalysis newAnalysis() {
+        return new EnrichmentAnalysis( fixture.getSample(), 5, 200, correction, 0.05, fixture.getCache(),
+                SyntheticFixture.SPECIES );
+    }
+
+}
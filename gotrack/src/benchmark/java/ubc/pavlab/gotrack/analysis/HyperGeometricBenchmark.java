@@ -0,0 +1,73 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uncached hypergeometric tail probabilities over contingency tables typical of GO enrichment: a genome sized
+ * population, mostly small terms and a hit list of a few hundred genes.
+ *
+ * @author mjacobson
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HyperGeometricBenchmark {
+
+    private static final int TABLES = 1024;
+
+    @Param({ "20000" })
+    public int populationSize;
+
+    @Param({ "300" })
+    public int sampleSize;
+
+    private int[][] tables;
+
+    @Setup
+    public void setup() {
+        HyperGeometricUtilities.ensureLogFactorials( populationSize );
+        Random rnd = new Random( 12345 );
+        tables = new int[TABLES][];
+        for ( int i = 0; i < TABLES; i++ ) {
+            int m = 1 + ( int ) ( populationSize * Math.pow( rnd.nextDouble(), 10 ) );
+            int expected = ( int ) ( ( long ) sampleSize * m / populationSize );
+            int r = Math.min( Math.min( m, sampleSize ), expected + rnd.nextInt( 5 ) );
+            tables[i] = new int[] { r, m, sampleSize, populationSize };
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TABLES)
+    public void upperCumulativeProbability( Blackhole bh ) {
+        for ( int[] t : tables ) {
+            bh.consume( HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( t[0], t[1], t[2], t[3] ) );
+        }
+    }
+
+}
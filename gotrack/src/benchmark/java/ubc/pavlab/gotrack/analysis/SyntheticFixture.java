@@ -0,0 +1,192 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.model.AnnotationCounts;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.GOEdition;
+import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.Species;
+import ubc.pavlab.gotrack.model.dto.EditionDTO;
+import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Deterministic, database free stand-in for the data behind an enrichment: a species with its genes, terms and
+ * editions, inferred annotation counts for every term in every edition and the annotations of a hit list.
+ * <p>
+ * Term sizes follow a heavy tail like GO, where most terms annotate a handful of genes and a few annotate most of the
+ * genome. Genes and counts grow over the editions, and a small fraction of terms is over-represented in the hit list so
+ * that there is something to find.
+ *
+ * @author mjacobson
+ */
+final class SyntheticFixture {
+
+    static final Species SPECIES = new Species( 7, "Human", "", 9606, null );
+
+    // Term sizes are Pareto distributed from this many genes, giving a median around 5 and a mean around 45 genes
+    private static final double MIN_TERM_SIZE = 2;
+    private static final double TERM_SIZE_EXPONENT = 1.2;
+
+    // Fraction of terms over-represented in the hit list, and by how much
+    private static final double ENRICHED_FRACTION = 0.01;
+    private static final int ENRICHMENT_FOLD = 5;
+
+    private final List<Edition> editions;
+    private final FixtureCache cache;
+    private final Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> sample;
+
+    /**
+     * @param geneCount    genes in the most recent edition
+     * @param termCount    terms in every edition
+     * @param editionCount number of editions
+     * @param hitListSize  genes in the hit list
+     * @param seed         seed, equal arguments give equal fixtures
+     */
+    SyntheticFixture( int geneCount, int termCount, int editionCount, int hitListSize, long seed ) {
+        Random rnd = new Random( seed );
+
+        List<GeneOntologyTerm> terms = new ArrayList<>( termCount );
+        for ( int i = 1; i <= termCount; i++ ) {
+            terms.add( new GeneOntologyTerm( String.format( "GO:%07d", i ) ) );
+        }
+
+        List<Gene> genes = new ArrayList<>( geneCount );
+        for ( int i = 1; i <= geneCount; i++ ) {
+            genes.add( new Gene.GeneBuilder( i, "GENE" + i, "", SPECIES, null ).build() );
+        }
+
+        List<Gene> hitList = new ArrayList<>( genes );
+        Collections.shuffle( hitList, rnd );
+        hitList = hitList.subList( 0, hitListSize );
+
+        // Fraction of the genome annotated to each term in the most recent edition
+        double[] termFraction = new double[termCount];
+        boolean[] enriched = new boolean[termCount];
+        for ( int i = 0; i < termCount; i++ ) {
+            termFraction[i] = Math.min( 1,
+                    MIN_TERM_SIZE * Math.pow( 1 - rnd.nextDouble(), -TERM_SIZE_EXPONENT ) / geneCount );
+            enriched[i] = rnd.nextDouble() < ENRICHED_FRACTION;
+        }
+
+        editions = new ArrayList<>( editionCount );
+        cache = new FixtureCache();
+        sample = new HashMap<>();
+        LocalDate date = LocalDate.of( 2005, 1, 1 );
+        for ( int e = 1; e <= editionCount; e++ ) {
+            GOEdition goEdition = new GOEdition( new GOEditionDTO( e, Date.valueOf( date ) ) );
+            Edition ed = new Edition( new EditionDTO( SPECIES.getId(), e, Date.valueOf( date ), e, e ), SPECIES,
+                    goEdition );
+            editions.add( ed );
+            date = date.plusMonths( 1 );
+
+            double growth = 0.7 + 0.3 * e / editionCount;
+            int editionGenes = ( int ) ( geneCount * growth );
+
+            AnnotationCounts counts = new AnnotationCounts( termCount );
+            Map<GeneOntologyTerm, Set<Gene>> editionSample = new HashMap<>();
+            for ( int i = 0; i < termCount; i++ ) {
+                GeneOntologyTerm t = terms.get( i );
+                double fraction = termFraction[i] * growth;
+                int populationAnnotated = Math.max( 1, ( int ) Math.round( editionGenes * fraction ) );
+
+                double expected = hitListSize * fraction * ( enriched[i] ? ENRICHMENT_FOLD : 1 );
+                int sampleAnnotated = Math.min( Math.min( hitListSize, populationAnnotated ), poisson( expected, rnd ) );
+                if ( sampleAnnotated > 0 ) {
+                    editionSample.put( t, pick( hitList, sampleAnnotated, rnd ) );
+                }
+
+                counts.put( t, null, populationAnnotated );
+            }
+            counts.trim();
+
+            cache.counts.put( ed, counts );
+            cache.geneCounts.put( ed, editionGenes );
+            sample.put( ed, editionSample );
+        }
+    }
+
+    List<Edition> getEditions() {
+        return editions;
+    }
+
+    /**
+     * @return cache answering population counts and sizes for the fixture's editions
+     */
+    Cache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return hit list annotations by edition, as handed to {@link EnrichmentAnalysis}
+     */
+    Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> getSample() {
+        return sample;
+    }
+
+    private static int poisson( double mean, Random rnd ) {
+        if ( mean > 30 ) {
+            return Math.max( 0, ( int ) Math.round( mean + rnd.nextGaussian() * Math.sqrt( mean ) ) );
+        }
+        double limit = Math.exp( -mean );
+        double p = rnd.nextDouble();
+        int n = 0;
+        while ( p > limit ) {
+            p *= rnd.nextDouble();
+            n++;
+        }
+        return n;
+    }
+
+    private static Set<Gene> pick( List<Gene> genes, int n, Random rnd ) {
+        Set<Gene> picked = new HashSet<>( n * 2 );
+        while ( picked.size() < n ) {
+            picked.add( genes.get( rnd.nextInt( genes.size() ) ) );
+        }
+        return picked;
+    }
+
+    /**
+     * Cache reduced to what populations read, without the mocking overhead that would otherwise be measured.
+     */
+    private static final class FixtureCache extends Cache {
+
+        private final Map<Edition, AnnotationCounts> counts = new HashMap<>();
+        private final Map<Edition, Integer> geneCounts = new HashMap<>();
+
+        @Override
+        public Integer getInferredAnnotationCount( Edition ed, GeneOntologyTerm t ) {
+            AnnotationCounts c = counts.get( ed );
+            return c == null ? null : c.getInferred( t );
+        }
+
+        @Override
+        public Integer getGeneCount( Edition edition ) {
+            return geneCounts.get( edition );
+        }
+    }
+
+}
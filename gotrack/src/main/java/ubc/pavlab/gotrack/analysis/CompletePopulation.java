@@ -1,10 +1,9 @@
 package ubc.pavlab.gotrack.analysis;
 
 import com.google.common.collect.Maps;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -24,6 +23,10 @@ public abstract class CompletePopulation<T, G> extends Population<T>{
         return new StandardCompletePopulation<>( annotationMap );
     }
 
+    public static <T, G> DenseCompletePopulation<T, G> denseCompletePopulation( Map<T, Set<G>> annotationMap ) {
+        return new DenseCompletePopulation<>( annotationMap );
+    }
+
 }
 
 /**
@@ -60,3 +63,165 @@ class StandardCompletePopulation<T, G> extends CompletePopulation<T, G> {
         return distinctEntities.size();
     }
 }
+
+/**
+ * Implementation of population which maps properties and entities to dense ordinals and stores the entities of each
+ * property as a sorted slice of a single int array. Counts are answered without boxing and without copying the
+ * annotation map or building a set of distinct entities; the sets handed out are read-only views.
+ */
+class DenseCompletePopulation<T, G> extends CompletePopulation<T, G> {
+
+    private static final int MISSING = -1;
+
+    private final List<T> properties;
+    private final TObjectIntHashMap<T> propertyOrdinals;
+
+    private final List<G> entities;
+    private final TObjectIntHashMap<G> entityOrdinals;
+
+    // Entity ordinals of property p are members[offsets[p]] up to members[offsets[p + 1]], in ascending order
+    private final int[] offsets;
+    private final int[] members;
+
+    DenseCompletePopulation( Map<T, Set<G>> annotationMap ) {
+        int propertyCount = annotationMap.size();
+        properties = new ArrayList<>( propertyCount );
+        propertyOrdinals = new TObjectIntHashMap<>( propertyCount, 0.5f, MISSING );
+        offsets = new int[propertyCount + 1];
+
+        int memberCount = 0;
+        for ( Set<G> entitySet : annotationMap.values() ) {
+            memberCount += entitySet.size();
+        }
+        members = new int[memberCount];
+
+        entities = new ArrayList<>();
+        entityOrdinals = new TObjectIntHashMap<>( Math.min( memberCount, 1 << 16 ), 0.5f, MISSING );
+
+        int next = 0;
+        for ( Map.Entry<T, Set<G>> entry : annotationMap.entrySet() ) {
+            int p = properties.size();
+            properties.add( entry.getKey() );
+            propertyOrdinals.put( entry.getKey(), p );
+
+            int from = next;
+            for ( G g : entry.getValue() ) {
+                int e = entityOrdinals.get( g );
+                if ( e == MISSING ) {
+                    e = entities.size();
+                    entities.add( g );
+                    entityOrdinals.put( g, e );
+                }
+                members[next++] = e;
+            }
+            Arrays.sort( members, from, next );
+            offsets[p + 1] = next;
+        }
+        ( ( ArrayList<G> ) entities ).trimToSize();
+    }
+
+    public Set<G> getEntities( T t ) {
+        int p = propertyOrdinals.get( t );
+        if ( p == MISSING ) {
+            return null;
+        }
+        return new MemberSet( offsets[p], offsets[p + 1] );
+    }
+
+    public Set<T> getProperties() {
+        return new OrdinalSet<>( properties, propertyOrdinals );
+    }
+
+    public Set<G> getEntities() {
+        return new OrdinalSet<>( entities, entityOrdinals );
+    }
+
+    @Override
+    public Integer countProperty( T t ) {
+        int count = count( t );
+        return count == MISSING ? null : count;
+    }
+
+    @Override
+    public int count( T t ) {
+        int p = propertyOrdinals.get( t );
+        return p == MISSING ? MISSING : offsets[p + 1] - offsets[p];
+    }
+
+    @Override
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Read-only view of all elements with an ordinal.
+     */
+    private static final class OrdinalSet<E> extends AbstractSet<E> {
+        private final List<E> elements;
+        private final TObjectIntHashMap<E> ordinals;
+
+        private OrdinalSet( List<E> elements, TObjectIntHashMap<E> ordinals ) {
+            this.elements = Collections.unmodifiableList( elements );
+            this.ordinals = ordinals;
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            return elements.iterator();
+        }
+
+        @Override
+        public int size() {
+            return elements.size();
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            return ordinals.containsKey( o );
+        }
+    }
+
+    /**
+     * Read-only view of the entities of a single property.
+     */
+    private final class MemberSet extends AbstractSet<G> {
+        private final int from;
+        private final int to;
+
+        private MemberSet( int from, int to ) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Iterator<G> iterator() {
+            return new Iterator<G>() {
+                private int i = from;
+
+                @Override
+                public boolean hasNext() {
+                    return i < to;
+                }
+
+                @Override
+                public G next() {
+                    if ( i >= to ) {
+                        throw new NoSuchElementException();
+                    }
+                    return entities.get( members[i++] );
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public boolean contains( Object o ) {
+            int e = entityOrdinals.get( o );
+            return e != MISSING && Arrays.binarySearch( members, from, to, e ) >= 0;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+import ubc.pavlab.gotrack.utilities.Jaccard;
+
+import java.util.PrimitiveIterator;
+import java.util.stream.IntStream;
+
+/**
+ * Set of elements identified by int ids (GO ids, gene ids) over the dense ordinals of a {@link Dictionary}, along with
+ * how many of its elements are missing from the dictionary. Depending on its density a set is held either as a bitset
+ * or as sorted ordinals, and sets encoded against the same dictionary are intersected with the kernels of
+ * {@link Jaccard}; intersections are exact as long as one of the two sets lies within the dictionary.
+ *
+ * @author mjacobson
+ */
+final class EncodedSet {
+
+    // Exactly one of these, whichever is smaller
+    private final long[] bits;
+    private final int[] ordinals;
+
+    private final int size;
+
+    private EncodedSet( long[] bits, int universe, int outside ) {
+        int inside = Jaccard.cardinality( bits );
+        if ( Jaccard.preferBitSet( inside, universe ) ) {
+            this.bits = bits;
+            this.ordinals = null;
+        } else {
+            this.bits = null;
+            this.ordinals = new int[inside];
+            int i = 0;
+            for ( int w = 0; w < bits.length; w++ ) {
+                for ( long word = bits[w]; word != 0; word &= word - 1 ) {
+                    ordinals[i++] = ( w << 6 ) + Long.numberOfTrailingZeros( word );
+                }
+            }
+        }
+        this.size = inside + outside;
+    }
+
+    /**
+     * @return number of elements, including those missing from the dictionary
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return number of elements of the dictionary in both sets
+     */
+    int intersectSize( EncodedSet other ) {
+        if ( bits != null ) {
+            return other.bits != null ? Jaccard.intersectSize( bits, other.bits ) :
+                    Jaccard.intersectSize( other.ordinals, bits );
+        }
+        return other.bits != null ? Jaccard.intersectSize( ordinals, other.bits ) :
+                Jaccard.intersectSize( ordinals, other.ordinals );
+    }
+
+    /**
+     * Same as {@link Jaccard#similarity(java.util.Set, java.util.Set)}
+     */
+    static Double jaccard( EncodedSet a, EncodedSet b ) {
+        if ( a.size == 0 && b.size == 0 ) return 1.0d;
+        if ( a.size == 0 || b.size == 0 ) return 0.0d;
+
+        int intersect = a.intersectSize( b );
+        return ( ( double ) intersect ) / ( a.size + b.size - intersect );
+    }
+
+    /**
+     * Same as {@link ubc.pavlab.gotrack.utilities.Tversky#similarityPrototypeWeighted(java.util.Set, java.util.Set)}
+     */
+    static Double tverskyPrototypeWeighted( EncodedSet prototype, EncodedSet variant ) {
+        if ( prototype.size == 0 && variant.size == 0 ) return 1.0d;
+        if ( prototype.size == 0 || variant.size == 0 ) return 0.0d;
+
+        int intersect = prototype.intersectSize( variant );
+        // |prototype \ variant| = |prototype| - intersect
+        return ( ( double ) intersect ) / prototype.size;
+    }
+
+    /**
+     * Numbers ids by dense ordinals in the order they are added. Safe to read from multiple threads once no more ids
+     * are added.
+     */
+    static final class Dictionary {
+
+        private static final int MISSING = -1;
+
+        private final TIntIntHashMap ordinals;
+
+        Dictionary( int expectedSize ) {
+            ordinals = new TIntIntHashMap( Math.max( 16, expectedSize * 2 ), 0.5f, MISSING, MISSING );
+        }
+
+        void add( int id ) {
+            if ( !ordinals.containsKey( id ) ) {
+                ordinals.put( id, ordinals.size() );
+            }
+        }
+
+        void addAll( IntStream ids ) {
+            ids.forEach( this::add );
+        }
+
+        int size() {
+            return ordinals.size();
+        }
+
+        /**
+         * @param ids ids of the elements, repeats are ignored
+         */
+        EncodedSet encode( IntStream ids ) {
+            long[] bits = new long[( ordinals.size() + 63 ) >>> 6];
+            TIntHashSet outside = null;
+            for ( PrimitiveIterator.OfInt it = ids.iterator(); it.hasNext(); ) {
+                int id = it.nextInt();
+                int ordinal = ordinals.get( id );
+                if ( ordinal != MISSING ) {
+                    bits[ordinal >>> 6] |= 1L << ordinal;
+                } else {
+                    if ( outside == null ) {
+                        outside = new TIntHashSet();
+                    }
+                    outside.add( id );
+                }
+            }
+            return new EncodedSet( bits, ordinals.size(), outside == null ? 0 : outside.size() );
+        }
+    }
+
+}
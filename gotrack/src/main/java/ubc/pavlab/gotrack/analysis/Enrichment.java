@@ -20,13 +20,10 @@
 package ubc.pavlab.gotrack.analysis;
 
 import com.google.common.base.Predicates;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
 import lombok.Getter;
 import org.apache.log4j.Logger;
-import ubc.pavlab.gotrack.model.hashkey.HyperUCFKey;
 
 import java.util.*;
 import java.util.Map.Entry;
@@ -67,6 +64,9 @@ public class Enrichment<T, G> {
     private int calculations;
     private int countTestedTerms;
 
+    // Results carried over from a previous run, whose contingency table was unchanged
+    private int reusedResults;
+
     public Enrichment() {
 
     }
@@ -80,7 +80,7 @@ public class Enrichment<T, G> {
     }
 
     protected boolean runAnalysis( CompletePopulation<T, G> sample, Population<T> population,
-            TObjectDoubleHashMap<HyperUCFKey> logProbCache ) {
+            HyperGeometricCache logProbCache ) {
         return runAnalysis( sample, population, sample.getProperties(), logProbCache );
     }
 
@@ -89,19 +89,22 @@ public class Enrichment<T, G> {
     }
 
     public boolean runAnalysis( CompletePopulation<T, G> sample, Population<T> population, Set<T> tests ) {
-        return runAnalysis( sample, population, tests, null );
+        return runAnalysis( sample, population, tests, HyperGeometricCache.shared() );
     }
 
     protected boolean runAnalysis( CompletePopulation<T, G> sample, Population<T> population, Set<T> tests,
-            TObjectDoubleHashMap<HyperUCFKey> logProbCache ) {
-
-        if ( logProbCache == null ) {
-            // Log Probability Memoization Cache
-            logProbCache = new TObjectDoubleHashMap<>();
-        }
+            HyperGeometricCache logProbCache ) {
+        return runAnalysis( sample, population, tests, logProbCache, null );
+    }
 
-        // Used to test for no entry in memoization cache
-        double noEntryValue = logProbCache.getNoEntryValue();
+    /**
+     * Run the analysis on a sample edited since a previous run. Terms whose contingency table is unchanged keep their
+     * previous p-value rather than being tested again; ranks and corrections are always computed anew.
+     *
+     * @param previous earlier run on the same population, null to test every term
+     */
+    protected boolean runAnalysis( CompletePopulation<T, G> sample, Population<T> population, Set<T> tests,
+            HyperGeometricCache logProbCache, Enrichment<T, G> previous ) {
 
         this.samplePopulation = sample;
         this.results = Maps.newHashMap();
@@ -109,36 +112,39 @@ public class Enrichment<T, G> {
         this.significantTerms = Sets.newHashSet();
         this.rejectedTerms = Sets.newHashSet();
         this.calculations = 0;
+        this.reusedResults = 0;
+
+        Map<T, EnrichmentResult> previousResults = previous == null || previous.results == null ?
+                Collections.emptyMap() : previous.results;
 
         int sampleSize = sample.size();
         int populationSize = population.size();
 
         Map<T, EnrichmentResult> results = Maps.newHashMap();
-        Set<T> tested = Sets.newHashSet();
         Set<T> rejected = Sets.newHashSet(); // Rejected Terms
         Set<T> sig = Sets.newHashSet(); // Significant Terms
 
         for ( T t : tests ) {
-            Integer sampleAnnotated = sample.countProperty( t );
-            Integer populationAnnotated = population.countProperty( t );
+            int sampleAnnotated = sample.count( t );
+            int populationAnnotated = population.count( t );
 
             // check population requirements
-            if ( sampleAnnotated == null || populationAnnotated == null || populationAnnotated < populationMin
+            if ( sampleAnnotated < 0 || populationAnnotated < 0 || populationAnnotated < populationMin
                     || populationAnnotated > populationMax ) {
                 rejected.add( t );
             } else {
-                tested.add( t );
-
-                // Combined map key
-                HyperUCFKey key = new HyperUCFKey( sampleAnnotated, populationAnnotated, sampleSize,
-                        populationSize );
-
-                // Get log probability from memoization cache or compute it
-                double p = logProbCache.get( key );
-                if ( p == noEntryValue ) {
-                    p = fishersExactTest( sampleAnnotated, populationAnnotated, sampleSize, populationSize );
-                    // Cache result
-                    logProbCache.put( key, p );
+                EnrichmentResult previousResult = previousResults.get( t );
+                double p;
+                if ( previousResult != null && previousResult.getSampleAnnotated() == sampleAnnotated
+                        && previousResult.getPopulationAnnotated() == populationAnnotated
+                        && previousResult.getSampleSize() == sampleSize
+                        && previousResult.getPopulationSize() == populationSize ) {
+                    p = previousResult.getPvalue();
+                    reusedResults++;
+                } else {
+                    // Get log probability from memoization cache or compute it
+                    p = logProbCache.upperCumulativeProbabilityLog( sampleAnnotated, populationAnnotated,
+                            sampleSize, populationSize );
                 }
 
                 results.put( t,
@@ -151,7 +157,7 @@ public class Enrichment<T, G> {
         }
 
         // Number of statistical tests done in analysis
-        int testSetSize = tested.size();
+        int testSetSize = results.size();
 
         if ( testSetSize == 0 ) {
             // TODO
@@ -159,88 +165,101 @@ public class Enrichment<T, G> {
             return false;
         }
 
-        // Holds terms sorted by p-value
-        LinkedHashSet<T> termsSortedByRank = results.entrySet().stream()
-                .sorted( Comparator.comparingDouble( c -> c.getValue().getPvalue() ) )
-                .map( Entry::getKey )
-                .collect( Collectors.toCollection( LinkedHashSet::new ) );
+        // Tested terms as parallel arrays indexed by ordinal, plus the ordinals sorted by p-value
+        List<T> terms = new ArrayList<>( testSetSize );
+        EnrichmentResult[] ers = new EnrichmentResult[testSetSize];
+        double[] pvalues = new double[testSetSize];
+        for ( Entry<T, EnrichmentResult> entry : results.entrySet() ) {
+            ers[terms.size()] = entry.getValue();
+            pvalues[terms.size()] = entry.getValue().getPvalue();
+            terms.add( entry.getKey() );
+        }
+        int[] sorted = sortByPvalue( pvalues );
 
         // We keep track of the cutoff p-value, set to some useful initial value
         double cutoff;
-        if ( multipleTestCorrectionMethod.equals( MultipleTestCorrection.BH ) ) {
-            // set lowest pvalue as cutoff for now;
-            cutoff = results.get( termsSortedByRank.iterator().next() ).getPvalue();
-        } else {
+        if ( multipleTestCorrectionMethod.equals( MultipleTestCorrection.BONFERRONI ) ) {
             cutoff = threshold;
+        } else {
+            // set lowest pvalue as cutoff for now;
+            cutoff = pvalues[sorted[0]];
         }
 
-        // Containers
-        int rank = -1;
-        int k = 0;
-        EnrichmentResult previousResult = null;
-        Set<T> maybePile = Sets.newHashSet();
-        Map<Integer, List<T>> standardRanks = Maps.newHashMap();
+        // BY: harmonic correction for arbitrary dependence between tests
+        double dependence = 1;
+        if ( multipleTestCorrectionMethod.equals( MultipleTestCorrection.BY ) ) {
+            for ( int i = 2; i <= testSetSize; i++ ) {
+                dependence += 1.0 / i;
+            }
+        }
+
+        // Step-up methods: first position not yet known to be significant
+        int maybeFrom = 0;
+        // Holm: whether every term so far was significant
+        boolean stepping = true;
+        // Start of the current run of tied results, which share a standard rank
+        int tieFrom = 0;
+        // Running maximum of Holm adjusted p-values
+        double adjustedMax = 0;
 
         /*
          * Loops through each term in order of p-value and compute rank, significance based on chosen method
          */
-        for ( T term : termsSortedByRank ) {
-            k++;
-            EnrichmentResult er = results.get( term );
-            if ( multipleTestCorrectionMethod.equals( MultipleTestCorrection.BONFERRONI ) ) {
-                if ( er.getPvalue() * testSetSize <= threshold ) { // Check bonferroni correction against threshold
-                    sig.add( term );
-                }
-
-            } else if ( multipleTestCorrectionMethod.equals( MultipleTestCorrection.BH ) ) {
-                // Single pass method of BH step-up
-                double qTresh = ( k ) * threshold / testSetSize;
-                if ( er.getPvalue() <= qTresh ) {
-                    // add this term and all terms in maybe pile
-                    cutoff = er.getPvalue(); //update cutoff
-                    sig.add( term );
-                    if ( !maybePile.isEmpty() ) {
-                        sig.addAll( maybePile );
-                        maybePile.clear();
+        for ( int k = 0; k < testSetSize; k++ ) {
+            int ordinal = sorted[k];
+            EnrichmentResult er = ers[ordinal];
+            double p = pvalues[ordinal];
+            switch ( multipleTestCorrectionMethod ) {
+                case BONFERRONI:
+                    if ( p * testSetSize <= threshold ) { // Check bonferroni correction against threshold
+                        markSignificant( terms.get( ordinal ), er, sig );
                     }
-                } else {
-                    // add this term to the maybe pile
-                    maybePile.add( term );
-                }
-            } else {
-                throw new RuntimeException( "This should never happen!" );
+                    er.setAdjustedPvalue( Math.min( 1, p * testSetSize ) );
+                    break;
+                case HOLM:
+                    // Step-down, stops at the first term which fails
+                    stepping = stepping && p * ( testSetSize - k ) <= threshold;
+                    if ( stepping ) {
+                        cutoff = p;
+                        markSignificant( terms.get( ordinal ), er, sig );
+                    }
+                    adjustedMax = Math.max( adjustedMax, Math.min( 1, p * ( testSetSize - k ) ) );
+                    er.setAdjustedPvalue( adjustedMax );
+                    break;
+                case BH:
+                case HOCHBERG:
+                case BY:
+                    // Single pass step-up
+                    if ( p <= stepUpThreshold( k, testSetSize, dependence ) ) {
+                        // this term and every term since the last significant one are significant
+                        cutoff = p; //update cutoff
+                        for ( int j = maybeFrom; j <= k; j++ ) {
+                            markSignificant( terms.get( sorted[j] ), ers[sorted[j]], sig );
+                        }
+                        maybeFrom = k + 1;
+                    }
+                    break;
+                default:
+                    throw new RuntimeException( "This should never happen!" );
             }
 
             // ranks
 
-            if ( !er.equals( previousResult ) ) {
-                rank = k - 1;
-            }
-            List<T> termSet = standardRanks.get( rank );
-            if ( termSet == null ) {
-                termSet = Lists.newArrayList();
-                standardRanks.put( rank, termSet );
+            if ( k > 0 && !er.equals( ers[sorted[k - 1]] ) ) {
+                setFractionalRanks( ers, sorted, tieFrom, k );
+                tieFrom = k;
             }
-            termSet.add( term );
-            er.setRank( rank );
-            previousResult = er;
+            er.setRank( tieFrom );
         }
-
-        // Set significance
-        for ( T t : sig ) {
-            EnrichmentResult er = results.get( t );
-            er.setSignificant( true );
-        }
-
-        // Compute fractional Ranks
-
-        for ( Entry<Integer, List<T>> rankEntry : standardRanks.entrySet() ) {
-            int standardRank = rankEntry.getKey();
-            List<T> termSet = rankEntry.getValue();
-            double newRank = standardRank + ( termSet.size() - 1 ) / 2.0;
-            for ( T term : termSet ) {
-                EnrichmentResult er = results.get( term );
-                er.setFractionalRank( newRank );
+        setFractionalRanks( ers, sorted, tieFrom, testSetSize );
+
+        if ( multipleTestCorrectionMethod.isStepUp() ) {
+            // Step-up adjusted p-values are the running minimum from the largest p-value down
+            double adjustedMin = 1;
+            for ( int k = testSetSize - 1; k >= 0; k-- ) {
+                double p = pvalues[sorted[k]] * stepUpFactor( k, testSetSize, dependence );
+                adjustedMin = Math.min( adjustedMin, Math.min( 1, p ) );
+                ers[sorted[k]].setAdjustedPvalue( adjustedMin );
             }
         }
 
@@ -254,10 +273,86 @@ public class Enrichment<T, G> {
         return true;
     }
 
-    private double fishersExactTest( int sampleAnnotated, int populationAnnotated, int sampleSize,
-            int populationSize ) {
-        return HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( sampleAnnotated, populationAnnotated,
-                sampleSize, populationSize );
+    /**
+     * @param k          position in ascending order of p-value, from 0
+     * @param n          number of tests
+     * @param dependence BY harmonic correction
+     * @return largest p-value at position k allowing the step-up procedure to stop there
+     */
+    private double stepUpThreshold( int k, int n, double dependence ) {
+        switch ( multipleTestCorrectionMethod ) {
+            case BH:
+                return ( k + 1 ) * threshold / n;
+            case HOCHBERG:
+                return threshold / ( n - k );
+            case BY:
+                return ( k + 1 ) * threshold / ( n * dependence );
+            default:
+                throw new RuntimeException( "This should never happen!" );
+        }
+    }
+
+    /**
+     * @return multiplier turning the p-value at position k into its unadjusted step-up value
+     */
+    private double stepUpFactor( int k, int n, double dependence ) {
+        switch ( multipleTestCorrectionMethod ) {
+            case BH:
+                return ( double ) n / ( k + 1 );
+            case HOCHBERG:
+                return n - k;
+            case BY:
+                return n * dependence / ( k + 1 );
+            default:
+                throw new RuntimeException( "This should never happen!" );
+        }
+    }
+
+    private static <T> void markSignificant( T term, EnrichmentResult er, Set<T> sig ) {
+        er.setSignificant( true );
+        sig.add( term );
+    }
+
+    /**
+     * Tied results from sorted positions from (inclusive) to to (exclusive) share the mean of their positions.
+     */
+    private static void setFractionalRanks( EnrichmentResult[] ers, int[] sorted, int from, int to ) {
+        double fractionalRank = from + ( to - from - 1 ) / 2.0;
+        for ( int j = from; j < to; j++ ) {
+            ers[sorted[j]].setFractionalRank( fractionalRank );
+        }
+    }
+
+    /**
+     * @return ordinals of pvalues in ascending order of p-value, ties keep their order
+     */
+    static int[] sortByPvalue( double[] pvalues ) {
+        int n = pvalues.length;
+        int[] order = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            order[i] = i;
+        }
+        // Bottom-up merge sort, stable and without boxing
+        int[] buffer = new int[n];
+        for ( int width = 1; width < n; width *= 2 ) {
+            for ( int lo = 0; lo < n - width; lo += 2 * width ) {
+                int mid = lo + width;
+                int hi = Math.min( lo + 2 * width, n );
+                if ( Double.compare( pvalues[order[mid - 1]], pvalues[order[mid]] ) <= 0 ) {
+                    continue; // already in order
+                }
+                System.arraycopy( order, lo, buffer, lo, hi - lo );
+                int i = lo, j = mid;
+                for ( int out = lo; out < hi; out++ ) {
+                    if ( j >= hi || ( i < mid && Double.compare( pvalues[buffer[i]], pvalues[buffer[j]] ) <= 0 ) ) {
+                        order[out] = buffer[i++];
+                    } else {
+                        order[out] = buffer[j++];
+                    }
+                }
+            }
+        }
+        return order;
     }
 
     void setThreshold( double t ) {
@@ -19,19 +19,16 @@
 
 package ubc.pavlab.gotrack.analysis;
 
-import com.google.common.base.Predicates;
-import com.google.common.collect.Maps;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.apache.log4j.Logger;
 import ubc.pavlab.gotrack.beans.Cache;
 import ubc.pavlab.gotrack.model.Edition;
 import ubc.pavlab.gotrack.model.Gene;
 import ubc.pavlab.gotrack.model.Species;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
-import ubc.pavlab.gotrack.model.hashkey.HyperUCFKey;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Runs enrichment analysis over all editions given geneset data and term population data.
@@ -52,6 +49,7 @@ public class EnrichmentAnalysis {
     private final int totalTerms;
     private final int totalResults;
 
+    private final MultipleTestCorrection multipleTestCorrection;
     private final double threshold;
 
     // Holds those unmodifiable results which met the population limits and had population data present in cache
@@ -60,11 +58,11 @@ public class EnrichmentAnalysis {
     // Holds those unmodifiable terms which are significant in any edition (used to create useful graphing views)
     private Set<GeneOntologyTerm> termsSignificantInAnyEdition = new HashSet<>();
 
-    // ********************
-    // Log Probability Memoization Cache
-    private TObjectDoubleHashMap<HyperUCFKey> logProbCache = new TObjectDoubleHashMap<>();
+    // Results of the terms significant in any edition, term x edition
+    private final EnrichmentResultMatrix resultMatrix;
 
-    // ********************
+    // Views of resultMatrix by edition
+    private final Map<Edition, Map<GeneOntologyTerm, EnrichmentResult>> results;
 
     /**
      * Runs analysis with given options and data. All relevant information is set here as there are no plans to make an
@@ -82,65 +80,178 @@ public class EnrichmentAnalysis {
     public EnrichmentAnalysis( Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> geneGOMap, int min, int max,
                                MultipleTestCorrection test, double threshold,
                                Cache cache, Species currentSpecies ) {
+        this( enrichEditions( geneGOMap, Collections.emptyMap(), min, max, test, threshold, cache ), min, max, test,
+                threshold, currentSpecies );
+    }
 
-        /*
-         * This makes use of memoization to reduce computations of log probabilities. This is necessary from the sheer
-         * magnitude that we will be computing.
-         */
+    /**
+     * Runs analysis on an edited hit list, starting from the analysis of the hit list before the edit. The term to gene
+     * sets of each edition are updated by the genes added and removed; editions untouched by the edit keep their
+     * previous results while the others re-test only those terms whose contingency table changed before ranking and
+     * correcting again. Options are those of the previous analysis.
+     *
+     * @param previous  analysis of the hit list before the edit
+     * @param addedData Map containing raw data from db for the genes added to the hit list
+     * @param removed   genes removed from the hit list
+     * @param cache     Cache object containing part of the contingency table
+     */
+    public EnrichmentAnalysis( EnrichmentAnalysis previous, Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> addedData,
+                               Set<Gene> removed, Cache cache ) {
+        this( editEditions( previous, addedData, removed, cache ), previous.minAnnotatedPopulation,
+                previous.maxAnnotatedPopulation, previous.multipleTestCorrection, previous.threshold,
+                previous.currentSpecies );
+    }
+
+    private EnrichmentAnalysis( Map<Edition, Enrichment<GeneOntologyTerm, Gene>> results, int min, int max,
+                                MultipleTestCorrection test, double threshold, Species currentSpecies ) {
 
         // Store options
         this.minAnnotatedPopulation = min;
         this.maxAnnotatedPopulation = max == 0 ? Integer.MAX_VALUE : max;
+        this.multipleTestCorrection = test;
+        this.threshold = threshold;
         this.currentSpecies = currentSpecies;
 
         // Store some stats
-        this.totalEditions = geneGOMap.keySet().size();
+        this.totalEditions = results.size();
         Set<Gene> totalGenes = new HashSet<>();
         Set<GeneOntologyTerm> totalTerms = new HashSet<>();
         int totalResults = 0;
 
-        //  Containers for results
-
-        Map<Edition, Enrichment<GeneOntologyTerm, Gene>> results = Maps.newHashMap();
         Set<GeneOntologyTerm> termsSignificantInAnyEdition = new HashSet<>();
 
-        for ( Entry<Edition, Map<GeneOntologyTerm, Set<Gene>>> editionEntry : geneGOMap.entrySet() ) {
-            Edition ed = editionEntry.getKey();
-            Map<GeneOntologyTerm, Set<Gene>> data = editionEntry.getValue();
-
-            StandardCompletePopulation<GeneOntologyTerm, Gene> sample = CompletePopulation.standardCompletePopulation( data );
-
-            Population<GeneOntologyTerm> population = Population.cachedGOPopulation( cache, ed );
-
-            Enrichment<GeneOntologyTerm, Gene> enrichment = new Enrichment<>( test, threshold, minAnnotatedPopulation,
-                    maxAnnotatedPopulation );
-
-            enrichment.runAnalysis( sample, population, logProbCache );
-
-            results.put( ed, enrichment );
+        for ( Enrichment<GeneOntologyTerm, Gene> enrichment : results.values() ) {
 
             termsSignificantInAnyEdition.addAll( enrichment.getSignificantTerms() );
 
             // Stats
 
-            totalGenes.addAll( sample.getEntities() );
-            totalTerms.addAll( data.keySet() );
+            totalGenes.addAll( enrichment.getSamplePopulation().getEntities() );
+            totalTerms.addAll( enrichment.getSamplePopulation().getProperties() );
             totalResults += enrichment.getCalculations();
 
         }
 
         // Store results
 
-        this.rawResults = Collections.unmodifiableMap( results );
+        this.rawResults = Collections.unmodifiableMap( new HashMap<>( results ) );
 
         this.termsSignificantInAnyEdition = Collections.unmodifiableSet( termsSignificantInAnyEdition );
 
+        this.resultMatrix = new EnrichmentResultMatrix( this.rawResults, termsSignificantInAnyEdition );
+        Map<Edition, Map<GeneOntologyTerm, EnrichmentResult>> resultViews = new LinkedHashMap<>();
+        for ( int e = 0; e < resultMatrix.getEditions().size(); e++ ) {
+            resultViews.put( resultMatrix.getEditions().get( e ), resultMatrix.getResults( e ) );
+        }
+        this.results = Collections.unmodifiableMap( resultViews );
+
         this.totalGenes = totalGenes.size();
         this.totalTerms = totalTerms.size();
         this.totalResults = totalResults;
 
-        this.threshold = threshold;
+    }
+
+    /**
+     * Runs enrichment on each edition of the data in parallel.
+     *
+     * @param previous earlier results by edition whose unchanged p-values may be reused
+     * @return results by edition
+     */
+    private static Map<Edition, Enrichment<GeneOntologyTerm, Gene>> enrichEditions(
+            Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> geneGOMap,
+            Map<Edition, Enrichment<GeneOntologyTerm, Gene>> previous, int min, int max,
+            MultipleTestCorrection test, double threshold, Cache cache ) {
+
+        /*
+         * This makes use of memoization to reduce computations of log probabilities. This is necessary from the sheer
+         * magnitude that we will be computing.
+         */
+
+        Map<Edition, Enrichment<GeneOntologyTerm, Gene>> results = new ConcurrentHashMap<>();
+
+        // Editions are independent and are run in parallel, sharing the application-wide log probability memo
+        HyperGeometricCache logProbCache = HyperGeometricCache.shared();
+        geneGOMap.entrySet().parallelStream().forEach( editionEntry -> {
+            Edition ed = editionEntry.getKey();
+
+            CompletePopulation<GeneOntologyTerm, Gene> sample = CompletePopulation
+                    .denseCompletePopulation( editionEntry.getValue() );
+
+            Population<GeneOntologyTerm> population = Population.cachedGOPopulation( cache, ed );
+
+            Enrichment<GeneOntologyTerm, Gene> enrichment = new Enrichment<>( test, threshold, min, max );
 
+            enrichment.runAnalysis( sample, population, sample.getProperties(), logProbCache, previous.get( ed ) );
+
+            results.put( ed, enrichment );
+        } );
+
+        return results;
+    }
+
+    /**
+     * Applies an edit of the hit list to the results of a previous analysis, re-running only those editions in which
+     * the edit changed the sample.
+     *
+     * @return results by edition
+     */
+    private static Map<Edition, Enrichment<GeneOntologyTerm, Gene>> editEditions( EnrichmentAnalysis previous,
+            Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> addedData, Set<Gene> removed, Cache cache ) {
+
+        Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> editedData = new HashMap<>();
+        Set<Edition> emptied = new HashSet<>();
+
+        Set<Edition> editions = new HashSet<>( previous.rawResults.keySet() );
+        editions.addAll( addedData.keySet() );
+        for ( Edition ed : editions ) {
+            Enrichment<GeneOntologyTerm, Gene> enrichment = previous.rawResults.get( ed );
+            Map<GeneOntologyTerm, Set<Gene>> added = addedData.getOrDefault( ed, Collections.emptyMap() );
+
+            CompletePopulation<GeneOntologyTerm, Gene> sample = enrichment == null ? null :
+                    enrichment.getSamplePopulation();
+            boolean removes = sample != null && removed.stream().anyMatch( sample.getEntities()::contains );
+            if ( added.isEmpty() && !removes ) {
+                // Edit does not touch this edition
+                continue;
+            }
+
+            Map<GeneOntologyTerm, Set<Gene>> data = new HashMap<>();
+            if ( sample != null ) {
+                for ( GeneOntologyTerm t : sample.getProperties() ) {
+                    Set<Gene> genes = new HashSet<>( sample.getEntities( t ) );
+                    if ( removes ) {
+                        genes.removeAll( removed );
+                    }
+                    if ( !genes.isEmpty() ) {
+                        data.put( t, genes );
+                    }
+                }
+            }
+            for ( Entry<GeneOntologyTerm, Set<Gene>> termEntry : added.entrySet() ) {
+                data.computeIfAbsent( termEntry.getKey(), t -> new HashSet<>() ).addAll( termEntry.getValue() );
+            }
+
+            if ( data.isEmpty() ) {
+                emptied.add( ed );
+            } else {
+                editedData.put( ed, data );
+            }
+        }
+
+        log.info( "Edit re-runs " + editedData.size() + " of " + editions.size() + " editions" );
+
+        Map<Edition, Enrichment<GeneOntologyTerm, Gene>> results = new HashMap<>( previous.rawResults );
+        results.keySet().removeAll( emptied );
+        results.putAll( enrichEditions( editedData, previous.rawResults, previous.minAnnotatedPopulation,
+                previous.maxAnnotatedPopulation, previous.multipleTestCorrection, previous.threshold, cache ) );
+        return results;
+    }
+
+    /**
+     * @return method of multiple test correction
+     */
+    public MultipleTestCorrection getMultipleTestCorrection() {
+        return multipleTestCorrection;
     }
 
     /**
@@ -188,21 +299,7 @@ public class EnrichmentAnalysis {
      * @return unmodifiable map containing results significant in any edition
      */
     public Map<Edition, Map<GeneOntologyTerm, EnrichmentResult>> getResults() {
-        Map<Edition, Map<GeneOntologyTerm, EnrichmentResult>> significantInAnyEdition = new HashMap<>();
-
-        for ( Entry<Edition, Enrichment<GeneOntologyTerm, Gene>> editionEntry : rawResults.entrySet() ) {
-            Edition ed = editionEntry.getKey();
-
-            Enrichment<GeneOntologyTerm, Gene> enrichment = editionEntry.getValue();
-
-            significantInAnyEdition.put( ed, Collections
-                    .unmodifiableMap( Maps.filterKeys( enrichment.getResults(),
-                            Predicates.in( termsSignificantInAnyEdition ) ) ) );
-
-        }
-
-        return Collections.unmodifiableMap( significantInAnyEdition );
-
+        return results;
     }
 
     /**
@@ -213,14 +310,14 @@ public class EnrichmentAnalysis {
         if ( ed == null ) {
             return null;
         }
-        Enrichment<GeneOntologyTerm, Gene> e = rawResults.get( ed );
-        if ( e == null ) {
-            return null;
-        }
-
-        return Collections.unmodifiableMap(
-                Maps.filterKeys( e.getResults(), Predicates.in( termsSignificantInAnyEdition ) ) );
+        return results.get( ed );
+    }
 
+    /**
+     * @return results of the terms significant in any edition as a term x edition matrix
+     */
+    public EnrichmentResultMatrix getResultMatrix() {
+        return resultMatrix;
     }
 
     /**
@@ -369,13 +466,16 @@ public class EnrichmentAnalysis {
     }
 
     /**
-     * Keep in mind this is not the most efficient method if iterating all terms
+     * Keep in mind this is not the most efficient method if iterating all terms not significant in any edition
      * 
      * @param t
      * @return Results for this term in each edition it showed up.
      */
     public Map<Edition, EnrichmentResult> getResults( GeneOntologyTerm t ) {
         if ( t == null ) return null;
+        if ( termsSignificantInAnyEdition.contains( t ) ) {
+            return resultMatrix.getResults( t );
+        }
         Map<Edition, EnrichmentResult> data = new HashMap<>();
         for ( Entry<Edition, Enrichment<GeneOntologyTerm, Gene>> editionEntry : rawResults.entrySet() ) {
             Edition ed = editionEntry.getKey();
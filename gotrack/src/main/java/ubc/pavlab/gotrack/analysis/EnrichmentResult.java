@@ -36,6 +36,8 @@ import lombok.ToString;
 public class EnrichmentResult {
 
     private double pvalue;
+    // P-value adjusted for multiple tests by the analysis' correction method
+    private double adjustedPvalue;
     private final int sampleAnnotated;
     private final int populationAnnotated;
     private final int sampleSize;
@@ -0,0 +1,344 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.util.*;
+
+/**
+ * Enrichment results of a set of terms in every edition of an analysis, stored as term x edition columns and built
+ * once. Terms and editions are addressed by ordinal, editions in order, and cells where a term was not tested are
+ * empty.
+ * <p>
+ * Cells are edition-major so that the results of an edition are a contiguous slice. Results of an edition or of a term
+ * are served as read-only map views over the columns.
+ *
+ * @author mjacobson
+ */
+public final class EnrichmentResultMatrix {
+
+    private static final int MISSING = -1;
+
+    private final List<GeneOntologyTerm> terms;
+    private final TObjectIntHashMap<GeneOntologyTerm> termOrdinals;
+    private final List<Edition> editions;
+    private final TObjectIntHashMap<Edition> editionOrdinals;
+
+    // Cell of term t in edition e is e * terms + t
+    private final EnrichmentResult[] results;
+    private final double[] pvalues;
+    private final int[] ranks;
+    private final int[] sampleAnnotated;
+    private final int[] populationAnnotated;
+    private final long[] significant;
+
+    // Tested terms by edition and editions tested by term
+    private final int[] editionSizes;
+    private final int[] termSizes;
+
+    private final double[] cutoffs;
+
+    /**
+     * @param rawResults results by edition
+     * @param terms      terms to keep, those not tested in any edition are empty rows
+     */
+    EnrichmentResultMatrix( Map<Edition, Enrichment<GeneOntologyTerm, Gene>> rawResults,
+                            Collection<GeneOntologyTerm> terms ) {
+        this.terms = Collections.unmodifiableList( new ArrayList<>( terms ) );
+        this.termOrdinals = new TObjectIntHashMap<>( Math.max( 1, terms.size() ), 0.5f, MISSING );
+        for ( int t = 0; t < this.terms.size(); t++ ) {
+            termOrdinals.put( this.terms.get( t ), t );
+        }
+
+        List<Edition> editions = new ArrayList<>( rawResults.keySet() );
+        Collections.sort( editions );
+        this.editions = Collections.unmodifiableList( editions );
+        this.editionOrdinals = new TObjectIntHashMap<>( Math.max( 1, editions.size() ), 0.5f, MISSING );
+        for ( int e = 0; e < editions.size(); e++ ) {
+            editionOrdinals.put( editions.get( e ), e );
+        }
+
+        int termCount = this.terms.size();
+        int cells = termCount * editions.size();
+        results = new EnrichmentResult[cells];
+        pvalues = new double[cells];
+        ranks = new int[cells];
+        sampleAnnotated = new int[cells];
+        populationAnnotated = new int[cells];
+        significant = new long[( cells + 63 ) >>> 6];
+        editionSizes = new int[editions.size()];
+        termSizes = new int[termCount];
+        cutoffs = new double[editions.size()];
+
+        for ( int e = 0; e < editions.size(); e++ ) {
+            Enrichment<GeneOntologyTerm, Gene> enrichment = rawResults.get( editions.get( e ) );
+            cutoffs[e] = enrichment.getCutoff();
+            for ( int t = 0; t < termCount; t++ ) {
+                EnrichmentResult er = enrichment.getResult( this.terms.get( t ) );
+                if ( er == null ) {
+                    continue;
+                }
+                int cell = e * termCount + t;
+                results[cell] = er;
+                pvalues[cell] = er.getPvalue();
+                ranks[cell] = er.getRank();
+                sampleAnnotated[cell] = er.getSampleAnnotated();
+                populationAnnotated[cell] = er.getPopulationAnnotated();
+                if ( er.isSignificant() ) {
+                    significant[cell >>> 6] |= 1L << cell;
+                }
+                editionSizes[e]++;
+                termSizes[t]++;
+            }
+        }
+    }
+
+    /**
+     * @return terms by ordinal
+     */
+    public List<GeneOntologyTerm> getTerms() {
+        return terms;
+    }
+
+    /**
+     * @return editions by ordinal, in order
+     */
+    public List<Edition> getEditions() {
+        return editions;
+    }
+
+    /**
+     * @return ordinal of term, -1 if not in the matrix
+     */
+    public int termOrdinal( GeneOntologyTerm t ) {
+        return t == null ? MISSING : termOrdinals.get( t );
+    }
+
+    /**
+     * @return ordinal of edition, -1 if not in the matrix
+     */
+    public int editionOrdinal( Edition ed ) {
+        return ed == null ? MISSING : editionOrdinals.get( ed );
+    }
+
+    /**
+     * @return true if the term was tested in the edition
+     */
+    public boolean isTested( int t, int e ) {
+        return results[cell( t, e )] != null;
+    }
+
+    /**
+     * @return result of term in edition, null if not tested
+     */
+    public EnrichmentResult getResult( int t, int e ) {
+        return results[cell( t, e )];
+    }
+
+    /**
+     * @return p-value of term in edition, undefined if not tested
+     */
+    public double getPvalue( int t, int e ) {
+        return pvalues[cell( t, e )];
+    }
+
+    /**
+     * @return rank of term in edition, undefined if not tested
+     */
+    public int getRank( int t, int e ) {
+        return ranks[cell( t, e )];
+    }
+
+    /**
+     * @return genes of the sample annotated to term in edition, undefined if not tested
+     */
+    public int getSampleAnnotated( int t, int e ) {
+        return sampleAnnotated[cell( t, e )];
+    }
+
+    /**
+     * @return genes of the population annotated to term in edition, undefined if not tested
+     */
+    public int getPopulationAnnotated( int t, int e ) {
+        return populationAnnotated[cell( t, e )];
+    }
+
+    /**
+     * @return true if term was significant in edition
+     */
+    public boolean isSignificant( int t, int e ) {
+        int cell = cell( t, e );
+        return ( significant[cell >>> 6] & ( 1L << cell ) ) != 0;
+    }
+
+    /**
+     * @return p-value cutoff for significance in edition
+     */
+    public double getCutoff( int e ) {
+        return cutoffs[e];
+    }
+
+    /**
+     * @return view of the results of the terms tested in an edition
+     */
+    public Map<GeneOntologyTerm, EnrichmentResult> getResults( int e ) {
+        return new EditionView( e );
+    }
+
+    /**
+     * @return view of the results of a term in the editions it was tested
+     */
+    public Map<Edition, EnrichmentResult> getResults( GeneOntologyTerm t ) {
+        int ordinal = termOrdinal( t );
+        return ordinal == MISSING ? Collections.emptyMap() : new TermView( ordinal );
+    }
+
+    private int cell( int t, int e ) {
+        return e * terms.size() + t;
+    }
+
+    /**
+     * Column of an edition, keyed by term.
+     */
+    private final class EditionView extends AbstractMap<GeneOntologyTerm, EnrichmentResult> {
+        private final int e;
+
+        private EditionView( int e ) {
+            this.e = e;
+        }
+
+        @Override
+        public EnrichmentResult get( Object key ) {
+            int t = key instanceof GeneOntologyTerm ? termOrdinals.get( key ) : MISSING;
+            return t == MISSING ? null : results[cell( t, e )];
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            return get( key ) != null;
+        }
+
+        @Override
+        public int size() {
+            return editionSizes[e];
+        }
+
+        @Override
+        public Set<Entry<GeneOntologyTerm, EnrichmentResult>> entrySet() {
+            return new AbstractSet<Entry<GeneOntologyTerm, EnrichmentResult>>() {
+                @Override
+                public Iterator<Entry<GeneOntologyTerm, EnrichmentResult>> iterator() {
+                    return new SliceIterator<>( terms, e * terms.size(), 1 );
+                }
+
+                @Override
+                public int size() {
+                    return editionSizes[e];
+                }
+            };
+        }
+    }
+
+    /**
+     * Row of a term, keyed by edition in order.
+     */
+    private final class TermView extends AbstractMap<Edition, EnrichmentResult> {
+        private final int t;
+
+        private TermView( int t ) {
+            this.t = t;
+        }
+
+        @Override
+        public EnrichmentResult get( Object key ) {
+            int e = key instanceof Edition ? editionOrdinals.get( key ) : MISSING;
+            return e == MISSING ? null : results[cell( t, e )];
+        }
+
+        @Override
+        public boolean containsKey( Object key ) {
+            return get( key ) != null;
+        }
+
+        @Override
+        public int size() {
+            return termSizes[t];
+        }
+
+        @Override
+        public Set<Entry<Edition, EnrichmentResult>> entrySet() {
+            return new AbstractSet<Entry<Edition, EnrichmentResult>>() {
+                @Override
+                public Iterator<Entry<Edition, EnrichmentResult>> iterator() {
+                    return new SliceIterator<>( editions, t, terms.size() );
+                }
+
+                @Override
+                public int size() {
+                    return termSizes[t];
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates the non-empty cells of a row or column, pairing them with their keys.
+     */
+    private final class SliceIterator<K> implements Iterator<Map.Entry<K, EnrichmentResult>> {
+        private final List<K> keys;
+        private final int start;
+        private final int stride;
+        private int next = -1;
+
+        private SliceIterator( List<K> keys, int start, int stride ) {
+            this.keys = keys;
+            this.start = start;
+            this.stride = stride;
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while ( next < keys.size() && results[start + next * stride] == null );
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < keys.size();
+        }
+
+        @Override
+        public Map.Entry<K, EnrichmentResult> next() {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, EnrichmentResult> entry = new AbstractMap.SimpleImmutableEntry<>( keys.get( next ),
+                    results[start + next * stride] );
+            advance();
+            return entry;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe memo of hypergeometric upper cumulative log probabilities keyed by their contingency table
+ * (r, m, k, t).
+ * <p>
+ * The same tables come up again and again: across editions of one analysis, across stability bounds and across users
+ * looking at similar gene lists, so a single instance is shared by the whole application. Keys are packed into two
+ * longs and stored in primitive arrays laid out as a set-associative cache; when a set is full its least recently used
+ * entry is evicted.
+ *
+ * @author mjacobson
+ */
+public final class HyperGeometricCache {
+
+    private static final int DEFAULT_CAPACITY = 1 << 19;
+
+    private static final int WAYS = 4;
+    private static final int STRIPES = 64;
+
+    private static final HyperGeometricCache SHARED = new HyperGeometricCache( DEFAULT_CAPACITY );
+
+    private final int setMask;
+
+    // Entry i belongs to set i / WAYS; a stamp of 0 marks an empty entry
+    private final long[] hi;
+    private final long[] lo;
+    private final double[] values;
+    private final long[] stamps;
+
+    private final Object[] locks = new Object[STRIPES];
+    private final long[] clocks = new long[STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity maximum number of entries, rounded up to a power of two
+     */
+    HyperGeometricCache( int capacity ) {
+        int sets = Integer.highestOneBit( Math.max( STRIPES, ( capacity - 1 ) / WAYS ) * 2 - 1 );
+        this.setMask = sets - 1;
+        this.hi = new long[sets * WAYS];
+        this.lo = new long[sets * WAYS];
+        this.values = new double[sets * WAYS];
+        this.stamps = new long[sets * WAYS];
+        for ( int i = 0; i < STRIPES; i++ ) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return application-wide instance
+     */
+    public static HyperGeometricCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Memoized {@link HyperGeometricUtilities#upperCumulativeProbabilityLogMethod(int, int, int, int)}.
+     *
+     * @param r sample successes
+     * @param m population successes
+     * @param k sample size
+     * @param t population size
+     * @return log probability of r or more successes
+     */
+    public double upperCumulativeProbabilityLog( int r, int m, int k, int t ) {
+        long h = ( ( long ) r << 32 ) | ( m & 0xFFFFFFFFL );
+        long l = ( ( long ) k << 32 ) | ( t & 0xFFFFFFFFL );
+
+        int set = hash( h, l ) & setMask;
+        int stripe = set & ( STRIPES - 1 );
+        int base = set * WAYS;
+
+        synchronized ( locks[stripe] ) {
+            for ( int i = base; i < base + WAYS; i++ ) {
+                if ( stamps[i] != 0 && hi[i] == h && lo[i] == l ) {
+                    stamps[i] = ++clocks[stripe];
+                    hits.increment();
+                    return values[i];
+                }
+            }
+        }
+
+        // Computed outside of the lock, at worst two threads compute the same deterministic value
+        misses.increment();
+        double p = HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( r, m, k, t );
+
+        synchronized ( locks[stripe] ) {
+            int victim = base;
+            for ( int i = base; i < base + WAYS; i++ ) {
+                if ( stamps[i] != 0 && hi[i] == h && lo[i] == l ) {
+                    // Lost the race, keep the existing entry
+                    return p;
+                }
+                if ( stamps[i] < stamps[victim] ) {
+                    victim = i;
+                }
+            }
+            if ( stamps[victim] != 0 ) {
+                evictions.increment();
+            }
+            hi[victim] = h;
+            lo[victim] = l;
+            values[victim] = p;
+            stamps[victim] = ++clocks[stripe];
+        }
+        return p;
+    }
+
+    /**
+     * @return maximum number of entries
+     */
+    public int capacity() {
+        return stamps.length;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return fraction of lookups answered from the cache, 0 if there were none
+     */
+    public double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : ( double ) h / total;
+    }
+
+    /**
+     * @return human readable summary of usage
+     */
+    public String report() {
+        return String.format( "P-value cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, capacity %d",
+                getHits(), getMisses(), 100 * getHitRate(), getEvictions(), capacity() );
+    }
+
+    private static int hash( long h, long l ) {
+        long x = h * 0x9E3779B97F4A7C15L + l;
+        x ^= x >>> 32;
+        x *= 0xC2B2AE3D27D4EB4FL;
+        return ( int ) ( x ^ ( x >>> 29 ) );
+    }
+
+}
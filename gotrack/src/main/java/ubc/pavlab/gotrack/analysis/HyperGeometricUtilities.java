@@ -22,6 +22,8 @@ package ubc.pavlab.gotrack.analysis;
 import org.apache.commons.math3.util.CombinatoricsUtils;
 import org.apache.commons.math3.util.FastMath;
 
+import java.util.Arrays;
+
 /**
  * TODO Document Me
  * 
@@ -29,6 +31,23 @@ import org.apache.commons.math3.util.FastMath;
  * @version $Id$
  */
 public class HyperGeometricUtilities {
+
+    // Relative contribution below which the remaining tail is dropped
+    private static final double TAIL_EPSILON = 0x1.0p-54;
+
+    // Partial tail sums above this are folded into the log scale to avoid overflow
+    private static final double RESCALE = 1e250;
+
+    // Below this CombinatoricsUtils computes a binomial coefficient directly and takes a single log, above it takes a
+    // log per term which is what the table avoids
+    private static final int DIRECT_BINOMIAL_LIMIT = 1030;
+
+    // Below this h(r) is subnormal
+    private static final double LOG_MIN_NORMAL = Math.log( Double.MIN_NORMAL );
+
+    // log(n!) for n up to the largest population size seen, grown by ensureLogFactorials
+    private static volatile double[] logFactorials = new double[0];
+
     /**
      * Optimized method of calculating probability tails, relies on the fact that given a probability from a
      * hypergeometric distribution with given M,N,k at r : h_M,N,k(r) we can then find h_M,N,k(r+1) without calculating
@@ -68,16 +87,42 @@ public class HyperGeometricUtilities {
      * @return upper cumulative probability at r given m,k,t
      */
     public static double upperCumulativeProbabilityLogMethod( int r, int m, int k, int t ) {
-        double h_r_log = sampleProbabilityLog( r, m, k, t );
-        double pvalue = Math.exp( h_r_log );
+        double logScale = sampleProbabilityLog( r, m, k, t );
         int min = Math.min( k, m );
-        for ( int r_ = r + 1; r_ <= min; r_++ ) {
-            h_r_log = h_r_log
-                    + FastMath.log( ( k - r_ + 1 ) * ( m - r_ + 1 ) / ( ( double ) ( r_ ) * ( t - m - k + r_ ) ) );
 
-            pvalue += FastMath.exp( h_r_log );
+        if ( logScale < LOG_MIN_NORMAL ) {
+            // Subnormal probabilities only have a few bits left, accumulate them term by term
+            double h_r_log = logScale;
+            double pvalue = Math.exp( h_r_log );
+            for ( int r_ = r + 1; r_ <= min; r_++ ) {
+                h_r_log += FastMath.log(
+                        ( k - r_ + 1 ) * ( double ) ( m - r_ + 1 ) / ( ( double ) r_ * ( t - m - k + r_ ) ) );
+                pvalue += FastMath.exp( h_r_log );
+            }
+            return pvalue;
         }
-        return pvalue;
+
+        // Sum the tail relative to h(r) so that each step is a multiplication; the ratios only decrease with r so once
+        // below one the rest of the tail is bounded by a geometric series and can be cut off when negligible
+        double term = 1;
+        double sum = 1;
+        boolean rescaled = false;
+        for ( int r_ = r + 1; r_ <= min; r_++ ) {
+            double ratio = ( k - r_ + 1 ) * ( double ) ( m - r_ + 1 ) / ( ( double ) r_ * ( t - m - k + r_ ) );
+            term *= ratio;
+            sum += term;
+            if ( ratio < 1 && term * ratio < sum * ( 1 - ratio ) * TAIL_EPSILON ) {
+                break;
+            }
+            if ( sum > RESCALE ) {
+                // h(r) was tiny compared to the mode, move the magnitude into the log scale
+                logScale += FastMath.log( sum );
+                term /= sum;
+                sum = 1;
+                rescaled = true;
+            }
+        }
+        return rescaled ? FastMath.exp( logScale + FastMath.log( sum ) ) : Math.exp( logScale ) * sum;
     }
 
     @Deprecated
@@ -89,7 +134,67 @@ public class HyperGeometricUtilities {
     }
 
     public static double sampleProbabilityLog( int r, int m, int k, int t ) {
-        return ( CombinatoricsUtils.binomialCoefficientLog( m, r ) - CombinatoricsUtils.binomialCoefficientLog( t, k ) )
-                + CombinatoricsUtils.binomialCoefficientLog( t - m, k - r );
+        if ( t < DIRECT_BINOMIAL_LIMIT || r < 0 || r > m || k - r < 0 || k - r > t - m ) {
+            // Small coefficients are cheap and precise in CombinatoricsUtils, it also reports invalid arguments
+            return ( CombinatoricsUtils.binomialCoefficientLog( m, r )
+                    - CombinatoricsUtils.binomialCoefficientLog( t, k ) )
+                    + CombinatoricsUtils.binomialCoefficientLog( t - m, k - r );
+        }
+        double[] table = logFactorials;
+        if ( 2 * t >= table.length ) {
+            ensureLogFactorials( t );
+            table = logFactorials;
+        }
+
+        // The factorials are large and mostly cancel out, so sum them with compensation to keep the full precision
+        double sum = 0;
+        double c = 0;
+        int[] plus = { m, k, t - k, t - m };
+        int[] minus = { r, m - r, t, k - r, t - m - k + r };
+        for ( int i = 0; i < 2; i++ ) {
+            for ( int n : plus ) {
+                double x = table[2 * n + i];
+                double s = sum + x;
+                c += Math.abs( sum ) >= Math.abs( x ) ? ( sum - s ) + x : ( x - s ) + sum;
+                sum = s;
+            }
+            for ( int n : minus ) {
+                double x = -table[2 * n + i];
+                double s = sum + x;
+                c += Math.abs( sum ) >= Math.abs( x ) ? ( sum - s ) + x : ( x - s ) + sum;
+                sum = s;
+            }
+        }
+        return sum + c;
+    }
+
+    /**
+     * Make sure log factorials up to n are tabulated, used by {@link #sampleProbabilityLog(int, int, int, int)} in
+     * place of computing three binomial coefficients. Population sizes are bounded by the largest gene count of any
+     * species so n should be that count, the table is otherwise grown on demand.
+     *
+     * @param n largest population size expected
+     */
+    public static synchronized void ensureLogFactorials( int n ) {
+        double[] table = logFactorials;
+        if ( 2 * n < table.length ) {
+            return;
+        }
+        // log(i!) as an unevaluated sum of two doubles, high part at 2i and low part at 2i + 1
+        double[] grown = Arrays.copyOf( table, 2 * ( n + 1 ) );
+        int from = table.length / 2;
+        if ( from == 0 ) {
+            from = 1;
+        }
+        for ( int i = from; i <= n; i++ ) {
+            double hi = grown[2 * i - 2];
+            double x = Math.log( i );
+            double s = hi + x;
+            double err = Math.abs( hi ) >= Math.abs( x ) ? ( hi - s ) + x : ( x - s ) + hi;
+            double lo = grown[2 * i - 1] + err;
+            grown[2 * i] = s + lo;
+            grown[2 * i + 1] = lo - ( grown[2 * i] - s );
+        }
+        logFactorials = grown;
     }
-}
+}
\ No newline at end of file
@@ -21,20 +21,34 @@ package ubc.pavlab.gotrack.analysis;
 
 /**
  * Method of dealing with the multiple testing problem. Either Bonferroni
- * (https://en.wikipedia.org/wiki/Bonferroni_correction) or BH Step-up
- * (https://en.wikipedia.org/wiki/False_discovery_rate#Benjamini.E2.80.93Hochberg_procedure)
+ * (https://en.wikipedia.org/wiki/Bonferroni_correction), Holm step-down
+ * (https://en.wikipedia.org/wiki/Holm%E2%80%93Bonferroni_method), Hochberg step-up
+ * (https://en.wikipedia.org/wiki/Holm%E2%80%93Bonferroni_method#Hochberg's_step-up_procedure), BH step-up
+ * (https://en.wikipedia.org/wiki/False_discovery_rate#Benjamini.E2.80.93Hochberg_procedure) or BY step-up
+ * (https://en.wikipedia.org/wiki/False_discovery_rate#Benjamini.E2.80.93Yekutieli_procedure)
  * 
  * @author mjacobson
  * @version $Id$
  */
 public enum MultipleTestCorrection {
 
-    BONFERRONI("Bonferroni"), BH("BH step-up");
+    BONFERRONI("Bonferroni", false), HOLM("Holm step-down", false), HOCHBERG("Hochberg step-up", true),
+    BH("BH step-up", true), BY("BY step-up", true);
 
     private String label;
+    private boolean stepUp;
 
-    private MultipleTestCorrection( String label ) {
+    private MultipleTestCorrection( String label, boolean stepUp ) {
         this.label = label;
+        this.stepUp = stepUp;
+    }
+
+    /**
+     * @return true if significance is decided from the largest p-value down, adjusted p-values then being running
+     * minimums
+     */
+    public boolean isStepUp() {
+        return stepUp;
     }
 
     public String getLabel() {
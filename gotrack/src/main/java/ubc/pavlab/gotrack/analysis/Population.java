@@ -39,6 +39,16 @@ import java.util.Set;
 public abstract class Population<T> {
     public abstract Integer countProperty( T t );
 
+    /**
+     * Primitive form of {@link #countProperty(Object)}, overridden by implementations which keep their counts unboxed.
+     *
+     * @return number of entities with property t, -1 if unknown
+     */
+    public int count( T t ) {
+        Integer count = countProperty( t );
+        return count == null ? -1 : count;
+    }
+
     public abstract int size();
 
     public static <T, G> StandardPopulation<T, G> standardPopulation( Map<T, Set<G>> annotationMap ) {
@@ -19,20 +19,17 @@
 
 package ubc.pavlab.gotrack.analysis;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import org.apache.log4j.Logger;
 import ubc.pavlab.gotrack.beans.Cache;
 import ubc.pavlab.gotrack.model.Edition;
 import ubc.pavlab.gotrack.model.Gene;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
-import ubc.pavlab.gotrack.utilities.Jaccard;
-import ubc.pavlab.gotrack.utilities.Tversky;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Calculates scores which attempt to explore the impact that annotation similarity has on the performance of
@@ -78,41 +75,50 @@ public class SimilarityAnalysis {
         this.similarityMethod = sm;
         this.topN = topN;
 
-        // Container
-        Map<Edition, SimilarityScore> similarityScores = new LinkedHashMap<>();
-
-        SimilarityEnrichmentWrapper reference = new SimilarityEnrichmentWrapper( analysis.getRawResults( referenceEdition ), referenceEdition, topN );
+        // Reference is summarized once and shared by every comparison
+        ReferenceSets reference = new ReferenceSets(
+                new SimilarityEnrichmentWrapper( analysis.getRawResults( referenceEdition ), referenceEdition, topN ) );
 
-        analysis.getEditions().stream().sorted().forEach( testingEdition -> {
+        // Editions are compared independently
+        List<Edition> orderedEditions = analysis.getEditions().stream().sorted().collect( Collectors.toList() );
+        SimilarityScore[] scores = new SimilarityScore[orderedEditions.size()];
+        IntStream.range( 0, orderedEditions.size() ).parallel().forEach( i -> {
+            Edition testingEdition = orderedEditions.get( i );
 
             SimilarityEnrichmentWrapper test = new SimilarityEnrichmentWrapper( analysis.getRawResults( testingEdition ), testingEdition, topN );
 
-            similarityScores.put( testingEdition, compareEnrichments( reference, test, sm, cache ) );
-
+            scores[i] = compareEnrichments( reference, test, sm, cache );
         } );
 
+        // Container
+        Map<Edition, SimilarityScore> similarityScores = new LinkedHashMap<>();
+        for ( int i = 0; i < orderedEditions.size(); i++ ) {
+            similarityScores.put( orderedEditions.get( i ), scores[i] );
+        }
+
         this.similarityScores = Collections.unmodifiableMap( similarityScores );
     }
 
-    public SimilarityScore compareEnrichments( SimilarityEnrichmentWrapper reference, SimilarityEnrichmentWrapper test, SimilarityMethod sm, Cache cache) {
+    static SimilarityScore compareEnrichments( ReferenceSets reference, SimilarityEnrichmentWrapper test,
+                                               SimilarityMethod sm, Cache cache ) {
 
         // Complete Terms
         Double completeTermSim = SimilarityAnalysis.similarity( sm,
-                cache.convertTerms( reference.getEdition(), test.getEnrichment().getSignificantTerms() ),
-                reference.getEnrichment().getSignificantTerms() );
+                reference.encodeTerms( test.getEnrichment().getSignificantTerms(), cache ),
+                reference.getCompleteTerms() );
 
         // Top Terms
         Double topTermSim = SimilarityAnalysis.similarity( sm,
-                cache.convertTerms( reference.getEdition(), test.getTopTerms() ),
+                reference.encodeTerms( test.getTopTerms(), cache ),
                 reference.getTopTerms() );
 
         // Top Genes
         Double topGeneSim = SimilarityAnalysis.similarity( sm,
-                test.getTopGenes(), reference.getTopGenes() );
+                reference.encodeGenes( test.getTopGenes() ), reference.getTopGenes() );
 
         // Top Parents
         Double topParentsSim = SimilarityAnalysis.similarity( sm,
-                cache.convertTerms( reference.getEdition(), test.getTopParents() ),
+                reference.encodeTerms( test.getTopParents(), cache ),
                 reference.getTopParents() );
 
         return new SimilarityScore( completeTermSim, topTermSim, topGeneSim, topParentsSim,
@@ -126,11 +132,65 @@ public class SimilarityAnalysis {
         return similarityScores.get( ed );
     }
 
-    private static <T> Double similarity( SimilarityMethod sm, Set<T> test, Set<T> reference ) {
+    private static Double similarity( SimilarityMethod sm, EncodedSet test, EncodedSet reference ) {
         if ( sm.equals( SimilarityMethod.JACCARD ) ) {
-            return Jaccard.similarity( test, reference );
+            return EncodedSet.jaccard( test, reference );
         } else {
-            return Tversky.similarityPrototypeWeighted( test, reference );
+            return EncodedSet.tverskyPrototypeWeighted( test, reference );
+        }
+    }
+
+    /**
+     * Sets of the reference edition encoded over dense ordinals of their terms and genes, against which the sets of
+     * other editions are encoded. Terms of other editions are first converted to the reference edition's ontology
+     * which accounts for obsoletion in the form of alternate ids, see {@link Cache#convertTerms(Edition, Set)}.
+     */
+    @Getter
+    static final class ReferenceSets {
+
+        // Id of terms not found in the reference edition's ontology
+        private static final int UNKNOWN_TERM = -1;
+
+        @Getter(AccessLevel.NONE)
+        private final Edition edition;
+        @Getter(AccessLevel.NONE)
+        private final EncodedSet.Dictionary termDictionary;
+        @Getter(AccessLevel.NONE)
+        private final EncodedSet.Dictionary geneDictionary;
+
+        private final EncodedSet completeTerms;
+        private final EncodedSet topTerms;
+        private final EncodedSet topGenes;
+        private final EncodedSet topParents;
+
+        ReferenceSets( SimilarityEnrichmentWrapper reference ) {
+            this.edition = reference.getEdition();
+
+            Set<GeneOntologyTerm> significantTerms = reference.getEnrichment().getSignificantTerms();
+            termDictionary = new EncodedSet.Dictionary(
+                    significantTerms.size() + reference.getTopTerms().size() + reference.getTopParents().size() );
+            termDictionary.addAll( significantTerms.stream().mapToInt( GeneOntologyTerm::getId ) );
+            termDictionary.addAll( reference.getTopTerms().stream().mapToInt( GeneOntologyTerm::getId ) );
+            termDictionary.addAll( reference.getTopParents().stream().mapToInt( GeneOntologyTerm::getId ) );
+
+            geneDictionary = new EncodedSet.Dictionary( reference.getTopGenes().size() );
+            geneDictionary.addAll( reference.getTopGenes().stream().mapToInt( Gene::getId ) );
+
+            completeTerms = termDictionary.encode( significantTerms.stream().mapToInt( GeneOntologyTerm::getId ) );
+            topTerms = termDictionary.encode( reference.getTopTerms().stream().mapToInt( GeneOntologyTerm::getId ) );
+            topGenes = geneDictionary.encode( reference.getTopGenes().stream().mapToInt( Gene::getId ) );
+            topParents = termDictionary.encode( reference.getTopParents().stream().mapToInt( GeneOntologyTerm::getId ) );
+        }
+
+        private EncodedSet encodeTerms( Set<GeneOntologyTerm> terms, Cache cache ) {
+            return termDictionary.encode( terms.stream().mapToInt( t -> {
+                GeneOntologyTerm converted = cache.getTerm( edition, t.getGoId() );
+                return converted == null ? UNKNOWN_TERM : converted.getId();
+            } ) );
+        }
+
+        private EncodedSet encodeGenes( Set<Gene> genes ) {
+            return geneDictionary.encode( genes.stream().mapToInt( Gene::getId ) );
         }
     }
 
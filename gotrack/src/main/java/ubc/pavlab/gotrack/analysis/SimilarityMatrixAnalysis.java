@@ -0,0 +1,105 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.analysis;
+
+import lombok.Getter;
+import org.apache.log4j.Logger;
+import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.model.Edition;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares the enrichment of every edition with that of every other edition, with the same scores as
+ * {@link SimilarityAnalysis} which only compares editions to a single reference. Scores are held as edition x edition
+ * matrices indexed by the ordinals of {@link #getEditions()}, the test edition by row and the reference by column, so
+ * that each column is what {@link SimilarityAnalysis} computes against that column's edition.
+ * <p>
+ * As there, terms of the test edition are converted to the ontology of the reference edition, so even Jaccard matrices
+ * are not symmetric once terms have become obsolete. The top terms, genes and parents of each edition are only
+ * gathered once and the sets of each reference edition only encoded once for its whole column.
+ *
+ * @author mjacobson
+ */
+@Getter
+public class SimilarityMatrixAnalysis {
+
+    private static final Logger log = Logger.getLogger( SimilarityMatrixAnalysis.class );
+
+    private final List<Edition> editions;
+    private final int topN;
+    private final SimilarityMethod similarityMethod;
+
+    private final double[][] completeTermSim;
+    private final double[][] topTermSim;
+    private final double[][] topGeneSim;
+    private final double[][] topParentsSim;
+
+    /**
+     * @param analysis results of enrichment analysis
+     * @param topN     number of top terms to use for top N series
+     * @param sm       similarity method
+     * @param cache    Cache bean in order to convert terms between editions
+     */
+    public SimilarityMatrixAnalysis( EnrichmentAnalysis analysis, int topN, SimilarityMethod sm, Cache cache ) {
+        this.editions = Collections.unmodifiableList(
+                analysis.getEditions().stream().sorted().collect( Collectors.toList() ) );
+        this.topN = topN;
+        this.similarityMethod = sm;
+
+        int n = editions.size();
+
+        SimilarityEnrichmentWrapper[] wrappers = new SimilarityEnrichmentWrapper[n];
+        IntStream.range( 0, n ).parallel().forEach( i -> {
+            Edition ed = editions.get( i );
+            wrappers[i] = new SimilarityEnrichmentWrapper( analysis.getRawResults( ed ), ed, topN );
+        } );
+
+        completeTermSim = new double[n][n];
+        topTermSim = new double[n][n];
+        topGeneSim = new double[n][n];
+        topParentsSim = new double[n][n];
+
+        // Columns are independent
+        IntStream.range( 0, n ).parallel().forEach( j -> {
+            SimilarityAnalysis.ReferenceSets reference = new SimilarityAnalysis.ReferenceSets( wrappers[j] );
+            for ( int i = 0; i < n; i++ ) {
+                SimilarityScore score = SimilarityAnalysis.compareEnrichments( reference, wrappers[i], sm, cache );
+                completeTermSim[i][j] = score.getCompleteTermSim();
+                topTermSim[i][j] = score.getTopTermSim();
+                topGeneSim[i][j] = score.getTopGeneSim();
+                topParentsSim[i][j] = score.getTopParentsSim();
+            }
+        } );
+
+        log.debug( "Compared " + ( ( long ) n * n ) + " pairs of editions" );
+    }
+
+    /**
+     * @return ordinal of edition in the matrices, -1 if not compared
+     */
+    public int editionOrdinal( Edition ed ) {
+        return editions.indexOf( ed );
+    }
+
+}
@@ -19,12 +19,12 @@
 
 package ubc.pavlab.gotrack.analysis;
 
-import gnu.trove.map.hash.TObjectDoubleHashMap;
 import ubc.pavlab.gotrack.model.Edition;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
-import ubc.pavlab.gotrack.model.hashkey.HyperUCFKey;
 
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Calculates scores which attempt to explore the stability of gene set enrichment analyses results over time.
@@ -38,14 +38,18 @@ public class StabilityAnalysis {
 
     private static final int SIGNIFICANCE_QUEUE_SIZE = 24;
 
+    // Changes between editions are weighted 1 (oldest) to 6 (most recent) over the previous 6 editions
+    private static final int WINDOW_SIZE = 6;
+    private static final int WINDOW_WEIGHT = WINDOW_SIZE * ( WINDOW_SIZE + 1 ) / 2;
+
     /**
      * @param analysis results of enrichment analysis
      */
     public StabilityAnalysis( EnrichmentAnalysis analysis ) {
 
-        // ordered list of editions
-        List<Edition> orderedEditions = new ArrayList<>( analysis.getEditions() );
-        Collections.sort( orderedEditions );
+        // Results of every term that was significant in at least one edition, editions in order
+        EnrichmentResultMatrix matrix = analysis.getResultMatrix();
+        List<GeneOntologyTerm> terms = matrix.getTerms();
 
         // Compute stability of individual GOTerms over time
         // ***********************************
@@ -57,141 +61,120 @@ public class StabilityAnalysis {
         // ***********************************
 
         // Log Probability Memoization Cache
-        TObjectDoubleHashMap<HyperUCFKey> logProbCache = new TObjectDoubleHashMap<>();
-        double noEntryValue = logProbCache.getNoEntryValue();
+        HyperGeometricCache logProbCache = HyperGeometricCache.shared();
+
+        // Terms are independent
+        List<Map<Edition, StabilityScore>> termScores = IntStream.range( 0, terms.size() ).parallel()
+                .mapToObj( t -> stabilityScores( matrix, t, logProbCache ) )
+                .collect( Collectors.toList() );
 
         // Container
         Map<GeneOntologyTerm, Map<Edition, StabilityScore>> stabilityScores = new HashMap<>();
-
-        // weights of previous N editions
-        int[] weights = new int[6];
-        for ( int i = 0; i < weights.length; i++ ) {
-            weights[i] = i + 1;
+        for ( int i = 0; i < terms.size(); i++ ) {
+            stabilityScores.put( terms.get( i ), termScores.get( i ) );
         }
-        // Iterate over every term that was significant in at least one edition
-        for ( GeneOntologyTerm t : analysis.getTermsSignificantInAnyEdition() ) {
 
-            // Enrichment results for this term
-            Map<Edition, EnrichmentResult> data = analysis.getResults( t );
-
-            // Container for this term's scores
-            Map<Edition, StabilityScore> scores = new HashMap<>();
-
-            // Queue to hold the previous N editions and their corresponding contingency table results
-            LinkedHashMap<Edition, int[]> queue = new LinkedHashMap<Edition, int[]>() {
-                @Override
-                protected boolean removeEldestEntry( Map.Entry<Edition, int[]> eldest ) {
-                    return this.size() > 6;
-                }
-            };
+        this.stabilityScores = Collections.unmodifiableMap( stabilityScores );
 
-            // Queue to hold the previous 24 editions and if they were significant
-            LinkedHashMap<Edition, Boolean> significanceQueue = new LinkedHashMap<Edition, Boolean>() {
-                @Override
-                protected boolean removeEldestEntry( Map.Entry<Edition, Boolean> eldest ) {
-                    return this.size() > SIGNIFICANCE_QUEUE_SIZE;
-                }
-            };
-
-            // holds previous result for comparison purposes
-            EnrichmentResult previousResult = null;
-
-            // holds running numbers to computing ytd style averages
-            double runningScore = 0;
-            int runningScoreCnt = 0;
-
-            // iterate over editions in order
-            for ( Edition ed : orderedEditions ) {
-
-                // P-Value cutoff for significance
-                Double cutoff = analysis.getCutoff( ed );
-
-                EnrichmentResult er = data.get( ed );
-                if ( er != null ) {
-                    if ( previousResult != null ) {
-                        // if the term was significant in this edition and there is a previous edition to compare against
-
-                        // Compute % past 24 editions this term was significant
-                        significanceQueue.put( ed, er.isSignificant() );
-                        double pastPercentSignificant = (double) significanceQueue.values().stream().filter( p -> p ).count() / significanceQueue.size();
-
-                        // holds changes in the two statistics we are interested in: sample and population annotated
-                        // int r, int m
-                        int[] arr = new int[2];
-                        arr[0] = er.getSampleAnnotated() - previousResult.getSampleAnnotated();
-                        arr[1] = er.getPopulationAnnotated() - previousResult.getPopulationAnnotated();
-                        queue.put( ed, arr );
-
-                        double[] a = weightedAverage( queue, weights );
-                        double[] b = weightedStd( queue, weights );
-
-                        // now to calculate upper and lower bound p values
-
-                        // 95% confidence around the two statistics
-                        int rMin = ( int ) Math.round( er.getSampleAnnotated() + a[0] - 2 * b[0] );
-                        int rMax = ( int ) Math.round( er.getSampleAnnotated() + a[0] + 2 * b[0] );
-
-                        int mMin = ( int ) Math.round( er.getPopulationAnnotated() + a[1] - 2 * b[1] );
-                        int mMax = ( int ) Math.round( er.getPopulationAnnotated() + a[1] + 2 * b[1] );
-
-                        // create new contingency table based on 95% confidence interval in order to create lowest p-value
-                        int[] params = new int[4]; // smallest p-value
-                        params[0] = rMax; // most hits in sample
-                        params[1] = mMin; // least hits in population
-                        params[2] = er.getSampleSize();
-                        params[3] = er.getPopulationSize();
-                        // Makes sure new values make physical sense
-                        fixParameters( params );
-
-                        // Combined map key
-                        HyperUCFKey key = new HyperUCFKey( params[0], params[1], params[2], params[3] );
-
-                        // compute log probs / decache them
-                        double minp = logProbCache.get( key );
-                        if ( minp == noEntryValue ) {
-                            minp = HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( params[0], params[1],
-                                    params[2], params[3] );
-                            logProbCache.put( key, minp );
-                        }
-
-                        // Do the same as above except on the other ends of the 95% confidence interval
-                        params[0] = rMin; // least hits in sample
-                        params[1] = mMax; // most hits in population
-                        params[2] = er.getSampleSize();
-                        params[3] = er.getPopulationSize();
-                        fixParameters( params );
-
-                        key = new HyperUCFKey( params[0], params[1], params[2], params[3] );
-                        double maxp = logProbCache.get( key );
-                        if ( maxp == noEntryValue ) {
-                            maxp = HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( params[0], params[1],
-                                    params[2], params[3] );
-                            logProbCache.put( key, maxp );
-                        }
-
-                        // calculate scores (very similar to a coefficient of variation)
-                        double score = ( maxp - minp ) / cutoff;
-                        runningScore += score;
-                        runningScoreCnt++;
-
-                        scores.put( ed, new StabilityScore( b[0], b[1], minp, maxp, -Math.log( score ),
-                                -Math.log( runningScore / runningScoreCnt ), pastPercentSignificant ) );
-
-                    } else {
-                        scores.put( ed,
-                                new StabilityScore( -1, -1, er.getPvalue(), er.getPvalue(), Double.NaN, Double.NaN, Double.NaN ) );
-                    }
-                    previousResult = er;
-                }
+    }
 
+    /**
+     * @param matrix enrichment results
+     * @param t ordinal of the term in matrix
+     * @return stability scores of the term in each edition it was tested
+     */
+    private static Map<Edition, StabilityScore> stabilityScores( EnrichmentResultMatrix matrix, int t,
+                                                                 HyperGeometricCache logProbCache ) {
+        // Container for this term's scores
+        Map<Edition, StabilityScore> scores = new HashMap<>();
+
+        // Changes in the two statistics we are interested in over the previous N editions:
+        // sample and population annotated
+        WeightedWindow sampleChanges = new WeightedWindow();
+        WeightedWindow populationChanges = new WeightedWindow();
+
+        // Whether the term was significant in the previous 24 editions
+        SignificanceWindow significance = new SignificanceWindow();
+
+        // Contingency table: sampleAnnotated, populationAnnotated, sampleSize, populationSize
+        int[] params = new int[4];
+
+        // holds previous result for comparison purposes
+        EnrichmentResult previousResult = null;
+
+        // holds running numbers to computing ytd style averages
+        double runningScore = 0;
+        int runningScoreCnt = 0;
+
+        // iterate over editions in order
+        List<Edition> orderedEditions = matrix.getEditions();
+        for ( int e = 0; e < orderedEditions.size(); e++ ) {
+            EnrichmentResult er = matrix.getResult( t, e );
+            if ( er == null ) {
+                continue;
             }
-
-            stabilityScores.put( t, Collections.unmodifiableMap( scores ) );
-
+            Edition ed = orderedEditions.get( e );
+            if ( previousResult != null ) {
+                // if the term was significant in this edition and there is a previous edition to compare against
+
+                // Compute % past 24 editions this term was significant
+                double pastPercentSignificant = significance.add( er.isSignificant() );
+
+                sampleChanges.add( er.getSampleAnnotated() - previousResult.getSampleAnnotated() );
+                populationChanges.add( er.getPopulationAnnotated() - previousResult.getPopulationAnnotated() );
+
+                double sampleMean = sampleChanges.mean();
+                double sampleStd = sampleChanges.std();
+                double populationMean = populationChanges.mean();
+                double populationStd = populationChanges.std();
+
+                // now to calculate upper and lower bound p values
+
+                // 95% confidence around the two statistics
+                int rMin = ( int ) Math.round( er.getSampleAnnotated() + sampleMean - 2 * sampleStd );
+                int rMax = ( int ) Math.round( er.getSampleAnnotated() + sampleMean + 2 * sampleStd );
+
+                int mMin = ( int ) Math.round( er.getPopulationAnnotated() + populationMean - 2 * populationStd );
+                int mMax = ( int ) Math.round( er.getPopulationAnnotated() + populationMean + 2 * populationStd );
+
+                // create new contingency table based on 95% confidence interval in order to create lowest p-value
+                params[0] = rMax; // most hits in sample
+                params[1] = mMin; // least hits in population
+                params[2] = er.getSampleSize();
+                params[3] = er.getPopulationSize();
+                // Makes sure new values make physical sense
+                fixParameters( params );
+
+                // compute log probs / decache them
+                double minp = logProbCache.upperCumulativeProbabilityLog( params[0], params[1], params[2],
+                        params[3] );
+
+                // Do the same as above except on the other ends of the 95% confidence interval
+                params[0] = rMin; // least hits in sample
+                params[1] = mMax; // most hits in population
+                params[2] = er.getSampleSize();
+                params[3] = er.getPopulationSize();
+                fixParameters( params );
+
+                double maxp = logProbCache.upperCumulativeProbabilityLog( params[0], params[1], params[2],
+                        params[3] );
+
+                // calculate scores (very similar to a coefficient of variation)
+                double score = ( maxp - minp ) / matrix.getCutoff( e );
+                runningScore += score;
+                runningScoreCnt++;
+
+                scores.put( ed, new StabilityScore( sampleStd, populationStd, minp, maxp, -Math.log( score ),
+                        -Math.log( runningScore / runningScoreCnt ), pastPercentSignificant ) );
+
+            } else {
+                scores.put( ed,
+                        new StabilityScore( -1, -1, er.getPvalue(), er.getPvalue(), Double.NaN, Double.NaN, Double.NaN ) );
+            }
+            previousResult = er;
         }
 
-        this.stabilityScores = Collections.unmodifiableMap( stabilityScores );
-
+        return Collections.unmodifiableMap( scores );
     }
 
     /**
@@ -234,87 +217,91 @@ public class StabilityAnalysis {
     }
 
     /**
-     * @param queue
-     * @param weights
-     * @return weighted average of each statistic given in queue with weights
+     * Ring buffer of the last {@link #WINDOW_SIZE} values of a statistic, weighted by recency, keeping the sums needed
+     * for its weighted mean and standard deviation up to date as values are added. Values are integers so the sums are
+     * exact.
      */
-    private static double[] weightedAverage( LinkedHashMap<Edition, int[]> queue, int[] weights ) {
-        if ( queue.size() > weights.length ) throw new RuntimeException( "Not enough weights for queue" );
-        // int r, int m, int k, int t
-
-        int size = queue.values().iterator().next().length;
-
-        int sumWeights = 0;
-        for ( int i : weights )
-            sumWeights += i;
-
-        int i = 0;
-        double[] rollingSums = new double[size];
-
-        for ( int[] vals : queue.values() ) {
-            int weight = weights[i++];
-            for ( int j = 0; j < size; j++ ) {
-                int v = vals[j];
-                rollingSums[j] += weight * v / ( double ) sumWeights;
+    private static final class WeightedWindow {
+        private final int[] values = new int[WINDOW_SIZE];
+        private int size = 0;
+        private int oldest = 0;
+
+        private long sum = 0;
+        private long sumSquares = 0;
+        private long weightedSum = 0;
+        private long weightedSumSquares = 0;
+
+        void add( int v ) {
+            if ( size == WINDOW_SIZE ) {
+                // Every value moves down a weight, which drops the oldest
+                int dropped = values[oldest];
+                weightedSum -= sum;
+                weightedSumSquares -= sumSquares;
+                sum -= dropped;
+                sumSquares -= ( long ) dropped * dropped;
+                values[oldest] = v;
+                oldest = ( oldest + 1 ) % WINDOW_SIZE;
+            } else {
+                values[( oldest + size ) % WINDOW_SIZE] = v;
+                size++;
             }
+            // Most recent value has the highest weight, the size of the window
+            sum += v;
+            sumSquares += ( long ) v * v;
+            weightedSum += ( long ) size * v;
+            weightedSumSquares += ( long ) size * v * v;
         }
 
-        return rollingSums;
+        /**
+         * @return weighted average, over the total weight of a full window
+         */
+        double mean() {
+            return weightedSum / ( double ) WINDOW_WEIGHT;
+        }
 
+        /**
+         * @return weighted standard deviation
+         */
+        double std() {
+            if ( size < 2 ) {
+                return 0;
+            }
+            long sumWeight = ( long ) size * ( size + 1 ) / 2;
+            // M2 = sum( w * (v - mean)^2 ) = sum( w * v^2 ) - sum( w * v )^2 / sum( w )
+            double m2 = ( sumWeight * weightedSumSquares - weightedSum * weightedSum ) / ( double ) sumWeight;
+            double variance = m2 / sumWeight * size / ( size - 1 );
+            return Math.sqrt( variance );
+        }
     }
 
     /**
-     * @param queue
-     * @param weights
-     * @return weighted standard deviation of each statistic given in queue with weights
+     * Ring buffer of whether a term was significant in the last {@link #SIGNIFICANCE_QUEUE_SIZE} editions.
      */
-    private static double[] weightedStd( LinkedHashMap<Edition, int[]> queue, int[] weights ) {
-        if ( queue.size() == 0 ) {
-            return null;
-        }
-
-        int sumWeight = 0;
-
-        int size = queue.values().iterator().next().length;
-
-        double[] stds = new double[size];
-
-        if ( queue.size() == 1 ) {
-            for ( int j = 0; j < size; j++ ) {
-                stds[j] = 0;
+    private static final class SignificanceWindow {
+        private final boolean[] values = new boolean[SIGNIFICANCE_QUEUE_SIZE];
+        private int size = 0;
+        private int oldest = 0;
+        private int significant = 0;
+
+        /**
+         * @return fraction of the editions in the window in which the term was significant, including this one
+         */
+        double add( boolean isSignificant ) {
+            if ( size == SIGNIFICANCE_QUEUE_SIZE ) {
+                if ( values[oldest] ) {
+                    significant--;
+                }
+                values[oldest] = isSignificant;
+                oldest = ( oldest + 1 ) % SIGNIFICANCE_QUEUE_SIZE;
+            } else {
+                values[( oldest + size ) % SIGNIFICANCE_QUEUE_SIZE] = isSignificant;
+                size++;
             }
-            return stds;
-        }
-
-        double[] means = new double[size];
-        double[] M2s = new double[size];
-
-        int i = 0;
-        for ( int[] vals : queue.values() ) {
-            int weight = weights[i++];
-            int temp = weight + sumWeight;
-
-            for ( int j = 0; j < size; j++ ) {
-                int v = vals[j];
-                double delta = v - means[j];
-                double R = weight * delta / temp;
-                means[j] += R;
-                M2s[j] += sumWeight * delta * R;
+            if ( isSignificant ) {
+                significant++;
             }
-
-            sumWeight = temp;
+            return ( double ) significant / size;
         }
-
-        for ( int j = 0; j < size; j++ ) {
-            double M2 = M2s[j];
-
-            double variance_n = M2 / sumWeight;
-            double variance = variance_n * queue.size() / ( queue.size() - 1 );
-            stds[j] = Math.sqrt( variance );
-        }
-
-        return stds;
-
     }
 
     public Map<GeneOntologyTerm, Map<Edition, StabilityScore>> getStabilityScores() {
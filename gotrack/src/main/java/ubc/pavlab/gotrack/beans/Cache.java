@@ -20,31 +20,38 @@
 package ubc.pavlab.gotrack.beans;
 
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurrenttrees.radix.ConcurrentRadixTree;
 import com.googlecode.concurrenttrees.radix.RadixTree;
 import com.googlecode.concurrenttrees.radix.node.concrete.DefaultCharArrayNodeFactory;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.omnifaces.cdi.Eager;
+import ubc.pavlab.gotrack.analysis.HyperGeometricUtilities;
 import ubc.pavlab.gotrack.analysis.MultipleTestCorrection;
 import ubc.pavlab.gotrack.beans.service.SpeciesService;
 import ubc.pavlab.gotrack.dao.CacheDAO;
+import ubc.pavlab.gotrack.dao.CacheSnapshotDAO;
 import ubc.pavlab.gotrack.model.*;
 import ubc.pavlab.gotrack.model.dto.*;
 import ubc.pavlab.gotrack.model.go.GeneOntology;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
 import ubc.pavlab.gotrack.model.go.RelationshipType;
-import ubc.pavlab.gotrack.model.hashkey.MultiKey;
+import ubc.pavlab.gotrack.model.go.TermInterner;
 import ubc.pavlab.gotrack.model.search.GeneMatch;
+import ubc.pavlab.gotrack.utilities.StagedExecutor;
 
 import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * NOTE: Most maps here do not require synchronicity locks as they are both read-only and accessing threads are
@@ -52,7 +59,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * concurrency wherever possible... just in case.
  * <p>
  * This is the application cache for most static data in GOTrack as well as cached database queries for the various
- * Views. Takes ~15 minutes for a initialization using all species on production system.
+ * Views. Takes ~15 minutes for a initialization using all species on production system when run serially;
+ * independent parts of the initialization are run concurrently (see gotrack.cacheThreads). If gotrack.cacheSnapshot
+ * is set, the queries made during initialization are snapshot to disk and replayed on the next start as long as the
+ * database has not changed.
  *
  * @author  mjacobson
  * @version $Id$
@@ -136,11 +146,9 @@ public class Cache implements Serializable {
 
     //private Map<Gene, Map<Edition, Integer>> geneRanksByInferredTermCount = new ConcurrentHashMap<>();
 
-    // Maps edition, goId -> count of unique genes annotated this term or any of its children
-    private Map<Edition, Map<GeneOntologyTerm, Integer>> inferredAnnotationCount = new ConcurrentHashMap<>();
-
-    // Maps edition, goId -> count of unique genes annotated this term only
-    private Map<Edition, Map<GeneOntologyTerm, Integer>> directAnnotationCount = new ConcurrentHashMap<>();
+    // Maps edition, goId -> count of unique genes annotated this term only (direct) and this term or any of its
+    // children (inferred)
+    private Map<Edition, AnnotationCounts> annotationCounts = new ConcurrentHashMap<>();
 
     // Maps GOEdition -> GeneOntology
     // Holds our created ontologies
@@ -374,34 +382,49 @@ public class Cache implements Serializable {
         // GOTerm creation
         // ****************************
 
-        log.info( "Caching ontologies..." );
-        int i = 0;
-        for ( GOEdition goEdition : allGOEditions.values() ) {
-            if ( i % 20 == 0 ) {
-                log.info( "Ontologies complete: " + i + " / " + allGOEditions.size() );
-            }
-            GeneOntology go = new GeneOntology( goEdition );
-            ontologies.put( goEdition, go );
-
-            for ( GOTermDTO dto : cacheDAO.getGoTerms( goEdition.getId() ) ) {
-                go.addTerm( new GeneOntologyTerm( dto ) );
+        // Each ontology is independent, build them concurrently while limiting how many hold a connection at once
+        int threads = settingsCache.getOntologyThreads();
+        Semaphore connections = new Semaphore( Math.min( threads, settingsCache.getOntologyConnections() ) );
+        AtomicInteger complete = new AtomicInteger();
+
+        // Most terms are unchanged between GO editions, share their ids and names
+        TermInterner interner = new TermInterner();
+
+        log.info( "Caching ontologies using " + threads + " threads and " + connections.availablePermits()
+                + " connections..." );
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads,
+                new ThreadFactoryBuilder().setNameFormat( "ontology-loader-%d" ).setDaemon( true ).build() );
+        try {
+            Map<GOEdition, Future<GeneOntology>> futures = Maps.newHashMap();
+            for ( GOEdition goEdition : allGOEditions.values() ) {
+                futures.put( goEdition, pool.submit( () -> {
+                    GeneOntology go = createOntology( cacheDAO, goEdition, connections, interner );
+                    int i = complete.incrementAndGet();
+                    if ( i % 20 == 0 ) {
+                        log.info( "Ontologies complete: " + i + " / " + allGOEditions.size() );
+                    }
+                    return go;
+                } ) );
             }
 
-            for ( AdjacencyDTO dto : cacheDAO.getAdjacencies( goEdition.getId() ) ) {
-                go.addRelationship( dto.getChild(), dto.getParent(), RelationshipType.valueOf( dto.getType() ) );
+            for ( Entry<GOEdition, Future<GeneOntology>> entry : futures.entrySet() ) {
+                ontologies.put( entry.getKey(), entry.getValue().get() );
             }
-
-            for ( AdjacencyDTO dto : cacheDAO.getAlternates( goEdition.getId() ) ) {
-                go.addAlt( dto.getChild(), dto.getParent() );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while caching ontologies", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
             }
-
-            go.freeze();
-
-            i++;
-
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            pool.shutdownNow();
         }
 
         log.info( "Ontologies complete: " + allGOEditions.size() + " / " + allGOEditions.size() );
+        log.info( interner.report() );
 
         for ( GODefinitionDTO dto : cacheDAO.getGODefinitions() ) {
             geneOntologyDefinitions.put( dto.getGoId(), dto.getDefinition() );
@@ -414,7 +437,47 @@ public class Cache implements Serializable {
                 + ( Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() ) / 1000000 + " MB" );
     }
 
-    private void createAggregates( CacheDAO cacheDAO ) {
+    /**
+     * Fetch and build a single frozen ontology.
+     *
+     * @param connections permits limiting the number of concurrent database fetches
+     * @param interner    shares term data between editions
+     */
+    private GeneOntology createOntology( CacheDAO cacheDAO, GOEdition goEdition, Semaphore connections,
+                                         TermInterner interner ) throws InterruptedException {
+        List<GOTermDTO> terms;
+        List<AdjacencyDTO> adjacencies;
+        List<AdjacencyDTO> alternates;
+
+        connections.acquire();
+        try {
+            terms = cacheDAO.getGoTerms( goEdition.getId() );
+            adjacencies = cacheDAO.getAdjacencies( goEdition.getId() );
+            alternates = cacheDAO.getAlternates( goEdition.getId() );
+        } finally {
+            connections.release();
+        }
+
+        GeneOntology go = new GeneOntology( goEdition );
+
+        for ( GOTermDTO dto : terms ) {
+            go.addTerm( interner.create( dto ) );
+        }
+
+        for ( AdjacencyDTO dto : adjacencies ) {
+            go.addRelationship( dto.getChild(), dto.getParent(), RelationshipType.valueOf( dto.getType() ) );
+        }
+
+        for ( AdjacencyDTO dto : alternates ) {
+            go.addAlt( dto.getChild(), dto.getParent() );
+        }
+
+        go.freeze( settingsCache.isPrecomputeAncestors() );
+
+        return go;
+    }
+
+    private void createAggregates( CacheDAO cacheDAO, Map<Species, Integer> mostRecentAggregateEditions ) {
         // goSetSize cache creation &
         // Aggregate Stats
 
@@ -423,12 +486,11 @@ public class Cache implements Serializable {
         // adding in a 6-10 hour process once a month.
 
         // *************** Reads from database ******************
-        Map<Species, Integer> mostRecentAggregateEditions = new HashMap<>();
-        Map<Species, Integer> mostRecentCountEditions = new HashMap<>();
 
         // Aggregate cache creation
         // ****************************
         log.info( "Attempting to create Aggregates from database cache" );
+        int maxGeneCount = 0;
         for ( AggregateDTO dto : cacheDAO.getAggregates( speciesRestrictions ) ) {
             Species species = speciesCache.get( dto.getSpecies() );
             Edition ed = allEditions.get( species ).get( dto.getEdition() );
@@ -438,6 +500,9 @@ public class Cache implements Serializable {
             }
 
             aggregates.put( ed, new Aggregate( dto ) );
+            if ( dto.getGeneCount() != null ) {
+                maxGeneCount = Math.max( maxGeneCount, dto.getGeneCount() );
+            }
 
             Integer recentEdition = mostRecentAggregateEditions.get( species );
 
@@ -446,62 +511,60 @@ public class Cache implements Serializable {
             }
 
         }
-        // ****************************
-        // Annotation Counts cache creation
-        // ****************************
+
+        // Gene counts bound the population size of every enrichment
+        HyperGeometricUtilities.ensureLogFactorials( maxGeneCount );
+        log.info( "Tabulated log factorials up to " + maxGeneCount );
+    }
+
+    private Map<Integer, Integer> fetchMinEditions( CacheDAO cacheDAO ) {
         Map<Integer, Integer> minEditions = Maps.newHashMap();
         for ( EditionDTO dto : cacheDAO.getReleaseEditions( minRelease ) ) {
             minEditions.put( dto.getSpecies(), dto.getEdition() );
         }
+        return minEditions;
+    }
 
-        log.info( "Attempting to create Annotation Counts from database cache" );
-        for ( Species species : speciesCache.values() ) {
-            log.info( "Begin: " + species );
-            Integer recentEdition = null;
-            Integer minEdition = minEditions.get( species.getId() );
-            minEdition = minEdition == null ? 0 : minEdition;
-            Map<Integer, Edition> editions = allEditions.get( species );
-            for ( AnnotationCountDTO dto : cacheDAO.getGOAnnotationCounts( species.getId(), minEdition ) ) {
-                MultiKey k = new MultiKey( species, dto );
-                Edition ed = editions.get( dto.getEdition() );
-
-                GeneOntologyTerm term = this.getTerm( ed, dto.getGoId() );
-                if ( term == null ) {
-                    // key existed before
-                    log.warn( "Missing Aggregate Term: " + dto.getGoId() );
-                }
-
-                Map<GeneOntologyTerm, Integer> m1 = directAnnotationCount.get( ed );
-                if ( m1 == null ) {
-                    m1 = Maps.newConcurrentMap();
-                    directAnnotationCount.put( ed, m1 );
-                }
-
-                if ( dto.getDirectCount() != null ) {
-                    m1.put( term, dto.getDirectCount() );
-                }
-
-                m1 = inferredAnnotationCount.get( ed );
-                if ( m1 == null ) {
-                    m1 = Maps.newConcurrentMap();
-                    inferredAnnotationCount.put( ed, m1 );
-                }
-
-                if ( dto.getInferredCount() != null ) {
-                    m1.put( term, dto.getInferredCount() );
-                }
+    private void createAnnotationCounts( CacheDAO cacheDAO, Species species, Integer minEdition,
+                                         Map<Species, Integer> mostRecentCountEditions ) {
+        // ****************************
+        // Annotation Counts cache creation
+        // ****************************
+        log.info( "Attempting to create Annotation Counts from database cache for: " + species );
+        Integer recentEdition = null;
+        minEdition = minEdition == null ? 0 : minEdition;
+        Map<Integer, Edition> editions = allEditions.get( species );
+        Map<Edition, AnnotationCounts> speciesCounts = new HashMap<>();
+        for ( AnnotationCountDTO dto : cacheDAO.getGOAnnotationCounts( species.getId(), minEdition ) ) {
+            Edition ed = editions.get( dto.getEdition() );
+
+            GeneOntologyTerm term = this.getTerm( ed, dto.getGoId() );
+            if ( term == null ) {
+                // key existed before
+                log.warn( "Missing Aggregate Term: " + dto.getGoId() );
+                continue;
+            }
 
-                if ( recentEdition == null || dto.getEdition() > recentEdition ) {
-                    recentEdition = dto.getEdition();
-                }
+            speciesCounts.computeIfAbsent( ed, k -> new AnnotationCounts( ontologies.get( k.getGoEdition() ).size() ) )
+                    .put( term, dto.getDirectCount(), dto.getInferredCount() );
 
+            if ( recentEdition == null || dto.getEdition() > recentEdition ) {
+                recentEdition = dto.getEdition();
             }
+
+        }
+        // Editions are never shared between species so these stages never touch the same entries
+        for ( AnnotationCounts counts : speciesCounts.values() ) {
+            counts.trim();
+        }
+        annotationCounts.putAll( speciesCounts );
+        if ( recentEdition != null ) {
             mostRecentCountEditions.put( species, recentEdition );
         }
-        // ****************************
-
-        // ******************************************************
+    }
 
+    private void checkAggregates( Map<Species, Integer> mostRecentAggregateEditions,
+                                  Map<Species, Integer> mostRecentCountEditions ) {
         // Check to see if aggregates are out of date with data
         boolean outOfDate = false;
         for ( Species species : allEditions.keySet() ) {
@@ -509,7 +572,7 @@ public class Cache implements Serializable {
 
             // Check against aggregates and counts
             Integer aggRecentEdition = mostRecentAggregateEditions.get( species );
-            boolean ood = ( !aggRecentEdition.equals( mostRecentEdition.getEdition() ) );
+            boolean ood = ( !mostRecentEdition.getEdition().equals( aggRecentEdition ) );
             if ( ood ) {
                 log.warn(
                         "Most recent edition in Aggregate Data (" + aggRecentEdition
@@ -519,7 +582,7 @@ public class Cache implements Serializable {
             outOfDate |= ood;
 
             Integer cntRecentEdition = mostRecentCountEditions.get( species );
-            ood = ( !cntRecentEdition.equals( mostRecentEdition.getEdition() ) );
+            ood = ( !mostRecentEdition.getEdition().equals( cntRecentEdition ) );
             if ( ood ) {
                 log.warn(
                         "Most recent edition in Aggregate Count Data (" + cntRecentEdition
@@ -704,6 +767,24 @@ public class Cache implements Serializable {
         // ****************************
     }
 
+    /**
+     * @return snapshot to replay if one matching the current database exists, a recording snapshot if snapshots are
+     * enabled but none match, or null if snapshots are disabled
+     */
+    private CacheSnapshotDAO openSnapshot( CacheDAO cacheDAO ) {
+        Path path = settingsCache.getCacheSnapshot();
+        if ( path == null || settingsCache.isDryRun() ) {
+            return null;
+        }
+        String key = CacheSnapshotDAO.key( cacheDAO, speciesRestrictions, minRelease );
+        CacheSnapshotDAO snapshot = CacheSnapshotDAO.restore( path, key );
+        if ( snapshot == null ) {
+            log.info( "Recording cache snapshot for: " + key );
+            snapshot = new CacheSnapshotDAO( cacheDAO, key );
+        }
+        return snapshot;
+    }
+
     /**
      * Create lots of static data caches to be used by Views.
      */
@@ -725,32 +806,64 @@ public class Cache implements Serializable {
         createSpecies();
 
         // Obtain CacheDAO
-        CacheDAO cacheDAO = daoFactoryBean.getGotrack().getCacheDAO();
-        log.info( "CacheDAO successfully obtained: " + cacheDAO );
+        CacheDAO liveCacheDAO = daoFactoryBean.getGotrack().getCacheDAO();
+        log.info( "CacheDAO successfully obtained: " + liveCacheDAO );
 
-        createEditions( cacheDAO );
+        // Replay a snapshot of a previous warm-up if the database has not changed since, otherwise record one
+        CacheSnapshotDAO snapshot = openSnapshot( liveCacheDAO );
+        CacheDAO cacheDAO = snapshot == null ? liveCacheDAO : snapshot;
 
-        createEvidence( cacheDAO );
+        // Release editions define the oldest annotation counts to load
+        Map<Integer, Integer> minEditions = settingsCache.isDryRun() ? null : fetchMinEditions( cacheDAO );
 
-        // System.gc();
-        log.info( "Used Memory: " + ( Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() ) / 1000000
-                + " MB" );
+        // Species -> most recent edition found in the aggregate / annotation count tables
+        Map<Species, Integer> mostRecentAggregateEditions = new ConcurrentHashMap<>();
+        Map<Species, Integer> mostRecentCountEditions = new ConcurrentHashMap<>();
 
-        if ( !settingsCache.isDryRun() ) {
-            createGOTerms( cacheDAO );
-        }
+        // Independent stages run concurrently; GO terms, annotation counts and genes make up the bulk of the time.
+        StagedExecutor warmup = new StagedExecutor( "cache-warmup", settingsCache.getCacheThreads() );
+
+        warmup.stage( "editions", () -> createEditions( cacheDAO ) );
+        warmup.stage( "evidence", () -> createEvidence( cacheDAO ) );
+        warmup.stage( "genes", () -> createGenes( cacheDAO ) );
 
         if ( !settingsCache.isDryRun() ) {
-            createAggregates( cacheDAO );
+            warmup.stage( "ontologies", () -> createGOTerms( cacheDAO ), "editions" );
+            warmup.stage( "aggregates", () -> createAggregates( cacheDAO, mostRecentAggregateEditions ), "editions" );
+
+            // Counts are attached to terms so they must wait for the ontologies, but species are independent
+            List<String> countStages = Lists.newArrayList( "aggregates" );
+            for ( Species species : speciesCache.values() ) {
+                String stageName = "counts-" + species.getId();
+                warmup.stage( stageName,
+                        () -> createAnnotationCounts( cacheDAO, species, minEditions.get( species.getId() ),
+                                mostRecentCountEditions ),
+                        "editions", "ontologies" );
+                countStages.add( stageName );
+            }
+
+            warmup.stage( "aggregate-check",
+                    () -> checkAggregates( mostRecentAggregateEditions, mostRecentCountEditions ),
+                    countStages.toArray( new String[0] ) );
+
+            warmup.stage( "autocomplete", this::createAutocompleteTries, "genes", "ontologies" );
+        } else {
+            warmup.stage( "autocomplete", this::createAutocompleteTries, "genes" );
         }
 
-        createGenes( cacheDAO );
+        warmup.run();
+
+        if ( snapshot != null && snapshot.isRecording() ) {
+            try {
+                snapshot.write( settingsCache.getCacheSnapshot() );
+            } catch ( IOException e ) {
+                log.warn( "Failed to write cache snapshot", e );
+            }
+        }
 
         log.info( "Used Memory: " + ( Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory() ) / 1000000
                 + " MB" );
 
-        createAutocompleteTries();
-
         log.info( "Cache Completed" );
     }
 
@@ -1116,9 +1229,9 @@ public class Cache implements Serializable {
      */
     public Integer getInferredAnnotationCount( Edition ed, GeneOntologyTerm t ) {
         if ( ed == null || t == null ) return null;
-        Map<GeneOntologyTerm, Integer> tmp = inferredAnnotationCount.get( ed );
-        if ( tmp != null ) {
-            return tmp.get( t );
+        AnnotationCounts counts = annotationCounts.get( ed );
+        if ( counts != null ) {
+            return counts.getInferred( t );
         }
         return null;
     }
@@ -1130,30 +1243,36 @@ public class Cache implements Serializable {
      */
     public Integer getDirectAnnotationCount( Edition ed, GeneOntologyTerm t ) {
         if ( ed == null || t == null ) return null;
-        Map<GeneOntologyTerm, Integer> tmp = directAnnotationCount.get( ed );
-        if ( tmp != null ) {
-            return tmp.get( t );
+        AnnotationCounts counts = annotationCounts.get( ed );
+        if ( counts != null ) {
+            return counts.getDirect( t );
         }
         return null;
     }
 
     /**
+     * Counts are stored as primitives, this creates a new map on every call.
+     *
      * @param  ed edition
      * @return    count of genes annotated with this term or any of its children
      */
     public Map<GeneOntologyTerm, Integer> getInferredAnnotationCount( Edition ed ) {
         if ( ed == null ) return null;
-        return inferredAnnotationCount.get( ed );
+        AnnotationCounts counts = annotationCounts.get( ed );
+        return counts == null ? null : counts.inferredMap( ontologies.get( ed.getGoEdition() ) );
 
     }
 
     /**
+     * Counts are stored as primitives, this creates a new map on every call.
+     *
      * @param  ed edition
      * @return    count of genes annotated with this term
      */
     public Map<GeneOntologyTerm, Integer> getDirectAnnotationCount( Edition ed ) {
         if ( ed == null ) return null;
-        return directAnnotationCount.get( ed );
+        AnnotationCounts counts = annotationCounts.get( ed );
+        return counts == null ? null : counts.directMap( ontologies.get( ed.getGoEdition() ) );
     }
 
     /**
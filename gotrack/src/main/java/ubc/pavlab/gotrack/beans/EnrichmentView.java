@@ -32,6 +32,7 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.primefaces.context.RequestContext;
 import ubc.pavlab.gotrack.analysis.*;
 import ubc.pavlab.gotrack.beans.service.EnrichmentService;
+import ubc.pavlab.gotrack.model.Aspect;
 import ubc.pavlab.gotrack.model.Edition;
 import ubc.pavlab.gotrack.model.Gene;
 import ubc.pavlab.gotrack.model.Species;
@@ -175,6 +176,10 @@ public class EnrichmentView implements Serializable {
     @Getter
     CombinedAnalysis combinedAnalysis;
 
+    // Hit list and aspects behind combinedAnalysis, so that edits to the hit list can update it
+    private Set<Gene> analyzedGenes;
+    private Set<Aspect> analyzedAspects;
+
     // Enrichment Data TODO: Could be cached in the EnrichmentAnalysis object instead of here
     private Map<Edition, Map<GeneOntologyTerm, EnrichmentResult>> enrichmentResults; // Results of the enrichment analysis
 
@@ -297,13 +302,33 @@ public class EnrichmentView implements Serializable {
 
         statusPoller = new StatusPoller( " completed" );
 
-        combinedAnalysis = enrichmentService.combinedAnalysis(
-                new HashSet<>( speciesToSelectedGenes.get( selectedSpecies ) ),
-                selectedSpecies,
-                enrichmentOptions,
-                similarityReferenceEdition,
-                TOP_N_JACCARD,
-                statusPoller );
+        Set<Gene> genes = new HashSet<>( speciesToSelectedGenes.get( selectedSpecies ) );
+        if ( isHitListEdit() ) {
+            combinedAnalysis = enrichmentService.combinedAnalysis(
+                    combinedAnalysis,
+                    analyzedGenes,
+                    genes,
+                    enrichmentOptions,
+                    similarityReferenceEdition,
+                    TOP_N_JACCARD,
+                    statusPoller );
+        } else {
+            combinedAnalysis = enrichmentService.combinedAnalysis(
+                    genes,
+                    selectedSpecies,
+                    enrichmentOptions,
+                    similarityReferenceEdition,
+                    TOP_N_JACCARD,
+                    statusPoller );
+        }
+
+        if ( combinedAnalysis.isSuccess() ) {
+            analyzedGenes = genes;
+            analyzedAspects = new HashSet<>( enrichmentOptions.getAspects() );
+        } else {
+            analyzedGenes = null;
+            analyzedAspects = null;
+        }
 
         enrichmentResults = combinedAnalysis.getEnrichmentAnalysis().getResults();
 
@@ -320,6 +345,24 @@ public class EnrichmentView implements Serializable {
 
     }
 
+    /**
+     * @return true if the current settings only differ from those of the current analysis by the hit list, in which
+     * case the analysis can be updated rather than run again
+     */
+    private boolean isHitListEdit() {
+        if ( combinedAnalysis == null || !combinedAnalysis.isSuccess() || analyzedGenes == null ) {
+            return false;
+        }
+        EnrichmentAnalysis analysis = combinedAnalysis.getEnrichmentAnalysis();
+        int max = enrichmentOptions.getMaxAnnotatedPopulation();
+        return analysis.getCurrentSpecies().equals( selectedSpecies )
+                && analysis.getMultipleTestCorrection().equals( enrichmentOptions.getMultipleTestCorrection() )
+                && analysis.getThreshold() == enrichmentOptions.getThreshold()
+                && analysis.getMinAnnotatedPopulation() == enrichmentOptions.getMinAnnotatedPopulation()
+                && analysis.getMaxAnnotatedPopulation() == ( max == 0 ? Integer.MAX_VALUE : max )
+                && analyzedAspects.equals( new HashSet<>( enrichmentOptions.getAspects() ) );
+    }
+
     private void resetSimilarityDateSelector() {
         similarityReferenceEdition = cache.getCurrentEditions( selectedSpecies );
         Calendar cal = Calendar.getInstance();
@@ -558,23 +601,29 @@ public class EnrichmentView implements Serializable {
         cutoffSeries.putExtra( "dashStyle", "shortdash" );
         cutoffSeries.putExtra( "color", "black" );
 
-        enrichmentResults.entrySet().stream().sorted( Map.Entry.comparingByKey() ).forEach( entry -> {
-                Edition edition = entry.getKey();
-                for ( GeneOntologyTerm term : termsToChart ) {
-                    EnrichmentResult er = entry.getValue().get( term );
-                    if ( er != null ) {
-                        SeriesExtra s = seriesMap.get( term );
-                        if ( s == null ) {
-                            s = new SeriesExtra( term.getGoId() );
-                            s.putExtra( "title", term.getName() );
-                            seriesMap.put( term, s );
-                        }
-                        s.addDataPoint( edition.getDate(), er.getPvalue() );
+        EnrichmentResultMatrix matrix = combinedAnalysis.getEnrichmentAnalysis().getResultMatrix();
+        List<GeneOntologyTerm> chartedTerms = termsToChart.stream()
+                .filter( term -> matrix.termOrdinal( term ) != -1 )
+                .collect( Collectors.toList() );
+        int[] rows = chartedTerms.stream().mapToInt( matrix::termOrdinal ).toArray();
+
+        for ( int e = 0; e < matrix.getEditions().size(); e++ ) {
+            Date date = matrix.getEditions().get( e ).getDate();
+            for ( int i = 0; i < rows.length; i++ ) {
+                if ( matrix.isTested( rows[i], e ) ) {
+                    GeneOntologyTerm term = chartedTerms.get( i );
+                    SeriesExtra s = seriesMap.get( term );
+                    if ( s == null ) {
+                        s = new SeriesExtra( term.getGoId() );
+                        s.putExtra( "title", term.getName() );
+                        seriesMap.put( term, s );
                     }
+                    s.addDataPoint( date, matrix.getPvalue( rows[i], e ) );
                 }
+            }
 
-            cutoffSeries.addDataPoint( edition.getDate(), combinedAnalysis.getEnrichmentAnalysis().getCutoff( edition ) );
-        } );
+            cutoffSeries.addDataPoint( date, matrix.getCutoff( e ) );
+        }
 
         ChartValues cv = new ChartValues("Enrichment Results" ,"P-Value", "Date" );
 
@@ -439,19 +439,15 @@ public class GeneView implements Serializable {
         averageInferredSeries.putExtra( "color", "#0060B5" );
         averageInferredSeries.putExtra( "marker", ImmutableMap.of("enabled", false) );
 
-        Set<GeneOntologyTerm> compareDirectGOSet = rawData.get( currentEdition ).entrySet().stream()
-                .filter( e -> e.getValue().stream().anyMatch( FullAnnotation :: isDirect ) )
-                .map( Entry::getKey )
-                .collect( Collectors.toSet());
-        Set<GeneOntologyTerm> compareGOSet =rawData.get( currentEdition ).keySet();
+        // Terms as sorted ids, compared with a merge rather than hashing every edition's terms
+        int[] compareDirectGOSet = termIds( rawData.get( currentEdition ), true );
+        int[] compareGOSet = termIds( rawData.get( currentEdition ), false );
         for ( Entry<Edition, Map<GeneOntologyTerm, Set<FullAnnotation>>> entry : rawData.entrySet() ) {
             Edition ed = entry.getKey();
-            inferredSeries.addDataPoint( ed.getDate(), Jaccard.similarity( entry.getValue().keySet(), compareGOSet ) );
-            directSeries.addDataPoint( ed.getDate(), Jaccard.similarity( entry.getValue().entrySet().stream()
-                            .filter( e -> e.getValue().stream().anyMatch( FullAnnotation :: isDirect ) )
-                            .map( Entry::getKey )
-                            .collect( Collectors.toSet()),
-                    compareDirectGOSet ) );
+            inferredSeries.addDataPoint( ed.getDate(),
+                    Jaccard.similarity( termIds( entry.getValue(), false ), compareGOSet ) );
+            directSeries.addDataPoint( ed.getDate(),
+                    Jaccard.similarity( termIds( entry.getValue(), true ), compareDirectGOSet ) );
 
             // Averages
             Aggregate agg = cache.getAggregate( ed );
@@ -471,6 +467,18 @@ public class GeneView implements Serializable {
         RequestContext.getCurrentInstance().addCallbackParam( "HC", new Gson().toJson( hcGsonMap ) );
     }
 
+    /**
+     * @param directOnly only terms with a direct annotation
+     * @return sorted ids of annotated terms
+     */
+    private static int[] termIds( Map<GeneOntologyTerm, Set<FullAnnotation>> annotations, boolean directOnly ) {
+        return annotations.entrySet().stream()
+                .filter( e -> !directOnly || e.getValue().stream().anyMatch( FullAnnotation::isDirect ) )
+                .mapToInt( e -> e.getKey().getId() )
+                .sorted()
+                .toArray();
+    }
+
     /**
      * Entry point for fetching the similarity chart
      */
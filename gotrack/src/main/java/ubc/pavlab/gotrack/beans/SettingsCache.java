@@ -28,6 +28,10 @@ import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Named;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Holds settings from the properties file. Alter the static fields here to meet your requirements if necessary.
@@ -54,6 +58,18 @@ public class SettingsCache implements Serializable {
     private static final String UPDATE_POP_TABLE = "gotrack.updatePopularTable";
     private static final String MIN_RELEASE = "gotrack.minRelease";
     private static final String DRY_RUN = "gotrack.dryRun";
+    private static final String CACHE_THREADS = "gotrack.cacheThreads";
+    private static final String ONTOLOGY_THREADS = "gotrack.ontologyThreads";
+    private static final String ONTOLOGY_CONNECTIONS = "gotrack.ontologyConnections";
+    private static final String CACHE_SNAPSHOT = "gotrack.cacheSnapshot";
+    private static final String PRECOMPUTE_ANCESTORS = "gotrack.precomputeAncestors";
+    private static final String ANALYSIS_CACHE_WEIGHT = "gotrack.analysisCacheWeight";
+    private static final String ANALYSIS_CACHE_TTL = "gotrack.analysisCacheTtl";
+    private static final String JOB_THREADS = "gotrack.jobThreads";
+    private static final String JOB_QUEUE = "gotrack.jobQueue";
+    private static final String JOBS_PER_CLIENT = "gotrack.jobsPerClient";
+    private static final String JOB_RETENTION = "gotrack.jobRetention";
+    private static final String TRUSTED_PROXIES = "gotrack.trustedProxies";
 
     private PropertiesFile prop = new PropertiesFile();
 
@@ -114,6 +130,111 @@ public class SettingsCache implements Serializable {
         return release;
     }
 
+    /**
+     * @return maximum number of Cache warm-up stages to run concurrently
+     */
+    public int getCacheThreads() {
+        return intProperty( CACHE_THREADS, Math.min( 4, Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    /**
+     * @return number of GO editions to build concurrently while caching ontologies
+     */
+    public int getOntologyThreads() {
+        return intProperty( ONTOLOGY_THREADS, Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * @return maximum number of database connections held at once while caching ontologies
+     */
+    public int getOntologyConnections() {
+        return intProperty( ONTOLOGY_CONNECTIONS, 4 );
+    }
+
+    /**
+     * @return true if the ancestors of every term in every ontology should be computed at startup
+     */
+    public boolean isPrecomputeAncestors() {
+        String r = prop.getProperty( PRECOMPUTE_ANCESTORS );
+        return r != null && r.equals( "true" );
+    }
+
+    /**
+     * @return file used to snapshot the warmed Cache between restarts, null if snapshots are disabled
+     */
+    public Path getCacheSnapshot() {
+        String r = prop.getProperty( CACHE_SNAPSHOT );
+        return StringUtils.isBlank( r ) ? null : Paths.get( r.trim() );
+    }
+
+    /**
+     * @return total number of tested terms over all completed analyses kept for identical requests
+     */
+    public int getAnalysisCacheWeight() {
+        return intProperty( ANALYSIS_CACHE_WEIGHT, 2000000 );
+    }
+
+    /**
+     * @return minutes a completed analysis is kept after it was last requested
+     */
+    public int getAnalysisCacheTtl() {
+        return intProperty( ANALYSIS_CACHE_TTL, 60 );
+    }
+
+    /**
+     * @return number of analysis jobs submitted through the REST API which run at once
+     */
+    public int getJobThreads() {
+        return intProperty( JOB_THREADS, 2 );
+    }
+
+    /**
+     * @return number of analysis jobs which may wait for a thread before new ones are refused
+     */
+    public int getJobQueue() {
+        return intProperty( JOB_QUEUE, 16 );
+    }
+
+    /**
+     * @return number of unfinished analysis jobs a single client may have
+     */
+    public int getJobsPerClient() {
+        return intProperty( JOBS_PER_CLIENT, 2 );
+    }
+
+    /**
+     * @return minutes an analysis job and its result are kept after they were last polled
+     */
+    public int getJobRetention() {
+        return intProperty( JOB_RETENTION, 60 );
+    }
+
+    /**
+     * @return addresses of reverse proxies whose X-Forwarded-For header identifies the client of a request
+     */
+    public Set<String> getTrustedProxies() {
+        String r = prop.getProperty( TRUSTED_PROXIES );
+        Set<String> proxies = new HashSet<>();
+        if ( !StringUtils.isBlank( r ) ) {
+            for ( String token : r.split( "," ) ) {
+                if ( !token.trim().isEmpty() ) {
+                    proxies.add( token.trim() );
+                }
+            }
+        }
+        return proxies;
+    }
+
+    private int intProperty( String key, int defaultValue ) {
+        String r = prop.getProperty( key );
+        try {
+            int value = Integer.valueOf( r );
+            return value > 0 ? value : defaultValue;
+        } catch ( NumberFormatException e ) {
+            return defaultValue;
+        }
+    }
+
     public boolean contains( String key ) {
         return prop.contains( key );
     }
@@ -19,12 +19,17 @@
 
 package ubc.pavlab.gotrack.beans.service;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Sets;
 import org.apache.log4j.Logger;
 import ubc.pavlab.gotrack.analysis.*;
 import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.beans.SettingsCache;
 import ubc.pavlab.gotrack.model.*;
+import ubc.pavlab.gotrack.model.go.BulkPropagator;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+import ubc.pavlab.gotrack.model.hashkey.AnalysisKey;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -32,12 +37,13 @@ import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TODO Document Me
@@ -62,6 +68,13 @@ public class EnrichmentService implements Serializable {
     @Inject
     private AnnotationService annotationService;
 
+    @Inject
+    private SettingsCache settingsCache;
+
+    // Completed analyses by their inputs, weighed by number of tested terms; enrichment alone is kept without
+    // similarity and stability
+    private transient com.google.common.cache.Cache<AnalysisKey, CombinedAnalysis> analyses;
+
     public EnrichmentService() {
         log.info( "EnrichmentService created" );
     }
@@ -69,6 +82,13 @@ public class EnrichmentService implements Serializable {
     @PostConstruct
     public void init() {
         log.info( "EnrichmentService init" );
+        analyses = CacheBuilder.newBuilder()
+                .maximumWeight( settingsCache.getAnalysisCacheWeight() )
+                .weigher( ( AnalysisKey key, CombinedAnalysis analysis ) ->
+                        1 + analysis.getEnrichmentAnalysis().getTotalResults() )
+                .expireAfterAccess( settingsCache.getAnalysisCacheTtl(), TimeUnit.MINUTES )
+                .recordStats()
+                .build();
     }
 
     @PreDestroy
@@ -82,14 +102,25 @@ public class EnrichmentService implements Serializable {
      * @param genes             hitlist
      * @param species           species id
      * @param enrichmentOptions Enrichment options
+     * @param similarityReferenceEdition edition the similarity analysis compares against, required
      * @param topN              number of top terms to use for top N series
      * @param statusPoller      poller for live status updates
      * @return Container class holding the enrichment and stability/similarity analyses
      */
     public CombinedAnalysis combinedAnalysis( Set<Gene> genes, Species species, EnrichmentAnalysisOptions enrichmentOptions, Edition similarityReferenceEdition, int topN, StatusPoller statusPoller ) {
 
+        if ( similarityReferenceEdition == null ) {
+            throw new IllegalArgumentException( "Combined analysis requires a similarity reference edition." );
+        }
+
+        AnalysisKey key = analysisKey( genes, species, enrichmentOptions, similarityReferenceEdition, topN );
+        CombinedAnalysis combinedAnalysis = cachedAnalysis( key, statusPoller );
+        if ( combinedAnalysis != null ) {
+            return combinedAnalysis;
+        }
+
         statusPoller.newStatus( "Starting Enrichment Analysis", 0 );
-        EnrichmentAnalysis analysis = enrichment( genes,
+        EnrichmentAnalysis analysis = runEnrichment( genes,
                 species,
                 enrichmentOptions.getMultipleTestCorrection(),
                 enrichmentOptions.getThreshold(),
@@ -98,6 +129,76 @@ public class EnrichmentService implements Serializable {
                 Sets.newHashSet( enrichmentOptions.getAspects() ),
                 statusPoller );
 
+        return cacheAnalysis( key, combinedAnalysis( analysis, similarityReferenceEdition, topN, statusPoller ) );
+
+    }
+
+    /**
+     * Runs enrichment/similarity/stability analyses on an edited hit list. Rather than starting over, the enrichment
+     * of the hit list before the edit is updated by the genes added and removed, unless the edit is so large that a
+     * full analysis is cheaper.
+     *
+     * @param previous          successful analysis of the hit list before the edit, run with the same options
+     * @param previousGenes     hitlist before the edit
+     * @param genes             hitlist
+     * @param enrichmentOptions Enrichment options
+     * @param similarityReferenceEdition edition the similarity analysis compares against, required
+     * @param topN              number of top terms to use for top N series
+     * @param statusPoller      poller for live status updates
+     * @return Container class holding the enrichment and stability/similarity analyses
+     */
+    public CombinedAnalysis combinedAnalysis( CombinedAnalysis previous, Set<Gene> previousGenes, Set<Gene> genes,
+                                              EnrichmentAnalysisOptions enrichmentOptions,
+                                              Edition similarityReferenceEdition, int topN,
+                                              StatusPoller statusPoller ) {
+        if ( similarityReferenceEdition == null ) {
+            throw new IllegalArgumentException( "Combined analysis requires a similarity reference edition." );
+        }
+        Species species = previous.getEnrichmentAnalysis().getCurrentSpecies();
+
+        Set<Gene> added = Sets.difference( genes, previousGenes );
+        Set<Gene> removed = Sets.difference( previousGenes, genes );
+
+        if ( genes.isEmpty() || genes.size() > MAX_GENESET_SIZE || added.size() + removed.size() >= genes.size() ) {
+            return combinedAnalysis( genes, species, enrichmentOptions, similarityReferenceEdition, topN,
+                    statusPoller );
+        }
+
+        AnalysisKey key = analysisKey( genes, species, enrichmentOptions, similarityReferenceEdition, topN );
+        CombinedAnalysis combinedAnalysis = cachedAnalysis( key, statusPoller );
+        if ( combinedAnalysis != null ) {
+            return combinedAnalysis;
+        }
+
+        log.info( "Updating enrichment analysis: " + added.size() + " genes added, " + removed.size() + " removed" );
+        statusPoller.newStatus( "Starting Enrichment Analysis", 0 );
+
+        Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> addedData = Collections.emptyMap();
+        if ( !added.isEmpty() ) {
+            addedData = retrieveData( added, species, Sets.newHashSet( enrichmentOptions.getAspects() ),
+                    statusPoller );
+            if ( addedData == null ) {
+                statusPoller.newStatus( "Failed", 100 );
+                return new CombinedAnalysis( null, null, null, false );
+            }
+        }
+
+        statusPoller.newStatus( "Updating Overrepresentation Analyses on edited editions...", 55 );
+        EnrichmentAnalysis analysis = new EnrichmentAnalysis( previous.getEnrichmentAnalysis(), addedData, removed,
+                cache );
+        statusPoller.completeStatus();
+
+        if ( analysis.getEditions().isEmpty() ) {
+            statusPoller.newStatus( "Failed", 100 );
+            return new CombinedAnalysis( null, null, null, false );
+        }
+
+        return cacheAnalysis( key, combinedAnalysis( analysis, similarityReferenceEdition, topN, statusPoller ) );
+    }
+
+    private CombinedAnalysis combinedAnalysis( EnrichmentAnalysis analysis, Edition similarityReferenceEdition,
+                                               int topN, StatusPoller statusPoller ) {
+
         if ( analysis == null ) {
             statusPoller.newStatus( "Failed", 100 );
             return new CombinedAnalysis( null, null, null, false );
@@ -116,11 +217,56 @@ public class EnrichmentService implements Serializable {
         StabilityAnalysis stabilityAnalysis = new StabilityAnalysis( analysis );
         statusPoller.completeStatus();
         log.info( "Analysis Complete" );
+        log.debug( HyperGeometricCache.shared().report() );
 
         return new CombinedAnalysis( analysis, stabilityAnalysis, similarityAnalysis, true );
 
     }
 
+    private AnalysisKey analysisKey( Set<Gene> genes, Species species, EnrichmentAnalysisOptions enrichmentOptions,
+                                     Edition similarityReferenceEdition, int topN ) {
+        return new AnalysisKey( AnalysisKey.Kind.COMBINED, species, cache.getCurrentEditions( species ), genes,
+                enrichmentOptions.getAspects(), enrichmentOptions.getMultipleTestCorrection(),
+                enrichmentOptions.getThreshold(),
+                enrichmentOptions.getMinAnnotatedPopulation(), enrichmentOptions.getMaxAnnotatedPopulation(),
+                similarityReferenceEdition, topN );
+    }
+
+    /**
+     * The hit is reported without advancing the poller, callers report their own steps after the analysis.
+     *
+     * @return analysis previously completed for identical inputs, null if there is none
+     */
+    private CombinedAnalysis cachedAnalysis( AnalysisKey key, StatusPoller statusPoller ) {
+        CombinedAnalysis combinedAnalysis = analyses.getIfPresent( key );
+        if ( combinedAnalysis != null ) {
+            log.info( "Reusing analysis of identical request: " + key );
+            statusPoller.newStatus( "Loaded results of an identical analysis", statusPoller.getProgress() );
+            statusPoller.completeStatus();
+        }
+        return combinedAnalysis;
+    }
+
+    /**
+     * Keep a successful analysis for identical requests.
+     *
+     * @return the analysis
+     */
+    private CombinedAnalysis cacheAnalysis( AnalysisKey key, CombinedAnalysis combinedAnalysis ) {
+        if ( combinedAnalysis.isSuccess() ) {
+            analyses.put( key, combinedAnalysis );
+        }
+        log.debug( "Analysis cache: " + analyses.stats() );
+        return combinedAnalysis;
+    }
+
+    /**
+     * @return hit and eviction statistics of completed analyses kept for identical requests
+     */
+    public CacheStats getAnalysisCacheStats() {
+        return analyses.stats();
+    }
+
     /**
      * Runs enrichment/similarity/stability analyses given input settings.
      *
@@ -137,6 +283,24 @@ public class EnrichmentService implements Serializable {
     public EnrichmentAnalysis enrichment( Set<Gene> genes, Species species, MultipleTestCorrection mtc, double thresh, int min,
                                           int max, Set<Aspect> aspects, StatusPoller statusPoller ) {
 
+        AnalysisKey key = new AnalysisKey( AnalysisKey.Kind.ENRICHMENT, species, cache.getCurrentEditions( species ),
+                genes, aspects, mtc, thresh, min, max, null, 0 );
+        CombinedAnalysis combinedAnalysis = cachedAnalysis( key, statusPoller );
+        if ( combinedAnalysis != null ) {
+            return combinedAnalysis.getEnrichmentAnalysis();
+        }
+
+        EnrichmentAnalysis analysis = runEnrichment( genes, species, mtc, thresh, min, max, aspects, statusPoller );
+        if ( analysis != null ) {
+            cacheAnalysis( key, new CombinedAnalysis( analysis, null, null, true ) );
+        }
+        return analysis;
+    }
+
+    private EnrichmentAnalysis runEnrichment( Set<Gene> genes, Species species, MultipleTestCorrection mtc,
+                                              double thresh, int min, int max, Set<Aspect> aspects,
+                                              StatusPoller statusPoller ) {
+
         Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> geneGOMap = retrieveData( genes, species, aspects, statusPoller );
 
         if ( geneGOMap == null || geneGOMap.isEmpty() ) {
@@ -290,30 +454,13 @@ public class EnrichmentService implements Serializable {
      * Propagates the term sets in data retrieved from database
      *
      * @param geneGOMapFromDB unpropagated data retrieved straight from database
-     * @return Map adding the propagated terms into the term sets
+     * @return Map adding the propagated terms into the term sets, identical term sets share the same immutable set
      */
     private Map<Gene, Map<Edition, Set<GeneOntologyTerm>>> propagate(
             Map<Gene, Map<Edition, Set<GeneOntologyTerm>>> geneGOMapFromDB ) {
-        Map<Gene, Map<Edition, Set<GeneOntologyTerm>>> propagatedData = new HashMap<>();
-        for ( Entry<Gene, Map<Edition, Set<GeneOntologyTerm>>> geneEntry : geneGOMapFromDB.entrySet() ) {
-            Gene g = geneEntry.getKey();
-            Map<Edition, Set<GeneOntologyTerm>> propagatedSeries = new HashMap<>();
-            propagatedData.put( g, propagatedSeries );
-            Map<Edition, Set<GeneOntologyTerm>> series = geneEntry.getValue();
-            for ( Entry<Edition, Set<GeneOntologyTerm>> editionEntry : series.entrySet() ) {
-                Edition ed = editionEntry.getKey();
-                Set<GeneOntologyTerm> propagatedTerms = GeneOntologyTerm.propagate( editionEntry.getValue().stream() ).collect( Collectors.toSet() );
-
-                if ( propagatedTerms == null ) {
-                    // No ontology exists for this edition
-                } else {
-                    propagatedSeries.put( ed, propagatedTerms );
-                }
-
-            }
-
-        }
-        // cache.ontologyStats();
+        BulkPropagator propagator = new BulkPropagator();
+        Map<Gene, Map<Edition, Set<GeneOntologyTerm>>> propagatedData = propagator.propagate( geneGOMapFromDB );
+        log.info( "Propagated " + propagator.getRequests() + " term sets, " + propagator.getHits() + " reused" );
         return propagatedData;
     }
 
@@ -359,22 +506,32 @@ public class EnrichmentService implements Serializable {
      * @param min     minimum geneset size a specific term must have to be included in results
      * @param max     maximum geneset size a specific term must have to be included in results
      * @param aspects only add these aspects, ignore filter if null or empty
+     * @param statusPoller poller for live status updates
      * @return Enrichment Results
      */
     public EnrichmentAnalysis enrichment( Set<Edition> eds, Set<Gene> genes, Species species,
-                                          MultipleTestCorrection mtc, double thresh, int min, int max, Set<Aspect> aspects ) {
+                                          MultipleTestCorrection mtc, double thresh, int min, int max, Set<Aspect> aspects,
+                                          StatusPoller statusPoller ) {
 
         Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> geneGOMap = new HashMap<>();
 
+        int retrieved = 0;
         for ( Edition ed : eds ) {
+            statusPoller.newStatus( "Retrieving Gene Information for edition " + ed.getEdition() + "...",
+                    10 + 40 * retrieved++ / eds.size() );
             geneGOMap.put( ed, retrieveData( ed, genes, aspects ) );
+            statusPoller.completeStatus();
         }
 
         if ( geneGOMap.isEmpty() ) {
             return null;
         }
 
-        return new EnrichmentAnalysis( geneGOMap, min, max, mtc, thresh, cache, species );
+        statusPoller.newStatus( "Running Overrepresentation Analyses...", 55 );
+        EnrichmentAnalysis analysis = new EnrichmentAnalysis( geneGOMap, min, max, mtc, thresh, cache, species );
+        statusPoller.completeStatus();
+
+        return analysis;
     }
 
     /**
@@ -405,7 +562,7 @@ public class EnrichmentService implements Serializable {
 
         Enrichment<GeneOntologyTerm, Gene> enrichment = new Enrichment<>( mtc, thresh, min, max );
 
-        enrichment.runAnalysis( CompletePopulation.standardCompletePopulation( data ), population );
+        enrichment.runAnalysis( CompletePopulation.denseCompletePopulation( data ), population );
 
         return enrichment;
     }
@@ -454,8 +611,9 @@ public class EnrichmentService implements Serializable {
 
                 geneGOMapFromDB = annotationService.fetchSingleEnrichmentData( ed, genesToLoad );
 
+                BulkPropagator propagator = new BulkPropagator();
                 for ( Entry<Gene, Set<GeneOntologyTerm>> geneEntry : geneGOMapFromDB.entrySet() ) {
-                    addGeneData( geneEntry.getKey(), GeneOntologyTerm.propagate( geneEntry.getValue().stream() ).collect( Collectors.toSet() ), filterAspect, geneGOMap );
+                    addGeneData( geneEntry.getKey(), propagator.propagate( ed.getGoEdition(), geneEntry.getValue() ), filterAspect, geneGOMap );
                 }
 
                 log.info( "Retrieved (" + genesToLoad.size() + ") genes from db and ("
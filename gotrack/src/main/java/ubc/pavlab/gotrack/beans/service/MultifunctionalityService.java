@@ -26,6 +26,7 @@ import org.apache.log4j.Logger;
 import ubc.pavlab.gotrack.beans.Cache;
 import ubc.pavlab.gotrack.model.Edition;
 import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.go.BulkPropagator;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
 
 import javax.annotation.PostConstruct;
@@ -143,8 +144,10 @@ public class MultifunctionalityService implements Serializable {
             Map<Edition, Set<GeneOntologyTerm>> map ) {
         Map<Edition, Set<GeneOntologyTerm>> propagatedData = new HashMap<>();
 
+        // Annotations rarely change between editions, reuse propagated sets
+        BulkPropagator propagator = new BulkPropagator();
         for ( Entry<Edition, Set<GeneOntologyTerm>> entry : map.entrySet() ) {
-            propagatedData.put( entry.getKey(), GeneOntologyTerm.propagate( entry.getValue().stream() ).collect( Collectors.toSet() ) );
+            propagatedData.put( entry.getKey(), propagator.propagate( entry.getKey().getGoEdition(), entry.getValue() ) );
         }
         return propagatedData;
     }
@@ -96,4 +96,10 @@ public interface CacheDAO {
      */
     List<GODefinitionDTO> getGODefinitions() throws DAOException;
 
+    /**
+     * Retrieve row count, max id and creation time of the pre-processed and gene tables, these change whenever the
+     * tables are re-populated
+     */
+    List<TableStampDTO> getTableStamps() throws DAOException;
+
 }
@@ -108,6 +108,10 @@ public class CacheDAOImpl implements CacheDAO {
     // Evidence
     private static final String SQL_EVIDENCE = "SELECT evidence, description, category, curated FROM " + SQL_EVIDENCE_CATEGORY;
 
+    // Table Stamps
+    private static final String[] SQL_STAMPED_TABLES = new String[] { SQL_EDITION_AGGREGATE, SQL_ANNOTATION_COUNT, SQL_ACCESSION, SQL_SYNONYM };
+    private static final String SQL_TABLE_STAMP = "SELECT COUNT(*) as row_count, MAX(id) as max_id, (SELECT create_time FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?) as created FROM %s";
+
     // Vars ---------------------------------------------------------------------------------------
 
     private DAOFactory daoFactory;
@@ -579,4 +583,39 @@ public class CacheDAOImpl implements CacheDAO {
 
         return results;
     }
+
+    @Override
+    public List<TableStampDTO> getTableStamps() throws DAOException {
+        Connection connection = null;
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+        List<TableStampDTO> results = new ArrayList<>();
+
+        try {
+            connection = daoFactory.getConnection();
+            for ( String table : SQL_STAMPED_TABLES ) {
+                preparedStatement = connection.prepareStatement( String.format( SQL_TABLE_STAMP, table ) );
+                DAOUtil.setValues( preparedStatement, table );
+                log.debug( preparedStatement );
+                resultSet = preparedStatement.executeQuery();
+                while ( resultSet.next() ) {
+                    // MAX(id) is NULL for an empty table
+                    Integer maxId = resultSet.getInt( "max_id" );
+                    if ( resultSet.wasNull() ) {
+                        maxId = null;
+                    }
+                    results.add( new TableStampDTO( table, resultSet.getLong( "row_count" ), maxId,
+                            resultSet.getTimestamp( "created" ) ) );
+                }
+                resultSet.close();
+                preparedStatement.close();
+            }
+        } catch ( SQLException e ) {
+            throw new DAOException( e );
+        } finally {
+            close( connection, preparedStatement, resultSet );
+        }
+
+        return results;
+    }
 }
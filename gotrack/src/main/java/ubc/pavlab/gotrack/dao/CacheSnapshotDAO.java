@@ -0,0 +1,484 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.dao;
+
+import org.apache.log4j.Logger;
+import ubc.pavlab.gotrack.model.dto.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * CacheDAO backed by a binary snapshot of every query made while warming the application Cache.
+ * <p>
+ * In recording mode each query is passed through to a live CacheDAO and its result is compressed into the snapshot
+ * as it returns, so recording does not hold on to the DTOs themselves. In replay mode, queries are answered from a
+ * snapshot file written by a previous recording; results are kept compressed and decoded on request.
+ * <p>
+ * A snapshot is only valid for the database state it was recorded against, this is captured by a key
+ * (see {@link #key(CacheDAO, int[], int)}) which must match for a file to be restored.
+ *
+ * @author mjacobson
+ */
+public class CacheSnapshotDAO implements CacheDAO {
+
+    private static final Logger log = Logger.getLogger( CacheSnapshotDAO.class );
+
+    private static final int MAGIC = 0x474F5452; // GOTR
+    private static final int VERSION = 1;
+
+    private final CacheDAO delegate;
+    private final String key;
+    private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    private interface RowWriter<T> {
+        void write( DataOutputStream out, T row ) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RowReader<T> {
+        T read( DataInputStream in ) throws IOException;
+    }
+
+    /**
+     * Create a recording snapshot.
+     *
+     * @param delegate live CacheDAO to answer queries
+     * @param key      state of the database, see {@link #key(CacheDAO, int[], int)}
+     */
+    public CacheSnapshotDAO( CacheDAO delegate, String key ) {
+        this.delegate = delegate;
+        this.key = key;
+    }
+
+    private CacheSnapshotDAO( String key, Map<String, byte[]> entries ) {
+        this.delegate = null;
+        this.key = key;
+        this.entries.putAll( entries );
+    }
+
+    /**
+     * Summarize the state of the database as far as the Cache is concerned: the settings limiting what is loaded,
+     * the current edition of each species, the latest GO edition and the size and creation time of the replayed
+     * pre-processed and gene tables, so that re-populating those without a new edition still invalidates the
+     * snapshot. Cheap compared to warming the Cache.
+     */
+    public static String key( CacheDAO cacheDAO, int[] speciesRestrictions, int minRelease ) {
+        StringBuilder sb = new StringBuilder();
+        sb.append( "restrictions=" ).append( Arrays.toString( speciesRestrictions ) );
+        sb.append( ";minRelease=" ).append( minRelease );
+        int maxGOEdition = 0;
+        for ( GOEditionDTO dto : cacheDAO.getAllGOEditions() ) {
+            maxGOEdition = Math.max( maxGOEdition, dto.getId() );
+        }
+        sb.append( ";goEdition=" ).append( maxGOEdition );
+        for ( EditionDTO dto : cacheDAO.getCurrentEditions( speciesRestrictions ) ) {
+            sb.append( ";" ).append( dto.getSpecies() ).append( ":" ).append( dto.getEdition() )
+                    .append( ":" ).append( dto.getGoEditionId() );
+        }
+        for ( TableStampDTO dto : cacheDAO.getTableStamps() ) {
+            sb.append( ";" ).append( dto.getTable() ).append( ":" ).append( dto.getRowCount() )
+                    .append( ":" ).append( dto.getMaxId() )
+                    .append( ":" ).append( dto.getCreated() == null ? null : dto.getCreated().getTime() );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Load a snapshot for replay.
+     *
+     * @param path snapshot file
+     * @param key  expected state of the database
+     * @return snapshot, or null if the file does not exist, is unreadable or was recorded against a different key
+     */
+    public static CacheSnapshotDAO restore( Path path, String key ) {
+        if ( !Files.isRegularFile( path ) ) {
+            log.info( "No cache snapshot found at: " + path );
+            return null;
+        }
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ) ) ) ) {
+            if ( in.readInt() != MAGIC ) {
+                log.warn( "Ignoring cache snapshot, not a snapshot file: " + path );
+                return null;
+            }
+            int version = in.readInt();
+            if ( version != VERSION ) {
+                log.info( "Ignoring cache snapshot, format version " + version + " != " + VERSION );
+                return null;
+            }
+            String snapshotKey = readString( in );
+            if ( !snapshotKey.equals( key ) ) {
+                log.info( "Ignoring stale cache snapshot (" + snapshotKey + "), database is now (" + key + ")" );
+                return null;
+            }
+            int size = in.readInt();
+            Map<String, byte[]> entries = new HashMap<>( size * 2 );
+            for ( int i = 0; i < size; i++ ) {
+                String name = readString( in );
+                byte[] data = new byte[in.readInt()];
+                in.readFully( data );
+                entries.put( name, data );
+            }
+            log.info( "Restored cache snapshot with " + size + " entries from: " + path );
+            return new CacheSnapshotDAO( key, entries );
+        } catch ( IOException e ) {
+            log.warn( "Ignoring unreadable cache snapshot: " + path, e );
+            return null;
+        }
+    }
+
+    /**
+     * Write everything recorded so far. The file is written beside the target and moved into place so a partially
+     * written snapshot is never restored.
+     *
+     * @param path snapshot file
+     */
+    public void write( Path path ) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if ( parent != null ) {
+            Files.createDirectories( parent );
+        }
+        Path tmp = Files.createTempFile( parent, path.getFileName().toString(), ".tmp" );
+        try {
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) ) {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                writeString( out, key );
+                Map<String, byte[]> snapshot = new TreeMap<>( entries );
+                out.writeInt( snapshot.size() );
+                for ( Map.Entry<String, byte[]> entry : snapshot.entrySet() ) {
+                    writeString( out, entry.getKey() );
+                    out.writeInt( entry.getValue().length );
+                    out.write( entry.getValue() );
+                }
+            }
+            Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            Files.deleteIfExists( tmp );
+        }
+        log.info( "Wrote cache snapshot (" + Files.size( path ) / 1000000 + " MB) to: " + path );
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isRecording() {
+        return delegate != null;
+    }
+
+    private <T> List<T> query( String name, Supplier<List<T>> live, RowWriter<T> writer, RowReader<T> reader )
+            throws DAOException {
+        if ( delegate != null ) {
+            List<T> results = live.get();
+            entries.put( name, encode( results, writer ) );
+            return results;
+        }
+        byte[] data = entries.get( name );
+        if ( data == null ) {
+            throw new DAOException( "Cache snapshot has no data for: " + name );
+        }
+        return decode( data, reader );
+    }
+
+    private static <T> byte[] encode( List<T> rows, RowWriter<T> writer ) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( DataOutputStream out = new DataOutputStream( new GZIPOutputStream( bytes, 1 << 16 ) ) ) {
+            out.writeInt( rows.size() );
+            for ( T row : rows ) {
+                writer.write( out, row );
+            }
+        } catch ( IOException e ) {
+            throw new DAOException( e );
+        }
+        return bytes.toByteArray();
+    }
+
+    private static <T> List<T> decode( byte[] data, RowReader<T> reader ) {
+        try ( DataInputStream in = new DataInputStream(
+                new GZIPInputStream( new ByteArrayInputStream( data ), 1 << 16 ) ) ) {
+            int size = in.readInt();
+            List<T> rows = new ArrayList<>( size );
+            for ( int i = 0; i < size; i++ ) {
+                rows.add( reader.read( in ) );
+            }
+            return rows;
+        } catch ( IOException e ) {
+            throw new DAOException( e );
+        }
+    }
+
+    // Queries
+    // *********************************
+
+    @Override
+    public List<EditionDTO> getReleaseEditions( int release ) throws DAOException {
+        return query( "releaseEditions:" + release, () -> delegate.getReleaseEditions( release ),
+                CacheSnapshotDAO::writeEdition, CacheSnapshotDAO::readEdition );
+    }
+
+    @Override
+    public List<EditionDTO> getAllEditions( int[] speciesRestrictions ) throws DAOException {
+        return query( "allEditions", () -> delegate.getAllEditions( speciesRestrictions ),
+                CacheSnapshotDAO::writeEdition, CacheSnapshotDAO::readEdition );
+    }
+
+    @Override
+    public List<EditionDTO> getCurrentEditions( int[] speciesRestrictions ) throws DAOException {
+        return query( "currentEditions", () -> delegate.getCurrentEditions( speciesRestrictions ),
+                CacheSnapshotDAO::writeEdition, CacheSnapshotDAO::readEdition );
+    }
+
+    @Override
+    public List<AnnotationCountDTO> getGOAnnotationCounts( int speciesId, int minEdition ) throws DAOException {
+        return query( "annotationCounts:" + speciesId + ":" + minEdition,
+                () -> delegate.getGOAnnotationCounts( speciesId, minEdition ),
+                ( out, dto ) -> {
+                    writeInteger( out, dto.getEdition() );
+                    writeString( out, dto.getGoId() );
+                    writeInteger( out, dto.getDirectCount() );
+                    writeInteger( out, dto.getInferredCount() );
+                },
+                in -> new AnnotationCountDTO( readInteger( in ), readString( in ), readInteger( in ),
+                        readInteger( in ) ) );
+    }
+
+    @Override
+    public List<AggregateDTO> getAggregates( int[] speciesRestrictions ) throws DAOException {
+        return query( "aggregates", () -> delegate.getAggregates( speciesRestrictions ),
+                ( out, dto ) -> {
+                    writeInteger( out, dto.getSpecies() );
+                    writeInteger( out, dto.getEdition() );
+                    writeInteger( out, dto.getGeneCount() );
+                    writeDouble( out, dto.getAvgDirectTermsForGene() );
+                    writeDouble( out, dto.getAvgInferredTermsForGene() );
+                    writeDouble( out, dto.getAvgInferredGenesForTerm() );
+                    writeDouble( out, dto.getAvgMultifunctionality() );
+                    writeDouble( out, dto.getAvgDirectSimilarity() );
+                    writeDouble( out, dto.getAvgInferredSimilarity() );
+                },
+                in -> new AggregateDTO( readInteger( in ), readInteger( in ), readInteger( in ), readDouble( in ),
+                        readDouble( in ), readDouble( in ), readDouble( in ), readDouble( in ),
+                        readDouble( in ) ) );
+    }
+
+    @Override
+    public List<SynonymDTO> getSynonyms( int[] speciesRestrictions ) throws DAOException {
+        return query( "synonyms", () -> delegate.getSynonyms( speciesRestrictions ),
+                ( out, dto ) -> {
+                    out.writeInt( dto.getId() );
+                    writeString( out, dto.getSynonym() );
+                },
+                in -> new SynonymDTO( in.readInt(), readString( in ) ) );
+    }
+
+    @Override
+    public List<GOTermDTO> getGoTerms( int goEdition ) throws DAOException {
+        return query( "goTerms:" + goEdition, () -> delegate.getGoTerms( goEdition ),
+                ( out, dto ) -> {
+                    writeInteger( out, dto.getGoEdition() );
+                    writeString( out, dto.getGoId() );
+                    writeString( out, dto.getName() );
+                    writeString( out, dto.getAspect() );
+                    out.writeBoolean( dto.isObsolete() );
+                },
+                in -> new GOTermDTO( readInteger( in ), readString( in ), readString( in ), readString( in ),
+                        in.readBoolean() ) );
+    }
+
+    @Override
+    public List<AdjacencyDTO> getAdjacencies( int goEdition ) throws DAOException {
+        return query( "adjacencies:" + goEdition, () -> delegate.getAdjacencies( goEdition ),
+                CacheSnapshotDAO::writeAdjacency, CacheSnapshotDAO::readAdjacency );
+    }
+
+    @Override
+    public List<AdjacencyDTO> getAlternates( int goEdition ) throws DAOException {
+        return query( "alternates:" + goEdition, () -> delegate.getAlternates( goEdition ),
+                CacheSnapshotDAO::writeAdjacency, CacheSnapshotDAO::readAdjacency );
+    }
+
+    @Override
+    public List<EvidenceDTO> getEvidence() throws DAOException {
+        return query( "evidence", () -> delegate.getEvidence(),
+                ( out, dto ) -> {
+                    writeString( out, dto.getEvidence() );
+                    writeString( out, dto.getDescription() );
+                    writeString( out, dto.getCategory() );
+                    writeBoolean( out, dto.getCurated() );
+                },
+                in -> new EvidenceDTO( readString( in ), readString( in ), readString( in ), readBoolean( in ) ) );
+    }
+
+    @Override
+    public List<AccessionDTO> getAccessions( int[] speciesRestrictions ) throws DAOException {
+        return query( "accessions", () -> delegate.getAccessions( speciesRestrictions ),
+                ( out, dto ) -> {
+                    out.writeInt( dto.getId() );
+                    out.writeInt( dto.getSpeciesId() );
+                    out.writeInt( dto.getEdition() );
+                    writeString( out, dto.getAccession() );
+                    writeString( out, dto.getSymbol() );
+                    writeString( out, dto.getName() );
+                    writeString( out, dto.getSubset() );
+                },
+                in -> new AccessionDTO( in.readInt(), in.readInt(), in.readInt(), readString( in ), readString( in ),
+                        readString( in ), readString( in ) ) );
+    }
+
+    @Override
+    public List<GOEditionDTO> getAllGOEditions() throws DAOException {
+        return query( "goEditions", () -> delegate.getAllGOEditions(),
+                ( out, dto ) -> {
+                    writeInteger( out, dto.getId() );
+                    writeDate( out, dto.getDate() );
+                },
+                in -> new GOEditionDTO( readInteger( in ), readDate( in ) ) );
+    }
+
+    @Override
+    public List<GODefinitionDTO> getGODefinitions() throws DAOException {
+        return query( "goDefinitions", () -> delegate.getGODefinitions(),
+                ( out, dto ) -> {
+                    writeString( out, dto.getGoId() );
+                    writeString( out, dto.getDefinition() );
+                },
+                in -> new GODefinitionDTO( readString( in ), readString( in ) ) );
+    }
+
+    @Override
+    public List<TableStampDTO> getTableStamps() throws DAOException {
+        return query( "tableStamps", () -> delegate.getTableStamps(),
+                ( out, dto ) -> {
+                    writeString( out, dto.getTable() );
+                    out.writeLong( dto.getRowCount() );
+                    writeInteger( out, dto.getMaxId() );
+                    out.writeBoolean( dto.getCreated() != null );
+                    if ( dto.getCreated() != null ) {
+                        out.writeLong( dto.getCreated().getTime() );
+                    }
+                },
+                in -> new TableStampDTO( readString( in ), in.readLong(), readInteger( in ),
+                        in.readBoolean() ? new Timestamp( in.readLong() ) : null ) );
+    }
+
+    // Row encodings
+    // *********************************
+
+    private static void writeEdition( DataOutputStream out, EditionDTO dto ) throws IOException {
+        writeInteger( out, dto.getSpecies() );
+        writeInteger( out, dto.getEdition() );
+        writeDate( out, dto.getDate() );
+        writeInteger( out, dto.getRelease() );
+        writeInteger( out, dto.getGoEditionId() );
+    }
+
+    private static EditionDTO readEdition( DataInputStream in ) throws IOException {
+        return new EditionDTO( readInteger( in ), readInteger( in ), readDate( in ), readInteger( in ),
+                readInteger( in ) );
+    }
+
+    private static void writeAdjacency( DataOutputStream out, AdjacencyDTO dto ) throws IOException {
+        writeInteger( out, dto.getGoEdition() );
+        writeString( out, dto.getChild() );
+        writeString( out, dto.getParent() );
+        writeString( out, dto.getType() );
+    }
+
+    private static AdjacencyDTO readAdjacency( DataInputStream in ) throws IOException {
+        return new AdjacencyDTO( readInteger( in ), readString( in ), readString( in ), readString( in ) );
+    }
+
+    // Nullable values are prefixed by a presence flag
+    // *********************************
+
+    private static void writeString( DataOutputStream out, String s ) throws IOException {
+        if ( s == null ) {
+            out.writeInt( -1 );
+            return;
+        }
+        byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException {
+        int length = in.readInt();
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void writeInteger( DataOutputStream out, Integer i ) throws IOException {
+        out.writeBoolean( i != null );
+        if ( i != null ) {
+            out.writeInt( i );
+        }
+    }
+
+    private static Integer readInteger( DataInputStream in ) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static void writeDouble( DataOutputStream out, Double d ) throws IOException {
+        out.writeBoolean( d != null );
+        if ( d != null ) {
+            out.writeDouble( d );
+        }
+    }
+
+    private static Double readDouble( DataInputStream in ) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+
+    private static void writeBoolean( DataOutputStream out, Boolean b ) throws IOException {
+        out.writeByte( b == null ? -1 : b ? 1 : 0 );
+    }
+
+    private static Boolean readBoolean( DataInputStream in ) throws IOException {
+        byte b = in.readByte();
+        return b < 0 ? null : b == 1;
+    }
+
+    private static void writeDate( DataOutputStream out, Date d ) throws IOException {
+        out.writeBoolean( d != null );
+        if ( d != null ) {
+            out.writeLong( d.getTime() );
+        }
+    }
+
+    private static Date readDate( DataInputStream in ) throws IOException {
+        return in.readBoolean() ? new Date( in.readLong() ) : null;
+    }
+
+}
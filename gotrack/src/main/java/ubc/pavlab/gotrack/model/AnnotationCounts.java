@@ -0,0 +1,154 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+import ubc.pavlab.gotrack.model.go.GeneOntology;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Direct and inferred annotation counts of every term in a single edition, stored as primitives.
+ * <p>
+ * Terms are keyed by their integer id and mapped to a dense ordinal indexing the count arrays. A missing count is
+ * stored as -1 and returned as null.
+ * <p>
+ * Not thread-safe while being built; once built it is only read.
+ *
+ * @author mjacobson
+ */
+public final class AnnotationCounts {
+
+    private static final int MISSING = -1;
+
+    private final TIntIntHashMap ordinals;
+    private int[] direct;
+    private int[] inferred;
+    private int size = 0;
+
+    public AnnotationCounts() {
+        this( 16 );
+    }
+
+    /**
+     * @param expectedTerms expected number of terms, used to size the storage
+     */
+    public AnnotationCounts( int expectedTerms ) {
+        expectedTerms = Math.max( 1, expectedTerms );
+        this.ordinals = new TIntIntHashMap( expectedTerms, 0.5f, -1, MISSING );
+        this.direct = new int[expectedTerms];
+        this.inferred = new int[expectedTerms];
+    }
+
+    /**
+     * Set the counts for a term, a null count leaves any previous value in place.
+     */
+    public void put( GeneOntologyTerm t, Integer directCount, Integer inferredCount ) {
+        int ordinal = ordinals.get( t.getId() );
+        if ( ordinal == MISSING ) {
+            ordinal = size++;
+            if ( ordinal == direct.length ) {
+                int capacity = direct.length + ( direct.length >> 1 ) + 1;
+                direct = Arrays.copyOf( direct, capacity );
+                inferred = Arrays.copyOf( inferred, capacity );
+            }
+            direct[ordinal] = MISSING;
+            inferred[ordinal] = MISSING;
+            ordinals.put( t.getId(), ordinal );
+        }
+        if ( directCount != null ) {
+            direct[ordinal] = directCount;
+        }
+        if ( inferredCount != null ) {
+            inferred[ordinal] = inferredCount;
+        }
+    }
+
+    /**
+     * Release unused capacity once all counts have been added.
+     */
+    public void trim() {
+        ordinals.compact();
+        direct = Arrays.copyOf( direct, size );
+        inferred = Arrays.copyOf( inferred, size );
+    }
+
+    /**
+     * @return count of genes annotated with this term, null if unknown
+     */
+    public Integer getDirect( GeneOntologyTerm t ) {
+        return get( direct, t );
+    }
+
+    /**
+     * @return count of genes annotated with this term or any of its children, null if unknown
+     */
+    public Integer getInferred( GeneOntologyTerm t ) {
+        return get( inferred, t );
+    }
+
+    /**
+     * @return number of terms with counts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param ontology ontology used to resolve term ids
+     * @return new map of term to direct count
+     */
+    public Map<GeneOntologyTerm, Integer> directMap( GeneOntology ontology ) {
+        return toMap( direct, ontology );
+    }
+
+    /**
+     * @param ontology ontology used to resolve term ids
+     * @return new map of term to inferred count
+     */
+    public Map<GeneOntologyTerm, Integer> inferredMap( GeneOntology ontology ) {
+        return toMap( inferred, ontology );
+    }
+
+    private Integer get( int[] counts, GeneOntologyTerm t ) {
+        int ordinal = ordinals.get( t.getId() );
+        if ( ordinal == MISSING ) {
+            return null;
+        }
+        int count = counts[ordinal];
+        return count == MISSING ? null : count;
+    }
+
+    private Map<GeneOntologyTerm, Integer> toMap( int[] counts, GeneOntology ontology ) {
+        Map<GeneOntologyTerm, Integer> map = new HashMap<>( size * 2 );
+        ordinals.forEachEntry( ( id, ordinal ) -> {
+            GeneOntologyTerm t = ontology.getTerm( id );
+            if ( t != null && counts[ordinal] != MISSING ) {
+                map.put( t, counts[ordinal] );
+            }
+            return true;
+        } );
+        return map;
+    }
+
+}
@@ -21,6 +21,7 @@ package ubc.pavlab.gotrack.model;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 /**
  * Used to acquire live updates from running methods which can then be displayed using EL in the front-end. Assume not
@@ -36,6 +37,7 @@ public class StatusPoller {
     private final String completionAppend;
     private boolean previousHasCompleted = false;
     private String currentStatus = "";
+    private volatile boolean cancelled = false;
 
     public StatusPoller( String completionAppend ) {
         this.completionAppend = completionAppend;
@@ -53,15 +55,33 @@ public class StatusPoller {
         this.progress = progress;
     }
 
+    /**
+     * @return copy of the statuses so far, safe to read while the method reporting to this poller goes on
+     */
     public synchronized List<String> getStatuses() {
-        return statuses;
+        return new ArrayList<>( statuses );
     }
 
     public synchronized String getCurrentStatus() {
         return currentStatus;
     }
 
+    /**
+     * Ask the method reporting to this poller to stop, it does so at its next status.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException if {@link #cancel()} was called
+     */
     public synchronized void newStatus( String status, int progress ) {
+        if ( cancelled ) throw new CancellationException( "Cancelled before: " + status );
         if ( progress > 100 ) throw new RuntimeException( "Progress cannot be > 100%" );
         if ( progress < this.progress ) throw new RuntimeException( "Progress cannot go backwards" );
         previousHasCompleted = false;
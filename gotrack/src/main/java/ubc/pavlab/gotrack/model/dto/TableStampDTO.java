@@ -0,0 +1,39 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model.dto;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.sql.Timestamp;
+
+/**
+ * Data Transfer Object for the size and creation time of a table, used to tell when its contents have been replaced
+ *
+ * @author mjacobson
+ */
+@Getter
+@RequiredArgsConstructor
+public final class TableStampDTO {
+    private final String table;
+    private final Long rowCount;
+    private final Integer maxId;
+    private final Timestamp created;
+}
@@ -0,0 +1,141 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model.go;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.log4j.Logger;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.GOEdition;
+
+import java.util.*;
+
+/**
+ * Propagates many term sets at once, such as the annotations of a gene list across all editions.
+ * <p>
+ * The annotations of a gene rarely change from one edition to the next, so each distinct set of terms is only
+ * propagated once per GO edition; repeated inputs get the same immutable result. Propagation fills a bit set over the
+ * ontology's terms which is reused between inputs.
+ * <p>
+ * Not thread-safe, meant to be used for the duration of a single bulk operation.
+ *
+ * @author mjacobson
+ */
+public class BulkPropagator {
+
+    private static final Logger log = Logger.getLogger( BulkPropagator.class );
+
+    private final boolean includePartOf;
+
+    private final Map<GOEdition, Map<Set<GeneOntologyTerm>, ImmutableSet<GeneOntologyTerm>>> memo = new HashMap<>();
+    private final Map<GeneOntology, BitSet> scratch = new IdentityHashMap<>();
+
+    private int requests = 0;
+    private int hits = 0;
+
+    public BulkPropagator() {
+        this( true );
+    }
+
+    BulkPropagator( boolean includePartOf ) {
+        this.includePartOf = includePartOf;
+    }
+
+    /**
+     * Propagate every term set in data.
+     *
+     * @param data unpropagated term sets by key and edition, must not be modified afterwards as the sets are used as
+     *             keys for reuse
+     * @return new map with the same keys and editions holding the propagated sets; equal inputs in the same GO edition
+     * share the same immutable set
+     */
+    public <K> Map<K, Map<Edition, Set<GeneOntologyTerm>>> propagate( Map<K, Map<Edition, Set<GeneOntologyTerm>>> data ) {
+        Map<K, Map<Edition, Set<GeneOntologyTerm>>> propagated = new HashMap<>( data.size() * 2 );
+        for ( Map.Entry<K, Map<Edition, Set<GeneOntologyTerm>>> entry : data.entrySet() ) {
+            Map<Edition, Set<GeneOntologyTerm>> series = new HashMap<>( entry.getValue().size() * 2 );
+            for ( Map.Entry<Edition, Set<GeneOntologyTerm>> editionEntry : entry.getValue().entrySet() ) {
+                series.put( editionEntry.getKey(),
+                        propagate( editionEntry.getKey().getGoEdition(), editionEntry.getValue() ) );
+            }
+            propagated.put( entry.getKey(), series );
+        }
+        log.debug( "Propagated " + requests + " term sets, reused " + hits );
+        return propagated;
+    }
+
+    /**
+     * @param goEdition GO edition the terms belong to
+     * @param terms     unpropagated terms, must not be modified afterwards
+     * @return terms and all of their ancestors
+     */
+    public ImmutableSet<GeneOntologyTerm> propagate( GOEdition goEdition, Set<GeneOntologyTerm> terms ) {
+        requests++;
+        Map<Set<GeneOntologyTerm>, ImmutableSet<GeneOntologyTerm>> editionMemo = memo.computeIfAbsent( goEdition,
+                k -> new HashMap<>() );
+        ImmutableSet<GeneOntologyTerm> result = editionMemo.get( terms );
+        if ( result != null ) {
+            hits++;
+            return result;
+        }
+        result = compute( terms );
+        editionMemo.put( terms, result );
+        return result;
+    }
+
+    /**
+     * @return number of term sets requested so far
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return number of requested term sets which reused a previous result
+     */
+    public int getHits() {
+        return hits;
+    }
+
+    private ImmutableSet<GeneOntologyTerm> compute( Set<GeneOntologyTerm> terms ) {
+        GeneOntology ontology = null;
+        for ( GeneOntologyTerm t : terms ) {
+            if ( t.getOntology() == null || ( ontology != null && ontology != t.getOntology() ) ) {
+                // Solitary terms or mixed ontologies, rare enough to take the general path
+                return ImmutableSet.copyOf( GeneOntologyTerm.propagate( terms.stream(), includePartOf ).iterator() );
+            }
+            ontology = t.getOntology();
+        }
+        if ( ontology == null ) {
+            return ImmutableSet.of();
+        }
+
+        BitSet bits = scratch.computeIfAbsent( ontology, o -> new BitSet( o.size() ) );
+        bits.clear();
+        for ( GeneOntologyTerm t : terms ) {
+            ontology.propagate( t.getOrdinal(), includePartOf, bits );
+        }
+
+        ImmutableSet.Builder<GeneOntologyTerm> builder = ImmutableSet.builder();
+        for ( int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i + 1 ) ) {
+            builder.add( ontology.term( i ) );
+        }
+        return builder.build();
+    }
+
+}
@@ -23,13 +23,18 @@ import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import com.google.common.collect.ImmutableSet;
 import org.apache.log4j.Logger;
 import ubc.pavlab.gotrack.model.GOEdition;
 
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 /**
- * Memory efficient Directed Acyclic Graph representing a Gene Ontology Structure
+ * Memory efficient Directed Acyclic Graph representing a Gene Ontology Structure. Relationships are collected on
+ * the terms while the ontology is being built and compacted into int arrays on {@link #freeze()}.
  * 
  * @author  mjacobson
  * @version $Id$
@@ -43,6 +48,33 @@ public class GeneOntology {
     private TIntObjectHashMap<GeneOntologyTerm> termMap = new TIntObjectHashMap<>();
     private TIntIntMap altMap = new TIntIntHashMap();
 
+    // Compressed sparse row adjacency built on freeze. Terms are numbered by a dense ordinal, the parents of the term
+    // with ordinal i are parentTargets[parentOffsets[i]] to parentTargets[parentOffsets[i + 1] - 1] with relationship
+    // types (RelationshipType ordinals) in parentTypes; likewise for children.
+    private GeneOntologyTerm[] terms;
+    private int[] parentOffsets;
+    private int[] parentTargets;
+    private byte[] parentTypes;
+    private int[] childOffsets;
+    private int[] childTargets;
+    private byte[] childTypes;
+
+    // Memoized transitive closures over ordinals, indexed by closure kind (see closureKind) then term ordinal. Each
+    // holds the related terms (excluding the term itself) in ascending order. Memo arrays are created on first use
+    // and each closure is computed at most once, under a striped lock, and published through the atomic array.
+    private static final int ANCESTORS = 0;
+    private static final int IS_A_ANCESTORS = 1;
+    private static final int DESCENDANTS = 2;
+    private static final int IS_A_DESCENDANTS = 3;
+    private static final int LOCK_STRIPES = 64;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<int[]>> closures = new AtomicReferenceArray<>( 4 );
+    private final Object[] closureLocks = new Object[LOCK_STRIPES];
+    private volatile boolean precomputed = false;
+
+    private static final RelationshipType[] RELATIONSHIP_TYPES = RelationshipType.values();
+    private static final byte IS_A = ( byte ) RelationshipType.IS_A.ordinal();
+
     private Integer nonObsoleteSize = null;
 
     // private LoadingCache<GeneOntologyTerm, ImmutableSet<GeneOntologyTerm>> ancestorsCache = CacheBuilder.newBuilder()
@@ -68,6 +100,9 @@ public class GeneOntology {
 
     public GeneOntology( GOEdition edition ) {
         this.edition = edition;
+        for ( int i = 0; i < LOCK_STRIPES; i++ ) {
+            closureLocks[i] = new Object();
+        }
     }
 
     /**
@@ -129,12 +164,252 @@ public class GeneOntology {
     }
 
     /**
-     * Makes the parent/children sets of all terms in this ontology immutable.
+     * Compacts the relationships between terms into int arrays and makes them immutable. Terms are attached to this
+     * ontology and traverse it through these arrays from then on.
      */
     public void freeze() {
-        for ( GeneOntologyTerm t : termMap.valueCollection() ) {
-            t.freeze();
+        freeze( false );
+    }
+
+    /**
+     * @param precomputeClosure eagerly compute the ancestors of every term (with and without part_of relationships)
+     *                          rather than on first use, at the cost of memory
+     * @see #freeze()
+     */
+    public void freeze( boolean precomputeClosure ) {
+        if ( terms == null ) {
+            compact();
+        }
+        if ( precomputeClosure && !precomputed ) {
+            int[] order = topologicalOrder();
+            computeClosure( order, false );
+            computeClosure( order, true );
+            precomputed = true;
+        }
+    }
+
+    private void compact() {
+        GeneOntologyTerm[] ordered = termMap.values( new GeneOntologyTerm[termMap.size()] );
+        Arrays.sort( ordered, Comparator.comparingInt( GeneOntologyTerm::getId ) );
+
+        TIntIntHashMap ordinals = new TIntIntHashMap( ordered.length * 2, 0.5f, -1, -1 );
+        for ( int i = 0; i < ordered.length; i++ ) {
+            ordinals.put( ordered[i].getId(), i );
+        }
+
+        parentOffsets = new int[ordered.length + 1];
+        childOffsets = new int[ordered.length + 1];
+        for ( int i = 0; i < ordered.length; i++ ) {
+            parentOffsets[i + 1] = parentOffsets[i] + ordered[i].getParents().size();
+            childOffsets[i + 1] = childOffsets[i] + ordered[i].getChildren().size();
+        }
+
+        parentTargets = new int[parentOffsets[ordered.length]];
+        parentTypes = new byte[parentTargets.length];
+        childTargets = new int[childOffsets[ordered.length]];
+        childTypes = new byte[childTargets.length];
+        for ( int i = 0; i < ordered.length; i++ ) {
+            fill( ordered[i].getParents(), ordinals, parentOffsets[i], parentTargets, parentTypes );
+            fill( ordered[i].getChildren(), ordinals, childOffsets[i], childTargets, childTypes );
+        }
+
+        for ( int i = 0; i < ordered.length; i++ ) {
+            ordered[i].attach( this, i );
+        }
+        terms = ordered;
+    }
+
+    private static void fill( Set<Relation<GeneOntologyTerm>> relations, TIntIntHashMap ordinals, int offset,
+            int[] targets, byte[] types ) {
+        for ( Relation<GeneOntologyTerm> r : relations ) {
+            targets[offset] = ordinals.get( r.getRelation().getId() );
+            types[offset] = ( byte ) r.getType().ordinal();
+            offset++;
+        }
+    }
+
+    /**
+     * @return ordinals ordered such that every term comes after all of its parents
+     */
+    private int[] topologicalOrder() {
+        int[] remainingParents = new int[terms.length];
+        int[] order = new int[terms.length];
+        int tail = 0;
+        for ( int i = 0; i < terms.length; i++ ) {
+            remainingParents[i] = parentOffsets[i + 1] - parentOffsets[i];
+            if ( remainingParents[i] == 0 ) {
+                order[tail++] = i;
+            }
+        }
+        for ( int head = 0; head < tail; head++ ) {
+            int current = order[head];
+            for ( int i = childOffsets[current]; i < childOffsets[current + 1]; i++ ) {
+                if ( --remainingParents[childTargets[i]] == 0 ) {
+                    order[tail++] = childTargets[i];
+                }
+            }
+        }
+        if ( tail != terms.length ) {
+            throw new IllegalStateException( "Ontology (" + getId() + ") contains a cycle." );
+        }
+        return order;
+    }
+
+    /**
+     * The ancestors of a term are its parents and the ancestors of its parents, visiting terms in topological order
+     * guarantees those are already known.
+     */
+    private void computeClosure( int[] order, boolean includePartOf ) {
+        AtomicReferenceArray<int[]> memo = closureMemo( includePartOf ? ANCESTORS : IS_A_ANCESTORS );
+        BitSet scratch = new BitSet( terms.length );
+        for ( int current : order ) {
+            scratch.clear();
+            for ( int i = parentOffsets[current]; i < parentOffsets[current + 1]; i++ ) {
+                if ( includePartOf || parentTypes[i] == IS_A ) {
+                    int parent = parentTargets[i];
+                    scratch.set( parent );
+                    for ( int ancestor : memo.get( parent ) ) {
+                        scratch.set( ancestor );
+                    }
+                }
+            }
+            memo.set( current, scratch.stream().toArray() );
+        }
+    }
+
+    /**
+     * @return true if the ancestors of every term have been precomputed
+     */
+    public boolean hasClosure() {
+        return precomputed;
+    }
+
+    /**
+     * @return true if relationships have been compacted
+     */
+    public boolean isFrozen() {
+        return terms != null;
+    }
+
+    ImmutableSet<Relation<GeneOntologyTerm>> parents( int ordinal ) {
+        return relations( ordinal, parentOffsets, parentTargets, parentTypes );
+    }
+
+    ImmutableSet<Relation<GeneOntologyTerm>> children( int ordinal ) {
+        return relations( ordinal, childOffsets, childTargets, childTypes );
+    }
+
+    private ImmutableSet<Relation<GeneOntologyTerm>> relations( int ordinal, int[] offsets, int[] targets,
+            byte[] types ) {
+        ImmutableSet.Builder<Relation<GeneOntologyTerm>> builder = ImmutableSet.builder();
+        for ( int i = offsets[ordinal]; i < offsets[ordinal + 1]; i++ ) {
+            builder.add( new Relation<>( terms[targets[i]], RELATIONSHIP_TYPES[types[i]] ) );
+        }
+        return builder.build();
+    }
+
+    Stream<Relation<GeneOntologyTerm>> streamParents( int ordinal, boolean includePartOf ) {
+        return streamRelations( ordinal, includePartOf, parentOffsets, parentTargets, parentTypes );
+    }
+
+    Stream<Relation<GeneOntologyTerm>> streamChildren( int ordinal, boolean includePartOf ) {
+        return streamRelations( ordinal, includePartOf, childOffsets, childTargets, childTypes );
+    }
+
+    private Stream<Relation<GeneOntologyTerm>> streamRelations( int ordinal, boolean includePartOf, int[] offsets,
+            int[] targets, byte[] types ) {
+        return IntStream.range( offsets[ordinal], offsets[ordinal + 1] )
+                .filter( i -> includePartOf || types[i] == IS_A )
+                .mapToObj( i -> new Relation<>( terms[targets[i]], RELATIONSHIP_TYPES[types[i]] ) );
+    }
+
+    /**
+     * @return ordinals of all ancestors of the term with given ordinal, not including itself. Must not be modified.
+     */
+    int[] ancestors( int ordinal, boolean includePartOf ) {
+        return closure( ordinal, includePartOf ? ANCESTORS : IS_A_ANCESTORS );
+    }
+
+    /**
+     * @return ordinals of all descendants of the term with given ordinal, not including itself. Must not be modified.
+     */
+    int[] descendants( int ordinal, boolean includePartOf ) {
+        return closure( ordinal, includePartOf ? DESCENDANTS : IS_A_DESCENDANTS );
+    }
+
+    /**
+     * Set the bits of a term and all of its ancestors.
+     */
+    void propagate( int ordinal, boolean includePartOf, BitSet propagated ) {
+        if ( propagated.get( ordinal ) ) {
+            return;
+        }
+        propagated.set( ordinal );
+        for ( int ancestor : ancestors( ordinal, includePartOf ) ) {
+            propagated.set( ancestor );
+        }
+    }
+
+    private AtomicReferenceArray<int[]> closureMemo( int kind ) {
+        AtomicReferenceArray<int[]> memo = closures.get( kind );
+        if ( memo == null ) {
+            closures.compareAndSet( kind, null, new AtomicReferenceArray<>( terms.length ) );
+            memo = closures.get( kind );
+        }
+        return memo;
+    }
+
+    /**
+     * Compute-once lookup of a closure; concurrent first requests for the same term wait for a single computation.
+     */
+    private int[] closure( int ordinal, int kind ) {
+        AtomicReferenceArray<int[]> memo = closureMemo( kind );
+        int[] closure = memo.get( ordinal );
+        if ( closure == null ) {
+            synchronized ( closureLocks[ordinal % LOCK_STRIPES] ) {
+                closure = memo.get( ordinal );
+                if ( closure == null ) {
+                    boolean includePartOf = kind == ANCESTORS || kind == DESCENDANTS;
+                    closure = kind == ANCESTORS || kind == IS_A_ANCESTORS ?
+                            traverse( ordinal, includePartOf, parentOffsets, parentTargets, parentTypes ) :
+                            traverse( ordinal, includePartOf, childOffsets, childTargets, childTypes );
+                    memo.set( ordinal, closure );
+                }
+            }
         }
+        return closure;
+    }
+
+    /**
+     * Breadth-first traversal over the adjacency arrays.
+     */
+    private int[] traverse( int ordinal, boolean includePartOf, int[] offsets, int[] targets, byte[] types ) {
+        BitSet visited = new BitSet( terms.length );
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+        int current = ordinal;
+        while ( true ) {
+            for ( int i = offsets[current]; i < offsets[current + 1]; i++ ) {
+                int target = targets[i];
+                if ( ( includePartOf || types[i] == IS_A ) && !visited.get( target ) ) {
+                    visited.set( target );
+                    if ( tail == queue.length ) {
+                        queue = Arrays.copyOf( queue, queue.length * 2 );
+                    }
+                    queue[tail++] = target;
+                }
+            }
+            if ( head == tail ) {
+                break;
+            }
+            current = queue[head++];
+        }
+        return visited.stream().toArray();
+    }
+
+    GeneOntologyTerm term( int ordinal ) {
+        return terms[ordinal];
     }
 
     /**
@@ -21,6 +21,7 @@ package ubc.pavlab.gotrack.model.go;
 
 import com.google.common.collect.ImmutableSet;
 import gnu.trove.set.hash.THashSet;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
@@ -29,10 +30,7 @@ import ubc.pavlab.gotrack.model.Aspect;
 import ubc.pavlab.gotrack.model.FullAnnotation;
 import ubc.pavlab.gotrack.model.dto.GOTermDTO;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -56,10 +54,18 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
     private final String name;
     private final Aspect aspect;
     private final boolean obsolete;
+
+    // Only used while building, once attached relationships are held by the ontology
+    @Getter(AccessLevel.NONE)
     private Set<Relation<GeneOntologyTerm>> parents = new THashSet<>();
-    private Set<GeneOntologyTerm> ancestors = null;
+    @Getter(AccessLevel.NONE)
     private Set<Relation<GeneOntologyTerm>> children = new THashSet<>();
 
+    @Getter(AccessLevel.PACKAGE)
+    private GeneOntology ontology = null;
+    @Getter(AccessLevel.PACKAGE)
+    private int ordinal = -1;
+
     /**
      * Make child/parent sets immutable
      */
@@ -68,6 +74,24 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
         this.children = ImmutableSet.copyOf( this.children );
     }
 
+    /**
+     * Relationships have been compacted by the ontology, traverse through it from now on.
+     */
+    void attach( GeneOntology ontology, int ordinal ) {
+        this.ontology = ontology;
+        this.ordinal = ordinal;
+        this.parents = null;
+        this.children = null;
+    }
+
+    public Set<Relation<GeneOntologyTerm>> getParents() {
+        return ontology == null ? parents : ontology.parents( ordinal );
+    }
+
+    public Set<Relation<GeneOntologyTerm>> getChildren() {
+        return ontology == null ? children : ontology.children( ordinal );
+    }
+
     /**
      * Create Term from dto
      */
@@ -80,6 +104,18 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
         this.aspect = Aspect.valueOf( dto.getAspect() );
     }
 
+    /**
+     * Create Term from dto sharing its GO id and name with terms from other editions
+     */
+    GeneOntologyTerm( GOTermDTO dto, TermInterner interner ) {
+
+        this.id = convertGOId( dto.getGoId() );
+        this.goId = interner.intern( dto.getGoId() );
+        this.name = interner.intern( dto.getName() );
+        this.obsolete = dto.isObsolete();
+        this.aspect = Aspect.valueOf( dto.getAspect() );
+    }
+
     /**
      * Used for when an edition has been wrongly connected with a go_edition. In this situation an annotated term may
      * not be found within the given Ontology edition. What we do in this case is create a solitary term to represent it
@@ -126,6 +162,9 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
     }
 
     Stream<Relation<GeneOntologyTerm>> streamParents( boolean includePartOf ) {
+        if ( ontology != null ) {
+            return ontology.streamParents( ordinal, includePartOf );
+        }
         if ( includePartOf ) {
             // Short Circuit
             return parents.stream();
@@ -135,20 +174,11 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
     }
 
     Stream<GeneOntologyTerm> streamAncestors( boolean includePartOf ) {
-        if ( includePartOf && ancestors != null ) {
-            return ancestors.stream();
+        if ( ontology != null ) {
+            // Memoized by the ontology
+            return Arrays.stream( ontology.ancestors( ordinal, includePartOf ) ).mapToObj( ontology::term );
         }
-
-        Stream<GeneOntologyTerm> ancestorStream = streamParents( includePartOf ).flatMap( r -> r.getRelation().propagate( includePartOf ) );
-
-        if ( includePartOf ) {
-            // Only cache complete ancestors, incomplete will always be computed.
-            ancestors = ancestorStream.collect( Collectors.toCollection( THashSet :: new ) );
-            return ancestors.stream();
-        } else {
-            return ancestorStream;
-        }
-
+        return streamParents( includePartOf ).flatMap( r -> r.getRelation().propagate( includePartOf ) ).distinct();
     }
 
     Stream<GeneOntologyTerm> propagate( boolean includePartOf ) {
@@ -156,6 +186,9 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
     }
 
     Stream<Relation<GeneOntologyTerm>> streamChildren( boolean includePartOf ) {
+        if ( ontology != null ) {
+            return ontology.streamChildren( ordinal, includePartOf );
+        }
         if ( includePartOf ) {
             // Short Circuit
             return children.stream();
@@ -166,6 +199,10 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
     }
 
     Stream<GeneOntologyTerm> streamDescendants( boolean includePartOf ) {
+        if ( ontology != null ) {
+            // Memoized by the ontology
+            return Arrays.stream( ontology.descendants( ordinal, includePartOf ) ).mapToObj( ontology::term );
+        }
         return streamChildren( includePartOf ).flatMap( r -> r.getRelation().propagateDown( includePartOf ) );
     }
 
@@ -183,8 +220,25 @@ public class GeneOntologyTerm implements Comparable<GeneOntologyTerm> {
         return propagate( terms, true );
     }
 
+    /**
+     * Terms attached to an ontology are propagated together as a set of bits over the ontology's terms, so shared
+     * ancestors are only visited once.
+     */
     static Stream<GeneOntologyTerm> propagate( Stream<GeneOntologyTerm> terms, boolean includePartOf ) {
-        return terms.flatMap( t -> t.propagate( includePartOf ) );
+        // Almost always a single ontology
+        Map<GeneOntology, BitSet> propagated = new IdentityHashMap<>( 2 );
+        Set<GeneOntologyTerm> unattached = new HashSet<>();
+        terms.forEach( t -> {
+            if ( t.ontology != null ) {
+                t.ontology.propagate( t.ordinal, includePartOf,
+                        propagated.computeIfAbsent( t.ontology, o -> new BitSet( o.size() ) ) );
+            } else {
+                t.propagate( includePartOf ).forEach( unattached::add );
+            }
+        } );
+        return Stream.concat( propagated.entrySet().stream()
+                        .flatMap( e -> e.getValue().stream().mapToObj( e.getKey()::term ) ),
+                unattached.stream() );
     }
 
 
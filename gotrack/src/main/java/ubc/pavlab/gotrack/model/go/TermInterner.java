@@ -0,0 +1,95 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model.go;
+
+import ubc.pavlab.gotrack.model.dto.GOTermDTO;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the immutable parts of terms (GO ids and names) between ontologies. Most terms are unchanged from one GO
+ * edition to the next so, with hundreds of editions loaded, these strings would otherwise be duplicated hundreds of
+ * times.
+ * <p>
+ * Thread-safe, a single instance is meant to be shared by every ontology being built. It only needs to live for as
+ * long as ontologies are being built, the interned strings are retained by the terms themselves.
+ *
+ * @author mjacobson
+ */
+public class TermInterner {
+
+    // Approximate size of a String on a 64-bit JVM with compressed oops: String header and fields plus char[] header
+    private static final int STRING_OVERHEAD = 24 + 16;
+
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Create a term from dto, sharing its GO id and name with equal terms from previously created terms.
+     */
+    public GeneOntologyTerm create( GOTermDTO dto ) {
+        return new GeneOntologyTerm( dto, this );
+    }
+
+    /**
+     * @return canonical instance equal to s
+     */
+    public String intern( String s ) {
+        if ( s == null ) {
+            return null;
+        }
+        requests.incrementAndGet();
+        String canonical = strings.putIfAbsent( s, s );
+        if ( canonical == null ) {
+            return s;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet( STRING_OVERHEAD + 2L * s.length() );
+        return canonical;
+    }
+
+    /**
+     * @return number of distinct strings held
+     */
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * @return approximate number of bytes no longer retained thanks to sharing
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return human readable summary of sharing
+     */
+    public String report() {
+        return "Interned " + requests.get() + " strings into " + strings.size() + " distinct (" + hits.get()
+                + " shared), saving ~" + bytesSaved.get() / 1000000 + " MB";
+    }
+
+}
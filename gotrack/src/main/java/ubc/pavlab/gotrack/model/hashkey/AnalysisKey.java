@@ -0,0 +1,147 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model.hashkey;
+
+import ubc.pavlab.gotrack.analysis.MultipleTestCorrection;
+import ubc.pavlab.gotrack.model.Aspect;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.Species;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Canonical key of the inputs of an analysis, equal for requests which would produce the same results. The hit list is
+ * reduced to its sorted gene ids and the aspect filter to a set, where no filter and a filter on every aspect are the
+ * same.
+ * <p>
+ * The key includes the current edition of the species so that analyses run before new data was loaded are no longer
+ * found, and the kind of analysis so that an enrichment alone is never mistaken for a combined analysis.
+ *
+ * @author mjacobson
+ */
+public final class AnalysisKey {
+
+    public enum Kind {
+        ENRICHMENT, // enrichment alone
+        COMBINED // enrichment followed by similarity and stability
+    }
+
+    private final Kind kind;
+    private final int species;
+    private final int currentEdition;
+    private final int[] genes;
+    private final int aspects;
+    private final MultipleTestCorrection multipleTestCorrection;
+    private final double threshold;
+    private final int min;
+    private final int max;
+    private final int referenceEdition;
+    private final int topN;
+
+    private final int hash;
+
+    /**
+     * @param kind             kind of analysis
+     * @param currentEdition   current edition of the species
+     * @param aspects          aspect filter, null or empty if not applied
+     * @param referenceEdition similarity reference edition, required for a combined analysis, ignored for enrichment
+     *                         alone
+     * @param topN             number of top terms used for similarity, ignored for enrichment alone
+     */
+    public AnalysisKey( Kind kind, Species species, Edition currentEdition, Collection<Gene> genes, Collection<Aspect> aspects,
+                        MultipleTestCorrection multipleTestCorrection, double threshold, int min, int max,
+                        Edition referenceEdition, int topN ) {
+        if ( kind == Kind.COMBINED && referenceEdition == null ) {
+            throw new IllegalArgumentException( "Combined analysis requires a similarity reference edition." );
+        }
+        this.kind = kind;
+        this.species = species.getId();
+        this.currentEdition = currentEdition == null ? 0 : currentEdition.getEdition();
+        this.genes = genes.stream().mapToInt( Gene::getId ).sorted().distinct().toArray();
+        this.aspects = aspectMask( aspects );
+        this.multipleTestCorrection = multipleTestCorrection;
+        this.threshold = threshold;
+        this.min = min;
+        this.max = max <= 0 ? Integer.MAX_VALUE : max;
+        this.referenceEdition = kind == Kind.COMBINED ? referenceEdition.getEdition() : 0;
+        this.topN = kind == Kind.COMBINED ? topN : 0;
+
+        int result = kind.hashCode();
+        result = 31 * result + this.species;
+        result = 31 * result + this.currentEdition;
+        result = 31 * result + Arrays.hashCode( this.genes );
+        result = 31 * result + this.aspects;
+        result = 31 * result + ( multipleTestCorrection != null ? multipleTestCorrection.hashCode() : 0 );
+        result = 31 * result + Double.hashCode( this.threshold );
+        result = 31 * result + this.min;
+        result = 31 * result + this.max;
+        result = 31 * result + this.referenceEdition;
+        result = 31 * result + this.topN;
+        this.hash = result;
+    }
+
+    private static int aspectMask( Collection<Aspect> aspects ) {
+        int all = ( 1 << Aspect.values().length ) - 1;
+        if ( aspects == null || aspects.isEmpty() ) {
+            return all;
+        }
+        int mask = 0;
+        for ( Aspect aspect : aspects ) {
+            mask |= 1 << aspect.ordinal();
+        }
+        return mask;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        if ( this == o ) return true;
+        if ( o == null || getClass() != o.getClass() ) return false;
+
+        AnalysisKey that = (AnalysisKey) o;
+
+        return hash == that.hash
+                && kind == that.kind
+                && species == that.species
+                && currentEdition == that.currentEdition
+                && aspects == that.aspects
+                && multipleTestCorrection == that.multipleTestCorrection
+                && Double.compare( threshold, that.threshold ) == 0
+                && min == that.min
+                && max == that.max
+                && referenceEdition == that.referenceEdition
+                && topN == that.topN
+                && Arrays.equals( genes, that.genes );
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "AnalysisKey [kind=" + kind + ", species=" + species + ", currentEdition=" + currentEdition + ", genes=" + genes.length
+                + ", aspects=" + aspects + ", multipleTestCorrection=" + multipleTestCorrection + ", threshold="
+                + threshold + ", min=" + min + ", max=" + max + ", referenceEdition=" + referenceEdition + ", topN="
+                + topN + "]";
+    }
+}
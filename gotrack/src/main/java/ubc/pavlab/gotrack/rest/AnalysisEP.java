@@ -27,26 +27,31 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import ubc.pavlab.gotrack.analysis.*;
 import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.beans.SettingsCache;
 import ubc.pavlab.gotrack.beans.service.EnrichmentService;
 import ubc.pavlab.gotrack.beans.service.MultifunctionalityService;
 import ubc.pavlab.gotrack.model.*;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
 import ubc.pavlab.gotrack.model.rest.marshal.EnrichmentHistoricalRequest;
 import ubc.pavlab.gotrack.model.rest.marshal.EnrichmentRequest;
+import ubc.pavlab.gotrack.model.rest.marshal.SimilarityMatrixRequest;
 import ubc.pavlab.gotrack.model.search.GeneMatch;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import javax.ws.rs.Consumes;
-import javax.ws.rs.POST;
-import javax.ws.rs.Path;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * TODO Document Me
@@ -69,9 +74,15 @@ public class AnalysisEP {
     @Inject
     private MultifunctionalityService multifunctionalityService;
 
+    @Inject
+    private SettingsCache settingsCache;
+
     @Context
     UriInfo uri;
 
+    // Background analyses, see jobs()
+    private AnalysisJobQueue jobQueue;
+
     public AnalysisEP() {
         log.info( "AnalysisEP REST created" );
     }
@@ -105,36 +116,8 @@ public class AnalysisEP {
             Set<Aspect> aspectsFilter = null;
 
 
-            Set<Gene> hitList = Sets.newHashSet();
-            Set<GeneMatch> exact = Sets.newHashSet();
-            Set<GeneMatch> synonym = Sets.newHashSet();
-            Set<GeneMatch> unknown = Sets.newHashSet();
-            // Convert list of strings to best possible matches in genes
-            Map<String, GeneMatch> gmMap = deserializeGenes( req.genes, species );
-
-            for ( GeneMatch match : gmMap.values() ) {
-                if ( match.getType().equals( GeneMatch.Type.SINGLE ) ) {
-                    if ( match.getLevel().equals( GeneMatch.Level.PRIMARY ) ) {
-                        exact.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else if ( match.getLevel().equals( GeneMatch.Level.SYNONYM ) ) {
-                        synonym.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else {
-                        unknown.add( match ); // This shouldn't happen, we restrict result in deserialize
-                    }
-                } else {
-                    unknown.add( match );
-                }
-            }
-
-            // Attach genes
-
-            JSONObject genesJSON = new JSONObject();
-            genesJSON.put( "exact", exact );
-            genesJSON.put( "exact_synonym", synonym );
-            genesJSON.put( "unknown", unknown );
-            response.put( "input_genes", genesJSON );
+            // Convert list of strings to best possible matches in genes and attach them
+            Set<Gene> hitList = hitList( req.genes, species, response );
 
             // Attach Species
 
@@ -212,36 +195,8 @@ public class AnalysisEP {
             int max = 200;
             Set<Aspect> aspectsFilter = null;
 
-            Set<Gene> hitList = Sets.newHashSet();
-            Set<GeneMatch> exact = Sets.newHashSet();
-            Set<GeneMatch> synonym = Sets.newHashSet();
-            Set<GeneMatch> unknown = Sets.newHashSet();
-            // Convert list of strings to best possible matches in genes
-            Map<String, GeneMatch> gmMap = deserializeGenes( req.genes, species );
-
-            for ( GeneMatch match : gmMap.values() ) {
-                if ( match.getType().equals( GeneMatch.Type.SINGLE ) ) {
-                    if ( match.getLevel().equals( GeneMatch.Level.PRIMARY ) ) {
-                        exact.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else if ( match.getLevel().equals( GeneMatch.Level.SYNONYM ) ) {
-                        synonym.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else {
-                        unknown.add( match ); // This shouldn't happen, we restrict result in deserialize
-                    }
-                } else {
-                    unknown.add( match );
-                }
-            }
-
-            // Attach genes
-
-            JSONObject genesJSON = new JSONObject();
-            genesJSON.put( "exact", exact );
-            genesJSON.put( "exact_synonym", synonym );
-            genesJSON.put( "unknown", unknown );
-            response.put( "input_genes", genesJSON );
+            // Convert list of strings to best possible matches in genes and attach them
+            Set<Gene> hitList = hitList( req.genes, species, response );
 
             // Attach Species
 
@@ -287,6 +242,10 @@ public class AnalysisEP {
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/enrichment/complete")
     public Response postEnrichmentComplete( final EnrichmentRequest req ) {
+        return enrichmentComplete( req, new StatusPoller() );
+    }
+
+    private Response enrichmentComplete( EnrichmentRequest req, StatusPoller statusPoller ) {
         log.info( req );
         JSONObject response = new JSONObject();
         try {
@@ -303,36 +262,8 @@ public class AnalysisEP {
             int max = 200;
             Set<Aspect> aspectsFilter = null;
 
-            Set<Gene> hitList = Sets.newHashSet();
-            Set<GeneMatch> exact = Sets.newHashSet();
-            Set<GeneMatch> synonym = Sets.newHashSet();
-            Set<GeneMatch> unknown = Sets.newHashSet();
-            // Convert list of strings to best possible matches in genes
-            Map<String, GeneMatch> gmMap = deserializeGenes( req.genes, species );
-
-            for ( GeneMatch match : gmMap.values() ) {
-                if ( match.getType().equals( GeneMatch.Type.SINGLE ) ) {
-                    if ( match.getLevel().equals( GeneMatch.Level.PRIMARY ) ) {
-                        exact.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else if ( match.getLevel().equals( GeneMatch.Level.SYNONYM ) ) {
-                        synonym.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else {
-                        unknown.add( match ); // This shouldn't happen, we restrict result in deserialize
-                    }
-                } else {
-                    unknown.add( match );
-                }
-            }
-
-            // Attach genes
-
-            JSONObject genesJSON = new JSONObject();
-            genesJSON.put( "exact", exact );
-            genesJSON.put( "exact_synonym", synonym );
-            genesJSON.put( "unknown", unknown );
-            response.put( "input_genes", genesJSON );
+            // Convert list of strings to best possible matches in genes and attach them
+            Set<Gene> hitList = hitList( req.genes, species, response );
 
             // Attach Species
 
@@ -351,7 +282,7 @@ public class AnalysisEP {
             }
 
             EnrichmentAnalysis analysis = enrichmentService.enrichment( hitList, species, mulTestCor,
-                    threshold, min, max, aspectsFilter, new StatusPoller() );
+                    threshold, min, max, aspectsFilter, statusPoller );
 
             JSONArray dataJSON = new JSONArray();
 
@@ -371,6 +302,9 @@ public class AnalysisEP {
 
             response.put( "httpstatus", 200 );
             response.put( "success", true );
+        } catch (CancellationException e1) {
+            // Job cancelled through its status poller
+            throw e1;
         } catch (JSONException e1) {
             log.error( "Malformed JSON", e1 );
             return Response.status( 400 ).entity( fail( 400, "Malformed JSON" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
@@ -390,6 +324,10 @@ public class AnalysisEP {
     @Consumes(MediaType.APPLICATION_JSON)
     @Path("/similarity")
     public Response postSimilarity( final EnrichmentHistoricalRequest req ) {
+        return similarity( req, new StatusPoller() );
+    }
+
+    private Response similarity( EnrichmentHistoricalRequest req, StatusPoller statusPoller ) {
 //        log.info( req );
         JSONObject response = new JSONObject();
         try {
@@ -414,36 +352,8 @@ public class AnalysisEP {
 
             Edition closestEdition = closestEdition( inputDate, species );
 
-            Set<Gene> hitList = Sets.newHashSet();
-            Set<GeneMatch> exact = Sets.newHashSet();
-            Set<GeneMatch> synonym = Sets.newHashSet();
-            Set<GeneMatch> unknown = Sets.newHashSet();
-            // Convert list of strings to best possible matches in genes
-            Map<String, GeneMatch> gmMap = deserializeGenes( req.genes, species );
-
-            for ( GeneMatch match : gmMap.values() ) {
-                if ( match.getType().equals( GeneMatch.Type.SINGLE ) ) {
-                    if ( match.getLevel().equals( GeneMatch.Level.PRIMARY ) ) {
-                        exact.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else if ( match.getLevel().equals( GeneMatch.Level.SYNONYM ) ) {
-                        synonym.add( match );
-                        hitList.add( match.getSelectedGene() );
-                    } else {
-                        unknown.add( match ); // This shouldn't happen, we restrict result in deserialize
-                    }
-                } else {
-                    unknown.add( match );
-                }
-            }
-
-            // Attach genes
-
-            JSONObject genesJSON = new JSONObject();
-            genesJSON.put( "exact", exact );
-            genesJSON.put( "exact_synonym", synonym );
-            genesJSON.put( "unknown", unknown );
-            response.put( "input_genes", genesJSON );
+            // Convert list of strings to best possible matches in genes and attach them
+            Set<Gene> hitList = hitList( req.genes, species, response );
 
             // Attach Species
 
@@ -464,9 +374,12 @@ public class AnalysisEP {
             Edition referenceEdition = cache.getCurrentEditions( species );
 
             EnrichmentAnalysis analysis = enrichmentService.enrichment( Sets.newHashSet( closestEdition, referenceEdition )
-                    , hitList, species, req.multipleTestCorrection, req.threshold, req.min, req.max, req.aspects );
+                    , hitList, species, req.multipleTestCorrection, req.threshold, req.min, req.max, req.aspects,
+                    statusPoller );
 
+            statusPoller.newStatus( "Running Similarity Analysis...", 80 );
             SimilarityAnalysis similarityAnalysis = new SimilarityAnalysis( analysis, req.topN, referenceEdition, req.similarityMethod, cache );
+            statusPoller.newStatus( "Complete", 100 );
             response.put( "similarity_compare_edition", new JSONObject( similarityAnalysis.getReferenceEdition() ) );
             response.put( "similarity_method", new JSONObject( similarityAnalysis.getSimilarityMethod() ).put( "key", similarityAnalysis.getSimilarityMethod() ) );
             response.put( "top_n", similarityAnalysis.getTopN() );
@@ -477,6 +390,94 @@ public class AnalysisEP {
 
             response.put( "httpstatus", 200 );
             response.put( "success", true );
+        } catch (CancellationException e1) {
+            // Job cancelled through its status poller
+            throw e1;
+        } catch (JSONException e1) {
+            log.error( "Malformed JSON", e1 );
+            return Response.status( 400 ).entity( fail( 400, "Malformed JSON" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        } catch (Exception e1) {
+            log.error( "Something went wrong!", e1 );
+            return Response.status( 500 ).entity( fail( 500, e1.getMessage() ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+        return Response.ok( response.toString(), MediaType.APPLICATION_JSON ).build();
+
+    }
+
+    /**
+     * @param req
+     * @return Similarity of the enrichment of every edition to that of every other edition
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("/similarity/matrix")
+    public Response postSimilarityMatrix( final SimilarityMatrixRequest req ) {
+        return similarityMatrix( req, new StatusPoller() );
+    }
+
+    private Response similarityMatrix( SimilarityMatrixRequest req, StatusPoller statusPoller ) {
+        log.info( req );
+        JSONObject response = new JSONObject();
+        try {
+            // Get Species
+            Species species = cache.getSpecies( req.speciesId );
+
+            if ( species == null ) {
+                return Response.status( 400 ).entity( fail( 400, "Unknown Species ID" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+            }
+
+            // Convert list of strings to best possible matches in genes and attach them
+            Set<Gene> hitList = hitList( req.genes, species, response );
+
+            // Attach Species
+
+            response.put( "species", new JSONObject( species ) );
+
+            // Settings
+
+            response.put( "mt_corr_method", new JSONObject( req.multipleTestCorrection ).put( "key", req.multipleTestCorrection ) );
+            response.put( "threshold", req.threshold );
+            response.put( "min_go_geneset", req.min );
+            response.put( "max_go_geneset", req.max );
+            response.put( "aspect_filter", req.aspects );
+
+            if ( hitList.isEmpty() ) {
+                return Response.status( 400 ).entity( fail( 400, "0 matching genes." ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+            }
+
+            EnrichmentAnalysis analysis = enrichmentService.enrichment( hitList, species, req.multipleTestCorrection,
+                    req.threshold, req.min, req.max, req.aspects, statusPoller );
+
+            if ( analysis == null ) {
+                return Response.status( 400 ).entity( fail( 400, "No annotations for matching genes." ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+            }
+
+            statusPoller.newStatus( "Running Similarity Analysis...", 80 );
+            SimilarityMatrixAnalysis similarityMatrix = new SimilarityMatrixAnalysis( analysis, req.topN,
+                    req.similarityMethod, cache );
+            statusPoller.newStatus( "Complete", 100 );
+            response.put( "similarity_method", new JSONObject( similarityMatrix.getSimilarityMethod() ).put( "key", similarityMatrix.getSimilarityMethod() ) );
+            response.put( "top_n", similarityMatrix.getTopN() );
+
+            // Data, rows are the compared edition and columns the edition it is compared to
+            JSONArray editionsJSON = new JSONArray();
+            for ( Edition ed : similarityMatrix.getEditions() ) {
+                editionsJSON.put( new JSONObject( ed ) );
+            }
+            response.put( "editions", editionsJSON );
+
+            JSONObject dataJSON = new JSONObject();
+            dataJSON.put( "complete_term_sim", new JSONArray( similarityMatrix.getCompleteTermSim() ) );
+            dataJSON.put( "top_term_sim", new JSONArray( similarityMatrix.getTopTermSim() ) );
+            dataJSON.put( "top_gene_sim", new JSONArray( similarityMatrix.getTopGeneSim() ) );
+            dataJSON.put( "top_parents_sim", new JSONArray( similarityMatrix.getTopParentsSim() ) );
+            response.put( "data", dataJSON );
+
+            response.put( "httpstatus", 200 );
+            response.put( "success", true );
+        } catch (CancellationException e1) {
+            // Job cancelled through its status poller
+            throw e1;
         } catch (JSONException e1) {
             log.error( "Malformed JSON", e1 );
             return Response.status( 400 ).entity( fail( 400, "Malformed JSON" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
@@ -488,6 +489,143 @@ public class AnalysisEP {
 
     }
 
+    /**
+     * Same as {@link #postEnrichmentComplete(EnrichmentRequest)} run as a job in the background.
+     *
+     * @return job, see {@link #getJob(String)}
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("/jobs/enrichment/complete")
+    public Response submitEnrichmentComplete( final EnrichmentRequest req, @Context HttpServletRequest request ) {
+        return submit( request, statusPoller -> enrichmentComplete( req, statusPoller ) );
+    }
+
+    /**
+     * Same as {@link #postSimilarity(EnrichmentHistoricalRequest)} run as a job in the background.
+     *
+     * @return job, see {@link #getJob(String)}
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("/jobs/similarity")
+    public Response submitSimilarity( final EnrichmentHistoricalRequest req, @Context HttpServletRequest request ) {
+        return submit( request, statusPoller -> similarity( req, statusPoller ) );
+    }
+
+    /**
+     * Same as {@link #postSimilarityMatrix(SimilarityMatrixRequest)} run as a job in the background.
+     *
+     * @return job, see {@link #getJob(String)}
+     */
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Path("/jobs/similarity/matrix")
+    public Response submitSimilarityMatrix( final SimilarityMatrixRequest req, @Context HttpServletRequest request ) {
+        return submit( request, statusPoller -> similarityMatrix( req, statusPoller ) );
+    }
+
+    /**
+     * @return state and progress of a job
+     */
+    @GET
+    @Path("/jobs/{id}")
+    public Response getJob( @PathParam("id") String id ) {
+        AnalysisJobQueue.Job job = jobs().get( id );
+        if ( job == null ) {
+            return Response.status( 404 ).entity( fail( 404, "Unknown job" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+        return Response.ok( jobToJSON( job ).toString(), MediaType.APPLICATION_JSON ).build();
+    }
+
+    /**
+     * @return response of a complete job, as it would have been answered synchronously; the job's state while it has
+     * not finished
+     */
+    @GET
+    @Path("/jobs/{id}/result")
+    public Response getJobResult( @PathParam("id") String id ) {
+        AnalysisJobQueue.Job job = jobs().get( id );
+        if ( job == null ) {
+            return Response.status( 404 ).entity( fail( 404, "Unknown job" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+        switch ( job.getState() ) {
+            case COMPLETE:
+                return job.getResult();
+            case FAILED:
+                return Response.status( 500 ).entity( fail( 500, job.getError() ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+            case CANCELLED:
+                return Response.status( 410 ).entity( fail( 410, "Job cancelled" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+            default:
+                return Response.status( 202 ).entity( jobToJSON( job ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+    }
+
+    /**
+     * Cancel a job, a running job stops at its next stage.
+     *
+     * @return state of the job
+     */
+    @DELETE
+    @Path("/jobs/{id}")
+    public Response cancelJob( @PathParam("id") String id ) {
+        AnalysisJobQueue.Job job = jobs().cancel( id );
+        if ( job == null ) {
+            return Response.status( 404 ).entity( fail( 404, "Unknown job" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+        return Response.ok( jobToJSON( job ).toString(), MediaType.APPLICATION_JSON ).build();
+    }
+
+    @PreDestroy
+    public void destroyed() {
+        if ( jobQueue != null ) {
+            jobQueue.shutdown();
+        }
+    }
+
+    private Response submit( HttpServletRequest request, Function<StatusPoller, Response> task ) {
+        try {
+            String client = AnalysisJobQueue.client( request.getRemoteAddr(), request.getHeader( "X-Forwarded-For" ),
+                    settingsCache.getTrustedProxies() );
+            AnalysisJobQueue.Job job = jobs().submit( client, task );
+            return Response.status( 202 ).entity( jobToJSON( job ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        } catch (AnalysisJobQueue.TooManyJobsException e) {
+            return Response.status( 429 ).entity( fail( 429, e.getMessage() ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        } catch (RejectedExecutionException e) {
+            return Response.status( 503 ).entity( fail( 503, "Too many queued jobs, try again later" ).toString() ).type( MediaType.APPLICATION_JSON ).build();
+        }
+    }
+
+    /**
+     * Created on first use rather than at construction, once settings have been injected.
+     */
+    private synchronized AnalysisJobQueue jobs() {
+        if ( jobQueue == null ) {
+            jobQueue = new AnalysisJobQueue( settingsCache.getJobThreads(), settingsCache.getJobQueue(),
+                    settingsCache.getJobsPerClient(), settingsCache.getJobRetention() );
+        }
+        return jobQueue;
+    }
+
+    private JSONObject jobToJSON( AnalysisJobQueue.Job job ) {
+        JSONObject jobJSON = new JSONObject();
+        StatusPoller statusPoller = job.getStatusPoller();
+        jobJSON.put( "job_id", job.getId() );
+        jobJSON.put( "state", job.getState() );
+        jobJSON.put( "progress", statusPoller.getProgress() );
+        jobJSON.put( "status", statusPoller.getCurrentStatus() );
+        jobJSON.put( "statuses", new JSONArray( statusPoller.getStatuses() ) );
+        jobJSON.put( "submitted", job.getSubmitted() );
+        jobJSON.put( "queued_jobs", jobs().getQueued() );
+        jobJSON.put( "running_jobs", jobs().getRunning() );
+        if ( job.getError() != null ) {
+            jobJSON.put( "error", job.getError() );
+        }
+        jobJSON.put( "status_url", uri.getBaseUriBuilder().path( AnalysisEP.class ).path( "jobs" ).path( job.getId() ).build().toString() );
+        jobJSON.put( "result_url", uri.getBaseUriBuilder().path( AnalysisEP.class ).path( "jobs" ).path( job.getId() ).path( "result" ).build().toString() );
+        return jobJSON;
+    }
+
     private static JSONObject fail( int httpStatus, String message ) {
         JSONObject response = new JSONObject();
         try {
@@ -532,6 +670,45 @@ public class AnalysisEP {
         return closestEdition;
     }
 
+    /**
+     * Match gene inputs to genes and attach the matches to the response as "input_genes"
+     *
+     * @param geneInputs gene symbols or synonyms
+     * @param response   response to attach the matches to
+     * @return genes with a single exact or synonym match
+     */
+    private Set<Gene> hitList( Collection<String> geneInputs, Species species, JSONObject response ) {
+        Set<Gene> hitList = Sets.newHashSet();
+        Set<GeneMatch> exact = Sets.newHashSet();
+        Set<GeneMatch> synonym = Sets.newHashSet();
+        Set<GeneMatch> unknown = Sets.newHashSet();
+        Map<String, GeneMatch> gmMap = deserializeGenes( geneInputs, species );
+
+        for ( GeneMatch match : gmMap.values() ) {
+            if ( match.getType().equals( GeneMatch.Type.SINGLE ) ) {
+                if ( match.getLevel().equals( GeneMatch.Level.PRIMARY ) ) {
+                    exact.add( match );
+                    hitList.add( match.getSelectedGene() );
+                } else if ( match.getLevel().equals( GeneMatch.Level.SYNONYM ) ) {
+                    synonym.add( match );
+                    hitList.add( match.getSelectedGene() );
+                } else {
+                    unknown.add( match ); // This shouldn't happen, we restrict result in deserialize
+                }
+            } else {
+                unknown.add( match );
+            }
+        }
+
+        JSONObject genesJSON = new JSONObject();
+        genesJSON.put( "exact", exact );
+        genesJSON.put( "exact_synonym", synonym );
+        genesJSON.put( "unknown", unknown );
+        response.put( "input_genes", genesJSON );
+
+        return hitList;
+    }
+
     /**
      * Convert list of strings to best possible matches in genes
      *
@@ -0,0 +1,262 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.rest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import org.apache.log4j.Logger;
+import ubc.pavlab.gotrack.model.StatusPoller;
+
+import javax.ws.rs.core.Response;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Runs analyses requested through the REST API in the background, so that long analyses do not hold on to container
+ * threads. Jobs run on a fixed number of threads with a bounded queue behind them and each client may only have a few
+ * unfinished jobs at once. Progress is reported through the job's {@link StatusPoller}, which is also how a running job
+ * is cancelled.
+ * <p>
+ * Jobs are forgotten some time after they were last looked up.
+ *
+ * @author mjacobson
+ */
+class AnalysisJobQueue {
+
+    private static final Logger log = Logger.getLogger( AnalysisJobQueue.class );
+
+    enum State {
+        QUEUED, RUNNING, COMPLETE, FAILED, CANCELLED
+    }
+
+    /**
+     * A submitted analysis.
+     */
+    @Getter
+    static final class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final String client;
+        private final StatusPoller statusPoller = new StatusPoller( " completed" );
+        private final long submitted = System.currentTimeMillis();
+        private volatile State state = State.QUEUED;
+        private volatile Response result;
+        private volatile String error;
+
+        private Job( String client ) {
+            this.client = client;
+        }
+
+        private synchronized boolean transition( State from, State to ) {
+            if ( state != from ) {
+                return false;
+            }
+            state = to;
+            return true;
+        }
+
+        private synchronized void finish( State to ) {
+            if ( state == State.QUEUED || state == State.RUNNING ) {
+                state = to;
+            }
+        }
+
+        boolean isFinished() {
+            return state != State.QUEUED && state != State.RUNNING;
+        }
+    }
+
+    /**
+     * Thrown when a client already has as many unfinished jobs as allowed.
+     */
+    static final class TooManyJobsException extends RuntimeException {
+        private TooManyJobsException( String message ) {
+            super( message );
+        }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int jobsPerClient;
+
+    private final Cache<String, Job> jobs;
+    private final Map<String, FutureTask<?>> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Integer> unfinishedByClient = new ConcurrentHashMap<>();
+
+    /**
+     * @param threads       jobs run at once
+     * @param queueSize     jobs waiting for a thread before new ones are refused
+     * @param jobsPerClient unfinished jobs a single client may have
+     * @param retention     minutes a job is kept after it was last looked up
+     */
+    AnalysisJobQueue( int threads, int queueSize, int jobsPerClient, int retention ) {
+        this.executor = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>( queueSize ),
+                new ThreadFactoryBuilder().setNameFormat( "analysis-job-%d" ).setDaemon( true ).build() );
+        this.jobsPerClient = jobsPerClient;
+        this.jobs = CacheBuilder.newBuilder().expireAfterAccess( retention, TimeUnit.MINUTES ).build();
+    }
+
+    /**
+     * Identify who submitted a request, for the per client limit. Behind a reverse proxy every request comes from the
+     * proxy, so requests relayed by a trusted proxy are identified by the last address of their X-Forwarded-For header
+     * not added by a trusted proxy. The header is ignored from other peers, as any client could set it.
+     *
+     * @param remoteAddr     address of the peer
+     * @param forwardedFor   X-Forwarded-For header, null if absent
+     * @param trustedProxies addresses of proxies whose X-Forwarded-For header is believed
+     * @return client id
+     */
+    static String client( String remoteAddr, String forwardedFor, Set<String> trustedProxies ) {
+        if ( forwardedFor == null || !trustedProxies.contains( remoteAddr ) ) {
+            return remoteAddr;
+        }
+        String client = remoteAddr;
+        String[] hops = forwardedFor.split( "," );
+        for ( int i = hops.length - 1; i >= 0; i-- ) {
+            String hop = hops[i].trim();
+            if ( hop.isEmpty() ) {
+                continue;
+            }
+            client = hop;
+            if ( !trustedProxies.contains( hop ) ) {
+                break;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * @param client identifies who submitted the job, for the per client limit, see
+     *               {@link #client(String, String, Set)}
+     * @param task   analysis to run, reporting to the given poller and returning the response it would have answered
+     *               synchronously
+     * @return the queued job
+     * @throws TooManyJobsException       if the client has too many unfinished jobs
+     * @throws RejectedExecutionException if the queue is full
+     */
+    Job submit( String client, Function<StatusPoller, Response> task ) {
+        Integer unfinished = unfinishedByClient.merge( client, 1, Integer::sum );
+        if ( unfinished > jobsPerClient ) {
+            release( client );
+            throw new TooManyJobsException( "At most " + jobsPerClient + " unfinished jobs are allowed per client" );
+        }
+
+        Job job = new Job( client );
+        FutureTask<Void> future = new FutureTask<Void>( () -> run( job, task ), null ) {
+            @Override
+            protected void done() {
+                // Runs once, whether the job completed, failed or was cancelled while queued or running; a running
+                // job keeps its client's slot until run() returns
+                tasks.remove( job.id );
+                if ( job.transition( State.QUEUED, State.CANCELLED ) ) {
+                    release( client );
+                }
+            }
+        };
+
+        jobs.put( job.id, job );
+        tasks.put( job.id, future );
+        try {
+            executor.execute( future );
+        } catch ( RejectedExecutionException e ) {
+            jobs.invalidate( job.id );
+            tasks.remove( job.id );
+            release( client );
+            throw e;
+        }
+        log.info( "Job " + job.id + " queued for " + client + " (" + executor.getQueue().size() + " waiting)" );
+        return job;
+    }
+
+    /**
+     * @return job, null if unknown or forgotten
+     */
+    Job get( String id ) {
+        return jobs.getIfPresent( id );
+    }
+
+    /**
+     * Cancel a job. A queued job never starts, a running job stops at its next status and counts towards its client's
+     * unfinished jobs until then.
+     *
+     * @return job, null if unknown or forgotten
+     */
+    Job cancel( String id ) {
+        Job job = jobs.getIfPresent( id );
+        if ( job == null ) {
+            return null;
+        }
+        job.statusPoller.cancel();
+        FutureTask<?> future = tasks.get( id );
+        if ( future != null ) {
+            future.cancel( false );
+            executor.remove( future );
+        }
+        job.finish( State.CANCELLED );
+        return job;
+    }
+
+    /**
+     * @return jobs waiting for a thread
+     */
+    int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return jobs currently running
+     */
+    int getRunning() {
+        return executor.getActiveCount();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run( Job job, Function<StatusPoller, Response> task ) {
+        if ( !job.transition( State.QUEUED, State.RUNNING ) ) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            job.result = task.apply( job.statusPoller );
+            job.finish( job.statusPoller.isCancelled() ? State.CANCELLED : State.COMPLETE );
+        } catch ( CancellationException e ) {
+            job.finish( State.CANCELLED );
+        } catch ( RuntimeException e ) {
+            log.error( "Job " + job.id + " failed", e );
+            job.error = e.getMessage();
+            job.finish( State.FAILED );
+        } finally {
+            release( job.client );
+        }
+        log.info( "Job " + job.id + " " + job.state + " in " + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+
+    private void release( String client ) {
+        unfinishedByClient.computeIfPresent( client, ( c, n ) -> n > 1 ? n - 1 : null );
+    }
+
+}
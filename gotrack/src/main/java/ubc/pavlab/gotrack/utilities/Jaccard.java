@@ -25,6 +25,12 @@ import java.util.Set;
 
 /**
  * Efficiently calculates Jaccard index and/or distance for two sets.
+ * <p>
+ * Sets of elements numbered by dense ordinals can also be given as bitsets ({@code long[]}, bit i of word i / 64 set if
+ * ordinal i is in the set) or as sorted arrays of distinct ordinals ({@code int[]}), which avoids boxing and hashing:
+ * bitsets are intersected word by word, sorted arrays by merging or, when one is much smaller than the other, by
+ * galloping through the larger one. Sparse sets are better held as sorted arrays and dense ones as bitsets, see
+ * {@link #preferBitSet(int, int)}.
  * 
  * @author mjacobson
  * @version $Id$
@@ -67,8 +73,42 @@ public class Jaccard {
         return 1 - calculate( a, b );
     }
 
+    /**
+     * @param a bitset
+     * @param b bitset
+     */
+    public static Double similarity( long[] a, long[] b ) {
+        if ( a == null && b == null ) return null;
+        return calculate( cardinality( a ), cardinality( b ), intersectSize( a, b ) );
+    }
+
+    /**
+     * @param a sorted distinct ordinals
+     * @param b sorted distinct ordinals
+     */
+    public static Double similarity( int[] a, int[] b ) {
+        if ( a == null && b == null ) return null;
+        return calculate( a.length, b.length, intersectSize( a, b ) );
+    }
+
+    /**
+     * @param a sorted distinct ordinals
+     * @param b bitset
+     */
+    public static Double similarity( int[] a, long[] b ) {
+        if ( a == null && b == null ) return null;
+        return calculate( a.length, cardinality( b ), intersectSize( a, b ) );
+    }
+
     // Calculation
 
+    private static Double calculate( int sizeA, int sizeB, int intersect ) {
+        if ( sizeA == 0 && sizeB == 0 ) return 1.0d;
+        if ( sizeA == 0 || sizeB == 0 ) return 0.0d;
+
+        return ( ( double ) intersect ) / ( sizeA + sizeB - intersect );
+    }
+
     private static <T> Double calculate( Set<T> a, Set<T> b ) {
 
         return ( ( double ) intersectSize( a, b ) ) / unionSize( a, b );
@@ -117,4 +157,119 @@ public class Jaccard {
         return count;
     }
 
+    /**
+     * @param size     number of elements in a set
+     * @param universe number of ordinals elements are numbered by
+     * @return true if the set takes less space as a bitset than as a sorted array
+     */
+    public static boolean preferBitSet( int size, int universe ) {
+        // 64 bits per 64 ordinals against 32 bits per element
+        return ( long ) size * 32 >= universe;
+    }
+
+    /**
+     * @return number of elements in bitset
+     */
+    public static int cardinality( long[] a ) {
+        int count = 0;
+        for ( long word : a ) {
+            count += Long.bitCount( word );
+        }
+        return count;
+    }
+
+    /**
+     * @param a bitset
+     * @param b bitset
+     */
+    public static int intersectSize( long[] a, long[] b ) {
+        int words = Math.min( a.length, b.length );
+        int count = 0;
+        for ( int i = 0; i < words; i++ ) {
+            count += Long.bitCount( a[i] & b[i] );
+        }
+        return count;
+    }
+
+    /**
+     * @param a sorted distinct ordinals
+     * @param b bitset
+     */
+    public static int intersectSize( int[] a, long[] b ) {
+        int count = 0;
+        for ( int ordinal : a ) {
+            int word = ordinal >>> 6;
+            if ( word < b.length && ( b[word] & ( 1L << ordinal ) ) != 0 ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param a sorted distinct ordinals
+     * @param b sorted distinct ordinals
+     */
+    public static int intersectSize( int[] a, int[] b ) {
+        int[] small;
+        int[] large;
+        if ( a.length <= b.length ) {
+            small = a;
+            large = b;
+        } else {
+            small = b;
+            large = a;
+        }
+        if ( small.length == 0 ) {
+            return 0;
+        }
+        // Galloping costs about log2(|large|) per element of small, merging |small| + |large| in all
+        int log2Large = 32 - Integer.numberOfLeadingZeros( large.length );
+        if ( ( long ) small.length * log2Large < small.length + large.length ) {
+            return gallopingIntersectSize( small, large );
+        }
+        return mergingIntersectSize( small, large );
+    }
+
+    private static int mergingIntersectSize( int[] a, int[] b ) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while ( i < a.length && j < b.length ) {
+            if ( a[i] < b[j] ) {
+                i++;
+            } else if ( a[i] > b[j] ) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    private static int gallopingIntersectSize( int[] small, int[] large ) {
+        int count = 0;
+        int low = 0;
+        for ( int v : small ) {
+            // Double the step until past v, then binary search the last step
+            int step = 1;
+            while ( low + step < large.length && large[low + step] < v ) {
+                step <<= 1;
+            }
+            int idx = Arrays.binarySearch( large, low + ( step >>> 1 ), Math.min( low + step + 1, large.length ), v );
+            if ( idx >= 0 ) {
+                count++;
+                low = idx + 1;
+            } else {
+                low = -idx - 1;
+            }
+            if ( low >= large.length ) {
+                break;
+            }
+        }
+        return count;
+    }
+
 }
@@ -0,0 +1,144 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.utilities;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a set of named stages on a bounded thread pool, starting each stage as soon as all the stages it depends on
+ * have completed. Stages with no mutual dependency run concurrently. The time taken by each stage is logged.
+ * <p>
+ * Stages must be registered after the stages they depend on, which also rules out cycles.
+ *
+ * @author mjacobson
+ */
+public class StagedExecutor {
+
+    private static final Logger log = Logger.getLogger( StagedExecutor.class );
+
+    private final String name;
+    private final int threads;
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    private static final class Stage {
+        private final String name;
+        private final Runnable task;
+        private final String[] dependencies;
+
+        private Stage( String name, Runnable task, String[] dependencies ) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+        }
+    }
+
+    /**
+     * @param name    name used for logging and worker threads
+     * @param threads maximum number of stages to run at once
+     */
+    public StagedExecutor( String name, int threads ) {
+        this.name = name;
+        this.threads = Math.max( 1, threads );
+    }
+
+    /**
+     * Register a stage.
+     *
+     * @param stageName    unique name of this stage
+     * @param task         work to run
+     * @param dependencies names of previously registered stages which must complete before this one starts
+     * @return this executor, for chaining
+     */
+    public StagedExecutor stage( String stageName, Runnable task, String... dependencies ) {
+        if ( stages.containsKey( stageName ) ) {
+            throw new IllegalArgumentException( "Stage (" + stageName + ") already registered." );
+        }
+        for ( String dependency : dependencies ) {
+            if ( !stages.containsKey( dependency ) ) {
+                throw new IllegalArgumentException(
+                        "Stage (" + stageName + ") depends on unknown stage (" + dependency + ")." );
+            }
+        }
+        stages.put( stageName, new Stage( stageName, task, dependencies ) );
+        return this;
+    }
+
+    /**
+     * Run all registered stages and block until they are complete. If any stage fails, stages depending on it are
+     * not run and the first failure is rethrown once all running stages have settled.
+     */
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool( threads,
+                new ThreadFactoryBuilder().setNameFormat( name + "-%d" ).setDaemon( true ).build() );
+
+        log.info( name + ": running " + stages.size() + " stages on " + threads + " threads" );
+        long start = System.currentTimeMillis();
+
+        try {
+            Map<String, CompletableFuture<Void>> futures = new LinkedHashMap<>();
+            for ( Stage stage : stages.values() ) {
+                CompletableFuture<?>[] deps = new CompletableFuture<?>[stage.dependencies.length];
+                for ( int i = 0; i < deps.length; i++ ) {
+                    deps[i] = futures.get( stage.dependencies[i] );
+                }
+                futures.put( stage.name, CompletableFuture.allOf( deps ).thenRunAsync( () -> runStage( stage ), pool ) );
+            }
+
+            CompletableFuture<Void> all = CompletableFuture.allOf( futures.values().toArray( new CompletableFuture<?>[0] ) );
+            try {
+                all.join();
+            } catch ( CompletionException e ) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                if ( cause instanceof RuntimeException ) {
+                    throw ( RuntimeException ) cause;
+                }
+                throw new RuntimeException( cause );
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        log.info( name + ": all stages complete in " + ( System.currentTimeMillis() - start ) + "ms" );
+    }
+
+    private void runStage( Stage stage ) {
+        log.info( name + ": stage (" + stage.name + ") started" );
+        long stageStart = System.currentTimeMillis();
+        try {
+            stage.task.run();
+        } catch ( RuntimeException e ) {
+            log.error( name + ": stage (" + stage.name + ") failed after "
+                    + ( System.currentTimeMillis() - stageStart ) + "ms", e );
+            throw e;
+        }
+        log.info( name + ": stage (" + stage.name + ") complete in "
+                + ( System.currentTimeMillis() - stageStart ) + "ms" );
+    }
+
+}
@@ -25,6 +25,9 @@ import java.util.Set;
 
 /**
  * Efficiently calculates Tversky index two sets.
+ * <p>
+ * Sets of elements numbered by dense ordinals can also be given as bitsets or sorted arrays of distinct ordinals, see
+ * {@link Jaccard}.
  * 
  * @author mjacobson
  * @version $Id$
@@ -60,8 +63,62 @@ public class Tversky {
         return calculateFastUnidirectional( prototype, variant );
     }
 
+    /**
+     * @param a bitset
+     * @param b bitset
+     */
+    public static Double similarity( long[] a, long[] b, double alpha, double beta ) {
+        if ( a == null && b == null ) return null;
+        return calculate( Jaccard.cardinality( a ), Jaccard.cardinality( b ), Jaccard.intersectSize( a, b ), alpha,
+                beta );
+    }
+
+    /**
+     * @param a sorted distinct ordinals
+     * @param b sorted distinct ordinals
+     */
+    public static Double similarity( int[] a, int[] b, double alpha, double beta ) {
+        if ( a == null && b == null ) return null;
+        return calculate( a.length, b.length, Jaccard.intersectSize( a, b ), alpha, beta );
+    }
+
+    /**
+     * @param prototype bitset
+     * @param variant   bitset
+     */
+    public static Double similarityPrototypeWeighted( long[] prototype, long[] variant ) {
+        if ( prototype == null && variant == null ) return null;
+        return calculateFastUnidirectional( Jaccard.cardinality( prototype ), Jaccard.cardinality( variant ),
+                Jaccard.intersectSize( prototype, variant ) );
+    }
+
+    /**
+     * @param prototype sorted distinct ordinals
+     * @param variant   sorted distinct ordinals
+     */
+    public static Double similarityPrototypeWeighted( int[] prototype, int[] variant ) {
+        if ( prototype == null && variant == null ) return null;
+        return calculateFastUnidirectional( prototype.length, variant.length,
+                Jaccard.intersectSize( prototype, variant ) );
+    }
+
     // Calculation
 
+    private static Double calculate( int sizeA, int sizeB, int intersect, double alpha, double beta ) {
+        if ( sizeA == 0 && sizeB == 0 ) return 1.0d;
+        if ( sizeA == 0 || sizeB == 0 ) return 0.0d;
+
+        return ( intersect ) / ( intersect + alpha * ( sizeA - intersect ) + beta * ( sizeB - intersect ) );
+    }
+
+    private static Double calculateFastUnidirectional( int prototypeSize, int variantSize, int intersect ) {
+        if ( prototypeSize == 0 && variantSize == 0 ) return 1.0d;
+        if ( prototypeSize == 0 || variantSize == 0 ) return 0.0d;
+
+        // |prototype \ variant| = |prototype| - intersect
+        return ( ( double ) intersect ) / ( intersect + prototypeSize - intersect );
+    }
+
     private static <T> Double calculate( Set<T> a, Set<T> b, double alpha, double beta ) {
         int intersect = intersectSize( a, b );
         return ( intersect )
@@ -37,12 +37,15 @@ import ubc.pavlab.gotrack.model.Species;
 import ubc.pavlab.gotrack.model.dto.EditionDTO;
 import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+import ubc.pavlab.gotrack.utilities.Jaccard;
+import ubc.pavlab.gotrack.utilities.Tversky;
 
 import java.sql.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Tests EnrichmentAnalysis Class, does not test accuracy of individual over-representation analyses as that
@@ -496,4 +499,235 @@ public class EnrichmentAnalysisTest extends BaseTest {
         Assert.assertThat( e.getTotalResults(), Matchers.is( 192 ) );
     }
 
+    @Test
+    public void testHitListEdit() {
+        EnrichmentAnalysis previous = new EnrichmentAnalysis( sampleMap, 3, 98, MultipleTestCorrection.BH, 0.05,
+                cache, human );
+
+        // Replace Gene 4 by Gene 5
+        Set<Integer> editedIds = Sets.newHashSet( 0, 1, 2, 3, 5, 100 );
+        Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> editedMap = Maps.newHashMap();
+        Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> addedMap = Maps.newHashMap();
+        for ( Entry<Edition, Map<GeneOntologyTerm, Set<Gene>>> e : populationMap.entrySet() ) {
+            editedMap.put( e.getKey(), filterMap( e.getValue(), editedIds ) );
+            addedMap.put( e.getKey(), filterMap( e.getValue(), Sets.newHashSet( 5 ) ) );
+        }
+
+        EnrichmentAnalysis expected = new EnrichmentAnalysis( editedMap, 3, 98, MultipleTestCorrection.BH, 0.05,
+                cache, human );
+        EnrichmentAnalysis edited = new EnrichmentAnalysis( previous, addedMap, Sets.newHashSet( genes.get( 3 ) ),
+                cache );
+
+        Assert.assertThat( edited.getTotalGenes(), Matchers.is( expected.getTotalGenes() ) );
+        Assert.assertThat( edited.getTotalResults(), Matchers.is( expected.getTotalResults() ) );
+        Assert.assertThat( edited.getTermsSignificantInAnyEdition(),
+                Matchers.is( expected.getTermsSignificantInAnyEdition() ) );
+        for ( Edition ed : Lists.newArrayList( ed1, ed2 ) ) {
+            Map<GeneOntologyTerm, EnrichmentResult> expectedResults = expected.getRawResults( ed ).getResults();
+            Map<GeneOntologyTerm, EnrichmentResult> results = edited.getRawResults( ed ).getResults();
+            Assert.assertThat( results.keySet(), Matchers.is( expectedResults.keySet() ) );
+            for ( Entry<GeneOntologyTerm, EnrichmentResult> e : expectedResults.entrySet() ) {
+                EnrichmentResult er = results.get( e.getKey() );
+                Assert.assertThat( er, Matchers.is( e.getValue() ) );
+                Assert.assertThat( er.getPvalue(), Matchers.is( e.getValue().getPvalue() ) );
+                Assert.assertThat( er.getAdjustedPvalue(), Matchers.is( e.getValue().getAdjustedPvalue() ) );
+                Assert.assertThat( er.getFractionalRank(), Matchers.is( e.getValue().getFractionalRank() ) );
+                Assert.assertThat( er.isSignificant(), Matchers.is( e.getValue().isSignificant() ) );
+            }
+            Assert.assertThat( edited.getGeneSet( ed, terms.get( 99 ) ),
+                    Matchers.is( expected.getGeneSet( ed, terms.get( 99 ) ) ) );
+        }
+
+        // Same sample size, only terms whose count changed are tested again
+        Assert.assertThat( edited.getRawResults( ed1 ).getReusedResults(), Matchers.greaterThan( 0 ) );
+
+        // An edit without annotations keeps every edition as it was
+        EnrichmentAnalysis untouched = new EnrichmentAnalysis( previous, Maps.newHashMap(), Sets.newHashSet(),
+                cache );
+        Assert.assertThat( untouched.getRawResults( ed1 ), Matchers.sameInstance( previous.getRawResults( ed1 ) ) );
+        Assert.assertThat( untouched.getRawResults( ed2 ), Matchers.sameInstance( previous.getRawResults( ed2 ) ) );
+    }
+
+    @Test
+    public void testStability() {
+        EnrichmentAnalysis e = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BONFERRONI, 0.05, cache,
+                human );
+        StabilityAnalysis sa = new StabilityAnalysis( e );
+
+        Assert.assertThat( sa.getStabilityScores().keySet(), Matchers.is( e.getTermsSignificantInAnyEdition() ) );
+        for ( GeneOntologyTerm t : e.getTermsSignificantInAnyEdition() ) {
+            EnrichmentResult er1 = e.getResult( ed1, t );
+            EnrichmentResult er2 = e.getResult( ed2, t );
+
+            // Nothing to compare the first edition against
+            StabilityScore first = sa.getStabilityScores( t, ed1 );
+            Assert.assertThat( first.getSampleSigma(), Matchers.is( -1.0 ) );
+            Assert.assertThat( first.getMinPvalue(), Matchers.is( er1.getPvalue() ) );
+            Assert.assertThat( first.getMaxPvalue(), Matchers.is( er1.getPvalue() ) );
+
+            // A single change between editions has no spread
+            StabilityScore second = sa.getStabilityScores( t, ed2 );
+            if ( er2 == null ) {
+                Assert.assertThat( second, Matchers.nullValue() );
+                continue;
+            }
+            Assert.assertThat( second.getSampleSigma(), Matchers.is( 0.0 ) );
+            Assert.assertThat( second.getPopulationSigma(), Matchers.is( 0.0 ) );
+            Assert.assertThat( second.getMinPvalue(), Matchers.lessThanOrEqualTo( second.getMaxPvalue() ) );
+            Assert.assertThat( second.getPastSignificancePercentage(), Matchers.is( er2.isSignificant() ? 1.0 : 0.0 ) );
+        }
+    }
+
+    @Test
+    public void testResultMatrix() {
+        EnrichmentAnalysis e = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BH, 0.05, cache,
+                human );
+        EnrichmentResultMatrix matrix = e.getResultMatrix();
+
+        Assert.assertThat( matrix.getEditions(), Matchers.contains( ed1, ed2 ) );
+        Assert.assertThat( Sets.newHashSet( matrix.getTerms() ), Matchers.is( e.getTermsSignificantInAnyEdition() ) );
+        Assert.assertThat( matrix.termOrdinal( terms.get( 99 ) ), Matchers.is( -1 ) );
+
+        for ( int ei = 0; ei < matrix.getEditions().size(); ei++ ) {
+            Edition ed = matrix.getEditions().get( ei );
+            Assert.assertThat( matrix.getCutoff( ei ), Matchers.is( e.getCutoff( ed ) ) );
+
+            Map<GeneOntologyTerm, EnrichmentResult> expected = Maps.filterKeys( e.getRawResults( ed ).getResults(),
+                    e.getTermsSignificantInAnyEdition()::contains );
+            Assert.assertThat( e.getResults( ed ), Matchers.is( expected ) );
+            Assert.assertThat( e.getResults( ed ).size(), Matchers.is( expected.size() ) );
+
+            for ( int t = 0; t < matrix.getTerms().size(); t++ ) {
+                GeneOntologyTerm term = matrix.getTerms().get( t );
+                EnrichmentResult er = e.getResult( ed, term );
+                Assert.assertThat( matrix.getResult( t, ei ), Matchers.sameInstance( er ) );
+                if ( er != null ) {
+                    Assert.assertThat( matrix.getPvalue( t, ei ), Matchers.is( er.getPvalue() ) );
+                    Assert.assertThat( matrix.getRank( t, ei ), Matchers.is( er.getRank() ) );
+                    Assert.assertThat( matrix.getSampleAnnotated( t, ei ), Matchers.is( er.getSampleAnnotated() ) );
+                    Assert.assertThat( matrix.getPopulationAnnotated( t, ei ),
+                            Matchers.is( er.getPopulationAnnotated() ) );
+                    Assert.assertThat( matrix.isSignificant( t, ei ), Matchers.is( er.isSignificant() ) );
+                    Assert.assertThat( e.getResults( term ).get( ed ), Matchers.sameInstance( er ) );
+                } else {
+                    Assert.assertThat( e.getResults( term ).containsKey( ed ), Matchers.is( false ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSimilarity() {
+        EnrichmentAnalysis e = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BH, 0.05, cache,
+                human );
+
+        // Terms are the same in both editions
+        Mockito.doAnswer( invocation -> terms.stream()
+                .filter( t -> t.getGoId().equals( invocation.getArguments()[1] ) ).findFirst().orElse( null ) )
+                .when( cache ).getTerm( Mockito.any( Edition.class ), Mockito.anyString() );
+
+        for ( SimilarityMethod sm : SimilarityMethod.values() ) {
+            SimilarityAnalysis sa = new SimilarityAnalysis( e, 5, ed2, sm, cache );
+            Assert.assertThat( sa.getSimilarityScores().keySet(), Matchers.contains( ed1, ed2 ) );
+
+            Enrichment<GeneOntologyTerm, Gene> reference = e.getRawResults( ed2 );
+            for ( Edition ed : Lists.newArrayList( ed1, ed2 ) ) {
+                Enrichment<GeneOntologyTerm, Gene> test = e.getRawResults( ed );
+                SimilarityScore score = sa.getSimilarityScore( ed );
+
+                Assert.assertThat( score.getTopTerms(), Matchers.is( test.getTopNTerms( 5 ) ) );
+                Assert.assertThat( score.getCompleteTermSim(),
+                        Matchers.is( similarity( sm, test.getSignificantTerms(), reference.getSignificantTerms() ) ) );
+                Assert.assertThat( score.getTopTermSim(),
+                        Matchers.is( similarity( sm, test.getTopNTerms( 5 ), reference.getTopNTerms( 5 ) ) ) );
+                Assert.assertThat( score.getTopGeneSim(), Matchers.is( similarity( sm, score.getTopGenes(),
+                        sa.getSimilarityScore( ed2 ).getTopGenes() ) ) );
+                Assert.assertThat( score.getTopParentsSim(), Matchers.is( similarity( sm, score.getTopParents(),
+                        sa.getSimilarityScore( ed2 ).getTopParents() ) ) );
+            }
+            Assert.assertThat( sa.getSimilarityScore( ed2 ).getCompleteTermSim(), Matchers.is( 1.0 ) );
+        }
+    }
+
+    @Test
+    public void testSimilarityMatrix() {
+        EnrichmentAnalysis e = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BH, 0.05, cache,
+                human );
+
+        // Terms are the same in both editions
+        Mockito.doAnswer( invocation -> terms.stream()
+                .filter( t -> t.getGoId().equals( invocation.getArguments()[1] ) ).findFirst().orElse( null ) )
+                .when( cache ).getTerm( Mockito.any( Edition.class ), Mockito.anyString() );
+
+        for ( SimilarityMethod sm : SimilarityMethod.values() ) {
+            SimilarityMatrixAnalysis matrix = new SimilarityMatrixAnalysis( e, 5, sm, cache );
+            Assert.assertThat( matrix.getEditions(), Matchers.contains( ed1, ed2 ) );
+
+            // Each column is the same as comparing to that edition alone
+            for ( int j = 0; j < matrix.getEditions().size(); j++ ) {
+                SimilarityAnalysis sa = new SimilarityAnalysis( e, 5, matrix.getEditions().get( j ), sm, cache );
+                for ( int i = 0; i < matrix.getEditions().size(); i++ ) {
+                    SimilarityScore score = sa.getSimilarityScore( matrix.getEditions().get( i ) );
+                    Assert.assertThat( matrix.getCompleteTermSim()[i][j], Matchers.is( score.getCompleteTermSim() ) );
+                    Assert.assertThat( matrix.getTopTermSim()[i][j], Matchers.is( score.getTopTermSim() ) );
+                    Assert.assertThat( matrix.getTopGeneSim()[i][j], Matchers.is( score.getTopGeneSim() ) );
+                    Assert.assertThat( matrix.getTopParentsSim()[i][j], Matchers.is( score.getTopParentsSim() ) );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSimilarityMatrixObsoleteTerm() {
+        // A term annotated to every gene of the sample in the first edition, gone from the ontology of the second
+        GeneOntologyTerm obsolete = new GeneOntologyTerm( "GO:0000101" );
+        Set<Gene> sample = sampleMap.get( ed1 ).values().stream().flatMap( Set::stream )
+                .collect( Collectors.toSet() );
+        populationMap.get( ed1 ).put( obsolete, sample );
+        sampleMap.get( ed1 ).put( obsolete, sample );
+        List<GeneOntologyTerm> ed1Terms = Lists.newArrayList( terms );
+        ed1Terms.add( obsolete );
+
+        EnrichmentAnalysis e = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BH, 0.05, cache,
+                human );
+        Assert.assertThat( e.getRawResults( ed1 ).getTopNTerms( 5 ), Matchers.hasItem( obsolete ) );
+
+        Mockito.doAnswer( invocation -> {
+            List<GeneOntologyTerm> ontology = invocation.getArguments()[0].equals( ed1 ) ? ed1Terms : terms;
+            return ontology.stream().filter( t -> t.getGoId().equals( invocation.getArguments()[1] ) ).findFirst()
+                    .orElse( null );
+        } ).when( cache ).getTerm( Mockito.any( Edition.class ), Mockito.anyString() );
+
+        for ( SimilarityMethod sm : SimilarityMethod.values() ) {
+            SimilarityMatrixAnalysis matrix = new SimilarityMatrixAnalysis( e, 5, sm, cache );
+
+            for ( int j = 0; j < matrix.getEditions().size(); j++ ) {
+                // An edition is identical to itself, even with a term the other ontology lacks
+                Assert.assertThat( matrix.getCompleteTermSim()[j][j], Matchers.is( 1.0 ) );
+                Assert.assertThat( matrix.getTopTermSim()[j][j], Matchers.is( 1.0 ) );
+                Assert.assertThat( matrix.getTopGeneSim()[j][j], Matchers.is( 1.0 ) );
+                Assert.assertThat( matrix.getTopParentsSim()[j][j], Matchers.is( 1.0 ) );
+
+                SimilarityAnalysis sa = new SimilarityAnalysis( e, 5, matrix.getEditions().get( j ), sm, cache );
+                for ( int i = 0; i < matrix.getEditions().size(); i++ ) {
+                    SimilarityScore score = sa.getSimilarityScore( matrix.getEditions().get( i ) );
+                    Assert.assertThat( matrix.getCompleteTermSim()[i][j], Matchers.is( score.getCompleteTermSim() ) );
+                    Assert.assertThat( matrix.getTopTermSim()[i][j], Matchers.is( score.getTopTermSim() ) );
+                    Assert.assertThat( matrix.getTopGeneSim()[i][j], Matchers.is( score.getTopGeneSim() ) );
+                    Assert.assertThat( matrix.getTopParentsSim()[i][j], Matchers.is( score.getTopParentsSim() ) );
+                }
+            }
+
+            // The first edition's top terms lose the obsolete term when compared to the second
+            int first = matrix.editionOrdinal( ed1 );
+            int second = matrix.editionOrdinal( ed2 );
+            Assert.assertThat( matrix.getTopTermSim()[first][second], Matchers.lessThan( 1.0 ) );
+        }
+    }
+
+    private static <T> Double similarity( SimilarityMethod sm, Set<T> test, Set<T> reference ) {
+        return sm == SimilarityMethod.JACCARD ? Jaccard.similarity( test, reference ) :
+                Tversky.similarityPrototypeWeighted( test, reference );
+    }
+
 }
@@ -22,7 +22,6 @@ package ubc.pavlab.gotrack.analysis;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.apache.log4j.Logger;
 import org.hamcrest.Matchers;
 import org.junit.*;
@@ -31,7 +30,6 @@ import ubc.pavlab.gotrack.BaseTest;
 import ubc.pavlab.gotrack.model.Gene;
 import ubc.pavlab.gotrack.model.Species;
 import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
-import ubc.pavlab.gotrack.model.hashkey.HyperUCFKey;
 
 import java.util.*;
 import java.util.Map.Entry;
@@ -733,6 +731,94 @@ public class EnrichmentTest extends BaseTest {
 
     }
 
+    @Test
+    public void testEnrichmentMultipleAdjustedPValues() {
+        GeneOntologyTerm t = new GeneOntologyTerm( "GO:0000001" );
+        GeneOntologyTerm t2 = new GeneOntologyTerm( "GO:0000002" );
+        GeneOntologyTerm t3 = new GeneOntologyTerm( "GO:0000003" );
+        GeneOntologyTerm t4 = new GeneOntologyTerm( "GO:0000004" );
+        List<GeneOntologyTerm> tests = Lists.newArrayList( t, t2, t3, t4 );
+        int n = tests.size();
+        double dependence = 1 + 1 / 2.0 + 1 / 3.0 + 1 / 4.0;
+
+        for ( MultipleTestCorrection mtc : MultipleTestCorrection.values() ) {
+            Enrichment<GeneOntologyTerm, Gene> e = new Enrichment<>( mtc, 0.05, 0, 0 );
+            e.runAnalysis( sample, population, Sets.newHashSet( tests ) );
+
+            tests.sort( Comparator.comparingDouble( term -> e.getResult( term ).getPvalue() ) );
+
+            // Unadjusted values by ascending p-value, then made monotone
+            double[] expected = new double[n];
+            for ( int i = 0; i < n; i++ ) {
+                double p = e.getResult( tests.get( i ) ).getPvalue();
+                switch ( mtc ) {
+                    case BONFERRONI:
+                        expected[i] = p * n;
+                        break;
+                    case HOLM:
+                    case HOCHBERG:
+                        expected[i] = p * ( n - i );
+                        break;
+                    case BH:
+                        expected[i] = p * n / ( i + 1 );
+                        break;
+                    case BY:
+                        expected[i] = p * n * dependence / ( i + 1 );
+                        break;
+                }
+                expected[i] = Math.min( 1, expected[i] );
+            }
+            if ( mtc.equals( MultipleTestCorrection.HOLM ) ) {
+                for ( int i = 1; i < n; i++ ) {
+                    expected[i] = Math.max( expected[i], expected[i - 1] );
+                }
+            } else if ( mtc.isStepUp() ) {
+                for ( int i = n - 2; i >= 0; i-- ) {
+                    expected[i] = Math.min( expected[i], expected[i + 1] );
+                }
+            }
+
+            for ( int i = 0; i < n; i++ ) {
+                EnrichmentResult er = e.getResult( tests.get( i ) );
+                Assert.assertThat( mtc.toString(), er.getAdjustedPvalue(), Matchers.closeTo( expected[i], 1e-12 ) );
+                Assert.assertThat( mtc.toString(), er.getAdjustedPvalue() <= 0.05, Matchers.is( er.isSignificant() ) );
+            }
+        }
+
+    }
+
+    @Test
+    public void testDensePopulation() {
+        Map<GeneOntologyTerm, Set<Gene>> sampleMap = Maps.newHashMap();
+        for ( GeneOntologyTerm t : sample.getProperties() ) {
+            sampleMap.put( t, sample.getEntities( t ) );
+        }
+        DenseCompletePopulation<GeneOntologyTerm, Gene> dense = CompletePopulation.denseCompletePopulation( sampleMap );
+
+        Assert.assertThat( dense.size(), Matchers.is( sample.size() ) );
+        Assert.assertThat( dense.getEntities(), Matchers.is( sample.getEntities() ) );
+        Assert.assertThat( dense.getProperties(), Matchers.is( sample.getProperties() ) );
+        for ( GeneOntologyTerm t : terms ) {
+            Assert.assertThat( dense.countProperty( t ), Matchers.is( sample.countProperty( t ) ) );
+            Assert.assertThat( dense.getEntities( t ), Matchers.is( sample.getEntities( t ) ) );
+        }
+        Assert.assertThat( dense.count( new GeneOntologyTerm( "GO:0001000" ) ), Matchers.is( -1 ) );
+        Assert.assertThat( dense.getEntities( terms.get( 4 ) ).contains( genes.get( 3 ) ), Matchers.is( true ) );
+        Assert.assertThat( dense.getEntities( terms.get( 4 ) ).contains( genes.get( 4 ) ), Matchers.is( false ) );
+
+        Enrichment<GeneOntologyTerm, Gene> expected = new Enrichment<>( MultipleTestCorrection.BH, 0.05, 0, 0 );
+        expected.runAnalysis( sample, population );
+        Enrichment<GeneOntologyTerm, Gene> e = new Enrichment<>( MultipleTestCorrection.BH, 0.05, 0, 0 );
+        e.runAnalysis( dense, population );
+
+        Assert.assertThat( e.getSignificantTerms(), Matchers.is( expected.getSignificantTerms() ) );
+        for ( GeneOntologyTerm t : expected.getResults().keySet() ) {
+            Assert.assertThat( e.getResult( t ).getPvalue(), Matchers.is( expected.getResult( t ).getPvalue() ) );
+            Assert.assertThat( e.getResult( t ).getRank(), Matchers.is( expected.getResult( t ).getRank() ) );
+        }
+
+    }
+
     @Test(timeout = 60000)
     public void testLoad() {
         int gsetSize = 100;
@@ -766,7 +852,7 @@ public class EnrichmentTest extends BaseTest {
         // run analysis X times, get average time
         long start = System.currentTimeMillis();
         int iterations = 1000;
-        TObjectDoubleHashMap<HyperUCFKey> logProbCache = new TObjectDoubleHashMap<>(); // simulates warm caches
+        HyperGeometricCache logProbCache = new HyperGeometricCache( 1 << 16 ); // simulates warm caches
         for ( int i = 0; i < iterations; i++ ) {
             Enrichment<GeneOntologyTerm, Gene> e = new Enrichment<>( MultipleTestCorrection.BONFERRONI, 0.05, 0, 0 );
             e.runAnalysis( sample, population, logProbCache );
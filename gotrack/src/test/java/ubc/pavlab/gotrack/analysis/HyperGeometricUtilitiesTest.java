@@ -20,6 +20,7 @@
 package ubc.pavlab.gotrack.analysis;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.Random;
@@ -27,6 +28,7 @@ import java.util.Random;
 import org.apache.commons.math3.distribution.HypergeometricDistribution;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.random.RandomGeneratorFactory;
+import org.apache.commons.math3.util.CombinatoricsUtils;
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
@@ -53,6 +55,7 @@ public class HyperGeometricUtilitiesTest {
 
     @BeforeClass
     public static void classSetup() {
+        HyperGeometricUtilities.ensureLogFactorials( 20000 );
         Random rnd = new Random( 12345 );
         RandomGenerator rg = RandomGeneratorFactory.createRandomGenerator( rnd );
         rndints = new int[TEST_COUNT][4];
@@ -125,6 +128,47 @@ public class HyperGeometricUtilitiesTest {
 
     }
 
+    @Test
+    public void testLogFactorialTable() {
+        for ( int[] arr : rndints ) {
+            int r = arr[3], m = arr[1], k = arr[2], t = arr[0];
+            double expected = ( CombinatoricsUtils.binomialCoefficientLog( m, r )
+                    - CombinatoricsUtils.binomialCoefficientLog( t, k ) )
+                    + CombinatoricsUtils.binomialCoefficientLog( t - m, k - r );
+            assertEquals( expected, HyperGeometricUtilities.sampleProbabilityLog( r, m, k, t ),
+                    1e-9 * Math.max( 1, Math.abs( expected ) ) );
+        }
+        // Beyond the table it is grown
+        assertEquals( CombinatoricsUtils.binomialCoefficientLog( 30000, 10 )
+                        - CombinatoricsUtils.binomialCoefficientLog( 50000, 20 )
+                        + CombinatoricsUtils.binomialCoefficientLog( 20000, 10 ),
+                HyperGeometricUtilities.sampleProbabilityLog( 10, 30000, 20, 50000 ), 1e-9 );
+    }
+
+    @Test
+    public void testCache() {
+        HyperGeometricCache cache = new HyperGeometricCache( 1024 );
+        for ( int pass = 0; pass < 2; pass++ ) {
+            for ( int i = 0; i < 512; i++ ) {
+                int[] arr = rndints[i];
+                assertEquals(
+                        HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( arr[3], arr[1], arr[2], arr[0] ),
+                        cache.upperCumulativeProbabilityLog( arr[3], arr[1], arr[2], arr[0] ), 0 );
+            }
+        }
+        assertEquals( 1024, cache.capacity() );
+        assertEquals( 1024, cache.getHits() + cache.getMisses() );
+        assertTrue( cache.getHits() > 256 );
+
+        // Filling well past capacity evicts but keeps answering correctly
+        for ( int[] arr : rndints ) {
+            assertEquals(
+                    HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( arr[3], arr[1], arr[2], arr[0] ),
+                    cache.upperCumulativeProbabilityLog( arr[3], arr[1], arr[2], arr[0] ), 0 );
+        }
+        assertTrue( cache.getEvictions() > 0 );
+    }
+
     private static int rndInt( int min, int max, Random r ) {
         return min + ( int ) ( r.nextDouble() * ( ( max - min ) + 1 ) );
     }
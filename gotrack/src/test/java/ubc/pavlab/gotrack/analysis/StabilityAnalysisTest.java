@@ -19,12 +19,207 @@
 
 package ubc.pavlab.gotrack.analysis;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.model.Edition;
+import ubc.pavlab.gotrack.model.GOEdition;
+import ubc.pavlab.gotrack.model.Gene;
+import ubc.pavlab.gotrack.model.Species;
+import ubc.pavlab.gotrack.model.dto.EditionDTO;
+import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
 /**
- * TODO Write Me
+ * Tests StabilityAnalysis over enough editions to fill its windows, against scores computed directly from their
+ * definitions.
  * 
  * @author mjacobson
  * @version $Id$
  */
 public class StabilityAnalysisTest {
 
+    private static final Species human = new Species( 7, "Human", "", 9606, null );
+
+    private static final int EDITIONS = 32;
+    private static final int POPULATION_SIZE = 100;
+    private static final int SAMPLE_SIZE = 10;
+
+    // Changes are weighted 1 to 6 over the last 6 changes, the mean is over the weight of a full window
+    private static final int WINDOW_SIZE = 6;
+    private static final int WINDOW_WEIGHT = 21;
+    private static final int SIGNIFICANCE_SIZE = 24;
+
+    private List<Edition> editions;
+    private List<Gene> sample;
+
+    // Sample and population annotated of each term by edition
+    private Map<GeneOntologyTerm, IntUnaryOperator> sampleAnnotated;
+    private Map<GeneOntologyTerm, IntUnaryOperator> populationAnnotated;
+
+    private EnrichmentAnalysis analysis;
+
+    @Before
+    public void setup() {
+        editions = Lists.newArrayList();
+        for ( int e = 0; e < EDITIONS; e++ ) {
+            Date date = Date.valueOf( LocalDate.of( 2010, 1, 1 ).plusMonths( e ) );
+            editions.add( new Edition( new EditionDTO( 7, e + 1, date, e + 1, e + 1 ), human,
+                    new GOEdition( new GOEditionDTO( e + 1, date ) ) ) );
+        }
+
+        sample = Lists.newArrayList();
+        for ( int i = 1; i <= SAMPLE_SIZE; i++ ) {
+            sample.add( new Gene.GeneBuilder( i, "Gene" + i, "", human, null ).build() );
+        }
+
+        // Irregular counts, significant in some editions and not in others
+        sampleAnnotated = Maps.newLinkedHashMap();
+        populationAnnotated = Maps.newLinkedHashMap();
+        GeneOntologyTerm t1 = new GeneOntologyTerm( "GO:0000001" );
+        sampleAnnotated.put( t1, e -> 1 + ( 7 * e + 3 ) % 9 );
+        populationAnnotated.put( t1, e -> sampleAnnotated.get( t1 ).applyAsInt( e ) + 10 + ( 5 * e ) % 13 );
+        GeneOntologyTerm t2 = new GeneOntologyTerm( "GO:0000002" );
+        sampleAnnotated.put( t2, e -> 1 + ( e * e ) % 6 );
+        populationAnnotated.put( t2, e -> sampleAnnotated.get( t2 ).applyAsInt( e ) + 5 + ( 11 * e ) % 17 );
+        // Annotated to every gene, keeps the sample size constant and is never significant
+        GeneOntologyTerm all = new GeneOntologyTerm( "GO:0000003" );
+        sampleAnnotated.put( all, e -> SAMPLE_SIZE );
+        populationAnnotated.put( all, e -> POPULATION_SIZE );
+
+        Map<Edition, Map<GeneOntologyTerm, Set<Gene>>> sampleMap = Maps.newHashMap();
+        for ( int e = 0; e < EDITIONS; e++ ) {
+            Map<GeneOntologyTerm, Set<Gene>> termMap = Maps.newHashMap();
+            for ( Map.Entry<GeneOntologyTerm, IntUnaryOperator> entry : sampleAnnotated.entrySet() ) {
+                termMap.put( entry.getKey(),
+                        Sets.newHashSet( sample.subList( 0, entry.getValue().applyAsInt( e ) ) ) );
+            }
+            sampleMap.put( editions.get( e ), termMap );
+        }
+
+        Cache cache = Mockito.mock( Cache.class );
+        Mockito.when( cache.getInferredAnnotationCount( Mockito.any( Edition.class ),
+                Mockito.any( GeneOntologyTerm.class ) ) ).thenAnswer( invocation -> populationAnnotated
+                .get( invocation.getArguments()[1] ).applyAsInt( editions.indexOf( invocation.getArguments()[0] ) ) );
+        Mockito.when( cache.getGeneCount( Mockito.any( Edition.class ) ) ).thenReturn( POPULATION_SIZE );
+
+        analysis = new EnrichmentAnalysis( sampleMap, 0, 0, MultipleTestCorrection.BONFERRONI, 0.05, cache, human );
+    }
+
+    @Test
+    public void testStabilityScores() {
+        StabilityAnalysis sa = new StabilityAnalysis( analysis );
+
+        Assert.assertThat( sa.getStabilityScores().keySet(), Matchers.is( analysis.getTermsSignificantInAnyEdition() ) );
+        Assert.assertThat( sa.getStabilityScores().size(), Matchers.is( 2 ) );
+
+        for ( GeneOntologyTerm t : analysis.getTermsSignificantInAnyEdition() ) {
+            List<Integer> sampleChanges = Lists.newArrayList();
+            List<Integer> populationChanges = Lists.newArrayList();
+            List<Boolean> significance = Lists.newArrayList();
+            boolean significanceVaries = false;
+
+            EnrichmentResult first = analysis.getResult( editions.get( 0 ), t );
+            StabilityScore firstScore = sa.getStabilityScores( t, editions.get( 0 ) );
+            Assert.assertThat( firstScore.getSampleSigma(), Matchers.is( -1.0 ) );
+            Assert.assertThat( firstScore.getMinPvalue(), Matchers.is( first.getPvalue() ) );
+
+            for ( int e = 1; e < EDITIONS; e++ ) {
+                Edition ed = editions.get( e );
+                EnrichmentResult previous = analysis.getResult( editions.get( e - 1 ), t );
+                EnrichmentResult er = analysis.getResult( ed, t );
+                StabilityScore score = sa.getStabilityScores( t, ed );
+
+                sampleChanges.add( er.getSampleAnnotated() - previous.getSampleAnnotated() );
+                populationChanges.add( er.getPopulationAnnotated() - previous.getPopulationAnnotated() );
+                significance.add( er.isSignificant() );
+                significanceVaries |= er.isSignificant() != significance.get( 0 );
+
+                double sampleMean = weightedMean( sampleChanges );
+                double sampleStd = weightedStd( sampleChanges );
+                double populationMean = weightedMean( populationChanges );
+                double populationStd = weightedStd( populationChanges );
+
+                Assert.assertThat( score.getSampleSigma(), Matchers.closeTo( sampleStd, 1e-9 ) );
+                Assert.assertThat( score.getPopulationSigma(), Matchers.closeTo( populationStd, 1e-9 ) );
+
+                // Bounds of the 95% confidence interval of each count
+                int rMin = ( int ) Math.round( er.getSampleAnnotated() + sampleMean - 2 * sampleStd );
+                int rMax = ( int ) Math.round( er.getSampleAnnotated() + sampleMean + 2 * sampleStd );
+                int mMin = ( int ) Math.round( er.getPopulationAnnotated() + populationMean - 2 * populationStd );
+                int mMax = ( int ) Math.round( er.getPopulationAnnotated() + populationMean + 2 * populationStd );
+                Assert.assertThat( score.getMinPvalue(), Matchers.closeTo( pvalue( rMax, mMin ), 1e-12 ) );
+                Assert.assertThat( score.getMaxPvalue(), Matchers.closeTo( pvalue( rMin, mMax ), 1e-12 ) );
+
+                List<Boolean> recent = significance.subList( Math.max( 0, significance.size() - SIGNIFICANCE_SIZE ),
+                        significance.size() );
+                double fraction = ( double ) recent.stream().filter( s -> s ).count() / recent.size();
+                Assert.assertThat( score.getPastSignificancePercentage(), Matchers.closeTo( fraction, 1e-12 ) );
+            }
+
+            Assert.assertThat( significanceVaries, Matchers.is( true ) );
+        }
+    }
+
+    /**
+     * @return weighted mean of the last changes, over the total weight of a full window
+     */
+    private static double weightedMean( List<Integer> changes ) {
+        List<Integer> window = changes.subList( Math.max( 0, changes.size() - WINDOW_SIZE ), changes.size() );
+        double sum = 0;
+        for ( int i = 0; i < window.size(); i++ ) {
+            sum += ( i + 1 ) * window.get( i );
+        }
+        return sum / WINDOW_WEIGHT;
+    }
+
+    /**
+     * @return weighted standard deviation of the last changes, with Bessel's correction
+     */
+    private static double weightedStd( List<Integer> changes ) {
+        List<Integer> window = changes.subList( Math.max( 0, changes.size() - WINDOW_SIZE ), changes.size() );
+        int n = window.size();
+        if ( n < 2 ) {
+            return 0;
+        }
+        double sumWeight = 0;
+        double mean = 0;
+        for ( int i = 0; i < n; i++ ) {
+            sumWeight += i + 1;
+            mean += ( i + 1 ) * window.get( i );
+        }
+        mean /= sumWeight;
+        double m2 = 0;
+        for ( int i = 0; i < n; i++ ) {
+            m2 += ( i + 1 ) * ( window.get( i ) - mean ) * ( window.get( i ) - mean );
+        }
+        return Math.sqrt( m2 / sumWeight * n / ( n - 1 ) );
+    }
+
+    /**
+     * @return p-value of a contingency table bounded to make physical sense
+     */
+    private static double pvalue( int r, int m ) {
+        int k = SAMPLE_SIZE;
+        int t = POPULATION_SIZE;
+        m = Math.min( m, t );
+        r = Math.min( r, k );
+        m = Math.max( m, r );
+        r = Math.max( r, Math.max( 0, k - ( t - m ) ) );
+        return HyperGeometricUtilities.upperCumulativeProbabilityLogMethod( r, m, k, t );
+    }
+
 }
@@ -0,0 +1,229 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.beans.service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import ubc.pavlab.gotrack.analysis.CombinedAnalysis;
+import ubc.pavlab.gotrack.analysis.EnrichmentAnalysisOptions;
+import ubc.pavlab.gotrack.analysis.MultipleTestCorrection;
+import ubc.pavlab.gotrack.beans.Cache;
+import ubc.pavlab.gotrack.beans.SettingsCache;
+import ubc.pavlab.gotrack.model.*;
+import ubc.pavlab.gotrack.model.dto.EditionDTO;
+import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
+import ubc.pavlab.gotrack.model.go.GeneOntologyTerm;
+
+import java.sql.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests reuse of completed analyses by EnrichmentService.
+ *
+ * @author mjacobson
+ */
+public class EnrichmentServiceTest {
+
+    @InjectMocks
+    private EnrichmentService enrichmentService = new EnrichmentService();
+
+    @Mock
+    private Cache cache;
+
+    @Mock
+    private AnnotationService annotationService;
+
+    @Mock
+    private SettingsCache settingsCache;
+
+    private List<GeneOntologyTerm> terms;
+    private List<Gene> genes;
+
+    private Edition ed1;
+    private Edition ed2;
+
+    private EnrichmentAnalysisOptions options;
+
+    private static final Species human = new Species( 7, "Human", "", 9606, null );
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks( this );
+
+        terms = Lists.newArrayList();
+        for ( int i = 1; i < 101; i++ ) {
+            terms.add( new GeneOntologyTerm( "GO:00000" + String.format( "%02d", i ) ) );
+        }
+        genes = Lists.newArrayList();
+        for ( int i = 1; i < 101; i++ ) {
+            genes.add( new Gene.GeneBuilder( i, "Gene" + String.format( "%02d", i ), "", human, null ).build() );
+        }
+
+        ed1 = new Edition( new EditionDTO( 7, 1, Date.valueOf( "2016-01-01" ), 1, 1 ),
+                human, new GOEdition( new GOEditionDTO( 1, Date.valueOf( "2016-01-01" ) ) ) );
+        ed2 = new Edition( new EditionDTO( 7, 2, Date.valueOf( "2016-02-01" ), 2, 2 ),
+                human, new GOEdition( new GOEditionDTO( 2, Date.valueOf( "2016-02-01" ) ) ) );
+
+        /*
+         * Gene i has (Term i, Term i+1, ..., Term 100) in edition 1 and one term less in edition 2
+         */
+        for ( int i = 0; i < genes.size(); i++ ) {
+            Map<Edition, Set<GeneOntologyTerm>> data = Maps.newHashMap();
+            data.put( ed1, Sets.newHashSet( terms.subList( i, 100 ) ) );
+            data.put( ed2, Sets.newHashSet( terms.subList( Math.min( i + 1, 100 ), 100 ) ) );
+            Mockito.when( cache.getEnrichmentData( genes.get( i ) ) ).thenReturn( data );
+        }
+        Mockito.when( cache.getInferredAnnotationCount( Mockito.any( Edition.class ),
+                Mockito.any( GeneOntologyTerm.class ) ) ).thenAnswer( invocation -> {
+            int t = terms.indexOf( invocation.getArguments()[1] );
+            return invocation.getArguments()[0].equals( ed1 ) ? t + 1 : t;
+        } );
+        Mockito.when( cache.getGeneCount( Mockito.any( Edition.class ) ) ).thenReturn( genes.size() );
+        Mockito.when( cache.getCurrentEditions( human ) ).thenReturn( ed2 );
+        Mockito.when( cache.getTerm( Mockito.any( Edition.class ), Mockito.anyString() ) ).thenAnswer(
+                invocation -> terms.stream().filter( t -> t.getGoId().equals( invocation.getArguments()[1] ) )
+                        .findFirst().orElse( null ) );
+
+        Mockito.when( settingsCache.getAnalysisCacheWeight() ).thenReturn( 100000 );
+        Mockito.when( settingsCache.getAnalysisCacheTtl() ).thenReturn( 60 );
+        enrichmentService.init();
+
+        options = new EnrichmentAnalysisOptions();
+        options.setAspects( Lists.newArrayList( Aspect.values() ) );
+        options.setMinAnnotatedPopulation( 0 );
+    }
+
+    /**
+     * Reports the steps EnrichmentView.enrich() reports once the analysis is returned.
+     */
+    private static void finishLikeView( StatusPoller statusPoller ) {
+        statusPoller.newStatus( "Creating tables and charts...", 90 );
+        statusPoller.completeStatus();
+        statusPoller.newStatus( "Finished", 100 );
+    }
+
+    @Test
+    public void testIdenticalAnalysisReused() {
+        Set<Gene> hitList = Sets.newHashSet( genes.subList( 0, 5 ) );
+
+        StatusPoller first = new StatusPoller( " completed" );
+        CombinedAnalysis analysis = enrichmentService.combinedAnalysis( hitList, human, options, ed2, 5, first );
+        finishLikeView( first );
+        Assert.assertThat( analysis.isSuccess(), Matchers.is( true ) );
+
+        // Same genes in a different set, same options
+        StatusPoller second = new StatusPoller( " completed" );
+        CombinedAnalysis reused = enrichmentService.combinedAnalysis( Sets.newLinkedHashSet( Lists.reverse(
+                Lists.newArrayList( hitList ) ) ), human, options, ed2, 5, second );
+        finishLikeView( second );
+
+        Assert.assertThat( reused, Matchers.sameInstance( analysis ) );
+        Assert.assertThat( second.getProgress(), Matchers.is( 100 ) );
+        Assert.assertThat( enrichmentService.getAnalysisCacheStats().hitCount(), Matchers.is( 1L ) );
+    }
+
+    @Test
+    public void testDifferentAnalysisNotReused() {
+        Set<Gene> hitList = Sets.newHashSet( genes.subList( 0, 5 ) );
+
+        CombinedAnalysis analysis = enrichmentService.combinedAnalysis( hitList, human, options, ed2, 5,
+                new StatusPoller() );
+
+        options.setThreshold( 0.01 );
+        CombinedAnalysis other = enrichmentService.combinedAnalysis( hitList, human, options, ed2, 5,
+                new StatusPoller() );
+
+        Assert.assertThat( other, Matchers.not( Matchers.sameInstance( analysis ) ) );
+        Assert.assertThat( enrichmentService.getAnalysisCacheStats().hitCount(), Matchers.is( 0L ) );
+    }
+
+    @Test
+    public void testHitListEditReused() {
+        Set<Gene> hitList = Sets.newHashSet( genes.subList( 0, 5 ) );
+        Set<Gene> edited = Sets.newHashSet( genes.subList( 0, 6 ) );
+
+        StatusPoller first = new StatusPoller( " completed" );
+        CombinedAnalysis analysis = enrichmentService.combinedAnalysis( hitList, human, options, ed2, 5, first );
+        finishLikeView( first );
+
+        StatusPoller second = new StatusPoller( " completed" );
+        CombinedAnalysis editedAnalysis = enrichmentService.combinedAnalysis( analysis, hitList, edited, options, ed2,
+                5, second );
+        finishLikeView( second );
+        Assert.assertThat( editedAnalysis.isSuccess(), Matchers.is( true ) );
+
+        // Undoing the edit finds the first analysis
+        StatusPoller third = new StatusPoller( " completed" );
+        CombinedAnalysis undone = enrichmentService.combinedAnalysis( editedAnalysis, edited, hitList, options, ed2,
+                5, third );
+        finishLikeView( third );
+
+        Assert.assertThat( undone, Matchers.sameInstance( analysis ) );
+        Assert.assertThat( third.getProgress(), Matchers.is( 100 ) );
+    }
+
+    @Test
+    public void testEnrichmentReused() {
+        Set<Gene> hitList = Sets.newHashSet( genes.subList( 0, 5 ) );
+
+        for ( int i = 0; i < 2; i++ ) {
+            // Steps reported by the REST API after the enrichment
+            StatusPoller statusPoller = new StatusPoller();
+            Assert.assertThat( enrichmentService.enrichment( hitList, human, MultipleTestCorrection.BH, 0.05, 0, 0,
+                    null, statusPoller ), Matchers.notNullValue() );
+            statusPoller.newStatus( "Running Similarity Analysis...", 80 );
+            statusPoller.newStatus( "Complete", 100 );
+        }
+        Assert.assertThat( enrichmentService.getAnalysisCacheStats().hitCount(), Matchers.is( 1L ) );
+    }
+
+    @Test
+    public void testEnrichmentNotReusedForCombined() {
+        Set<Gene> hitList = Sets.newHashSet( genes.subList( 0, 5 ) );
+
+        enrichmentService.enrichment( hitList, human, options.getMultipleTestCorrection(), options.getThreshold(),
+                options.getMinAnnotatedPopulation(), options.getMaxAnnotatedPopulation(),
+                Sets.newHashSet( options.getAspects() ), new StatusPoller() );
+        CombinedAnalysis analysis = enrichmentService.combinedAnalysis( hitList, human, options, ed2, 5,
+                new StatusPoller() );
+
+        Assert.assertThat( analysis.getSimilarityAnalysis(), Matchers.notNullValue() );
+        Assert.assertThat( analysis.getStabilityAnalysis(), Matchers.notNullValue() );
+        Assert.assertThat( enrichmentService.getAnalysisCacheStats().hitCount(), Matchers.is( 0L ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombinedRequiresReference() {
+        enrichmentService.combinedAnalysis( Sets.newHashSet( genes.subList( 0, 5 ) ), human, options, null, 5,
+                new StatusPoller() );
+    }
+
+}
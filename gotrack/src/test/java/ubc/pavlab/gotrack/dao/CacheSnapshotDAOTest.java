@@ -0,0 +1,216 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.dao;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ubc.pavlab.gotrack.model.dto.*;
+
+import java.nio.file.Path;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.List;
+
+/**
+ * Does not require a database, snapshots are recorded from a stub CacheDAO.
+ *
+ * @author mjacobson
+ */
+public class CacheSnapshotDAOTest {
+
+    private static final int[] RESTRICTIONS = new int[] { 7 };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CacheDAO stub;
+    private long annotationCountRows = 5415;
+    private Path path;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve( "cache.snapshot" );
+        stub = new CacheDAO() {
+            @Override
+            public List<EditionDTO> getReleaseEditions( int release ) {
+                return Lists.newArrayList( new EditionDTO( 7, 100, Date.valueOf( "2015-01-01" ), release, 1 ) );
+            }
+
+            @Override
+            public List<EditionDTO> getAllEditions( int[] speciesRestrictions ) {
+                return Lists.newArrayList( new EditionDTO( 7, 100, Date.valueOf( "2015-01-01" ), 100, 1 ),
+                        new EditionDTO( 7, 101, null, 101, null ) );
+            }
+
+            @Override
+            public List<EditionDTO> getCurrentEditions( int[] speciesRestrictions ) {
+                return Lists.newArrayList( new EditionDTO( 7, 101, null, 101, 2 ) );
+            }
+
+            @Override
+            public List<AnnotationCountDTO> getGOAnnotationCounts( int speciesId, int minEdition ) {
+                return Lists.newArrayList( new AnnotationCountDTO( 101, "GO:0000001", null, 12 ) );
+            }
+
+            @Override
+            public List<AggregateDTO> getAggregates( int[] speciesRestrictions ) {
+                return Lists.newArrayList( new AggregateDTO( 7, 101, 500, 1.5, 12.25, null, 0.001, 0.5, 0.75 ) );
+            }
+
+            @Override
+            public List<SynonymDTO> getSynonyms( int[] speciesRestrictions ) {
+                return Lists.newArrayList( new SynonymDTO( 3, "Syné" ) );
+            }
+
+            @Override
+            public List<GOTermDTO> getGoTerms( int goEdition ) {
+                return Lists.newArrayList( new GOTermDTO( goEdition, "GO:0000001", "term one", "BP", false ),
+                        new GOTermDTO( goEdition, "GO:0000002", "term two", "BP", true ) );
+            }
+
+            @Override
+            public List<AdjacencyDTO> getAdjacencies( int goEdition ) {
+                return Lists.newArrayList( new AdjacencyDTO( goEdition, "GO:0000002", "GO:0000001", "IS_A" ) );
+            }
+
+            @Override
+            public List<AdjacencyDTO> getAlternates( int goEdition ) {
+                return Lists.newArrayList();
+            }
+
+            @Override
+            public List<EvidenceDTO> getEvidence() {
+                return Lists.newArrayList( new EvidenceDTO( "IEA", "Inferred", "Automatic", null ) );
+            }
+
+            @Override
+            public List<AccessionDTO> getAccessions( int[] speciesRestrictions ) {
+                return Lists.newArrayList( new AccessionDTO( 3, 7, 101, "P12345", "ABC1", "gene", null ) );
+            }
+
+            @Override
+            public List<GOEditionDTO> getAllGOEditions() {
+                return Lists.newArrayList( new GOEditionDTO( 1, Date.valueOf( "2015-01-01" ) ),
+                        new GOEditionDTO( 2, Date.valueOf( "2015-02-01" ) ) );
+            }
+
+            @Override
+            public List<GODefinitionDTO> getGODefinitions() {
+                return Lists.newArrayList( new GODefinitionDTO( "GO:0000001", "definition" ) );
+            }
+
+            @Override
+            public List<TableStampDTO> getTableStamps() {
+                return Lists.newArrayList( new TableStampDTO( "pp_go_annotation_counts", annotationCountRows, 5416,
+                        Timestamp.valueOf( "2018-01-01 12:00:00" ) ), new TableStampDTO( "synonyms", 0L, null, null ) );
+            }
+        };
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String key = CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 );
+        CacheSnapshotDAO recording = new CacheSnapshotDAO( stub, key );
+        Assert.assertTrue( recording.isRecording() );
+
+        recording.getAllEditions( RESTRICTIONS );
+        recording.getGoTerms( 2 );
+        recording.getAdjacencies( 2 );
+        recording.getAlternates( 2 );
+        recording.getGOAnnotationCounts( 7, 100 );
+        recording.getAggregates( RESTRICTIONS );
+        recording.getAccessions( RESTRICTIONS );
+        recording.getSynonyms( RESTRICTIONS );
+        recording.getEvidence();
+        recording.getTableStamps();
+        recording.write( path );
+
+        CacheSnapshotDAO replay = CacheSnapshotDAO.restore( path, key );
+        Assert.assertNotNull( replay );
+        Assert.assertFalse( replay.isRecording() );
+
+        List<EditionDTO> editions = replay.getAllEditions( RESTRICTIONS );
+        Assert.assertEquals( 2, editions.size() );
+        Assert.assertEquals( Date.valueOf( "2015-01-01" ), editions.get( 0 ).getDate() );
+        Assert.assertNull( editions.get( 1 ).getDate() );
+        Assert.assertNull( editions.get( 1 ).getGoEditionId() );
+
+        List<GOTermDTO> terms = replay.getGoTerms( 2 );
+        Assert.assertEquals( 2, terms.size() );
+        Assert.assertEquals( "GO:0000002", terms.get( 1 ).getGoId() );
+        Assert.assertTrue( terms.get( 1 ).isObsolete() );
+        Assert.assertEquals( "IS_A", replay.getAdjacencies( 2 ).get( 0 ).getType() );
+        Assert.assertTrue( replay.getAlternates( 2 ).isEmpty() );
+
+        AnnotationCountDTO count = replay.getGOAnnotationCounts( 7, 100 ).get( 0 );
+        Assert.assertNull( count.getDirectCount() );
+        Assert.assertEquals( Integer.valueOf( 12 ), count.getInferredCount() );
+
+        AggregateDTO aggregate = replay.getAggregates( RESTRICTIONS ).get( 0 );
+        Assert.assertEquals( 12.25, aggregate.getAvgInferredTermsForGene(), 0 );
+        Assert.assertNull( aggregate.getAvgInferredGenesForTerm() );
+
+        AccessionDTO accession = replay.getAccessions( RESTRICTIONS ).get( 0 );
+        Assert.assertEquals( "P12345", accession.getAccession() );
+        Assert.assertNull( accession.getSubset() );
+        Assert.assertEquals( "Syné", replay.getSynonyms( RESTRICTIONS ).get( 0 ).getSynonym() );
+        Assert.assertNull( replay.getEvidence().get( 0 ).getCurated() );
+
+        List<TableStampDTO> stamps = replay.getTableStamps();
+        Assert.assertEquals( Long.valueOf( 5415 ), stamps.get( 0 ).getRowCount() );
+        Assert.assertEquals( Timestamp.valueOf( "2018-01-01 12:00:00" ), stamps.get( 0 ).getCreated() );
+        Assert.assertNull( stamps.get( 1 ).getMaxId() );
+        Assert.assertNull( stamps.get( 1 ).getCreated() );
+
+        // Replayed results may be requested more than once
+        Assert.assertEquals( 2, replay.getGoTerms( 2 ).size() );
+    }
+
+    @Test(expected = DAOException.class)
+    public void testReplayMissingQuery() throws Exception {
+        String key = CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 );
+        new CacheSnapshotDAO( stub, key ).write( path );
+        CacheSnapshotDAO.restore( path, key ).getGoTerms( 2 );
+    }
+
+    @Test
+    public void testStaleKey() throws Exception {
+        String key = CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 );
+        new CacheSnapshotDAO( stub, key ).write( path );
+        Assert.assertNull( CacheSnapshotDAO.restore( path, CacheSnapshotDAO.key( stub, RESTRICTIONS, 101 ) ) );
+        Assert.assertNull( CacheSnapshotDAO.restore( path.resolveSibling( "missing" ), key ) );
+    }
+
+    @Test
+    public void testStaleTables() throws Exception {
+        String key = CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 );
+        new CacheSnapshotDAO( stub, key ).write( path );
+        Assert.assertNotNull( CacheSnapshotDAO.restore( path, CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 ) ) );
+
+        // Re-preprocessed without a new edition
+        annotationCountRows = 5420;
+        Assert.assertNull( CacheSnapshotDAO.restore( path, CacheSnapshotDAO.key( stub, RESTRICTIONS, 100 ) ) );
+    }
+
+}
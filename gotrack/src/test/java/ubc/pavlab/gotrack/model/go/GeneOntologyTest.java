@@ -19,6 +19,7 @@
 
 package ubc.pavlab.gotrack.model.go;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.log4j.Logger;
@@ -30,11 +31,16 @@ import ubc.pavlab.gotrack.model.FullAnnotation;
 import ubc.pavlab.gotrack.model.GOEdition;
 import ubc.pavlab.gotrack.model.dto.EvidenceDTO;
 import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
+import ubc.pavlab.gotrack.model.dto.GOTermDTO;
 
 import java.sql.Date;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 /**
@@ -376,6 +382,68 @@ public class GeneOntologyTest {
         Assert.assertThat( go0.streamAncestors(false).count(), Matchers.is( 0L ) );
     }
 
+    @Test
+    public void testPrecomputedClosure() {
+        Set<GeneOntologyTerm> lazy = GeneOntologyTerm.propagate( Sets.newHashSet( go7, go9 ).stream(), false ).collect( Collectors.toSet() );
+        go.freeze( true );
+        Assert.assertTrue( go.hasClosure() );
+        Assert.assertThat( go7.streamAncestors().collect( Collectors.toSet() ), Matchers.containsInAnyOrder( go5, go6, go4, go1, go2, go3, go0 ) );
+        Assert.assertThat( go9.streamAncestors().collect( Collectors.toSet() ), Matchers.containsInAnyOrder( go8, go4, go1, go2, go0 ) );
+        Assert.assertThat( go9.streamAncestors( false ).collect( Collectors.toSet() ), Matchers.containsInAnyOrder( go4, go1, go2, go0 ) );
+        Assert.assertThat( GeneOntologyTerm.propagate( Sets.newHashSet( go7, go9 ).stream(), false ).collect( Collectors.toSet() ), Matchers.is( lazy ) );
+        Assert.assertThat( GeneOntologyTerm.propagate( allTerms.stream() ).collect( Collectors.toSet() ), Matchers.is( allTerms ) );
+    }
+
+    @Test
+    public void testConcurrentAncestors() throws Exception {
+        // Expected values walk the parents directly so that the memoized closures are first touched concurrently
+        Map<GeneOntologyTerm, Set<GeneOntologyTerm>> expected = Maps.newHashMap();
+        for ( GeneOntologyTerm t : allTerms ) {
+            expected.put( t, ancestorsOf( t ) );
+        }
+        ExecutorService pool = Executors.newFixedThreadPool( 8 );
+        try {
+            List<Future<Boolean>> results = Lists.newArrayList();
+            for ( int i = 0; i < 64; i++ ) {
+                results.add( pool.submit( () -> allTerms.stream().allMatch(
+                        t -> t.streamAncestors().collect( Collectors.toSet() ).equals( expected.get( t ) ) ) ) );
+            }
+            for ( Future<Boolean> result : results ) {
+                Assert.assertTrue( result.get() );
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Set<GeneOntologyTerm> ancestorsOf( GeneOntologyTerm t ) {
+        Set<GeneOntologyTerm> ancestors = Sets.newHashSet();
+        for ( Relation<GeneOntologyTerm> r : t.getParents() ) {
+            ancestors.add( r.getRelation() );
+            ancestors.addAll( ancestorsOf( r.getRelation() ) );
+        }
+        return ancestors;
+    }
+
+    @Test
+    public void testPropagateUnattached() {
+        GeneOntologyTerm solitary = new GeneOntologyTerm( new GeneOntologyTerm( "GO:1234567" ) );
+        Set<GeneOntologyTerm> res = GeneOntologyTerm.propagate( Sets.newHashSet( go8, solitary ).stream() ).collect( Collectors.toSet() );
+        Assert.assertThat( res, Matchers.containsInAnyOrder( solitary, go8, go1, go0 ) );
+    }
+
+    @Test
+    public void testBulkPropagatorReusesResults() {
+        BulkPropagator propagator = new BulkPropagator();
+        Set<GeneOntologyTerm> res = propagator.propagate( goEdition, Sets.newHashSet( go9, go6 ) );
+        Assert.assertThat( res, Matchers.is( GeneOntologyTerm.propagate( Sets.newHashSet( go9, go6 ).stream() ).collect( Collectors.toSet() ) ) );
+        Assert.assertSame( res, propagator.propagate( goEdition, Sets.newHashSet( go6, go9 ) ) );
+        Assert.assertThat( propagator.propagate( goEdition, Sets.newHashSet( go8 ) ), Matchers.containsInAnyOrder( go8, go1, go0 ) );
+        Assert.assertThat( propagator.propagate( goEdition, Sets.newHashSet() ).size(), Matchers.is( 0 ) );
+        Assert.assertThat( propagator.getRequests(), Matchers.is( 4 ) );
+        Assert.assertThat( propagator.getHits(), Matchers.is( 1 ) );
+    }
+
     // getParents
 
     @SuppressWarnings("unchecked")
@@ -397,6 +465,26 @@ public class GeneOntologyTest {
                         new Relation<>( go6, RelationshipType.IS_A ) ) );
     }
 
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGetChildren() {
+        GeneOntologyTerm term = go.getTerm( go4.getGoId() );
+        Assert.assertThat( term.getChildren(),
+                Matchers.containsInAnyOrder( new Relation<>( go5, RelationshipType.IS_A ),
+                        new Relation<>( go9, RelationshipType.IS_A ) ) );
+        Assert.assertThat( go8.getChildren(),
+                Matchers.containsInAnyOrder( new Relation<>( go9, RelationshipType.PART_OF ) ) );
+        Assert.assertThat( go8.streamChildren( false ).count(), Matchers.is( 0L ) );
+    }
+
+    @Test
+    public void testGetDescendants() {
+        Assert.assertThat( go1.streamDescendants().collect( Collectors.toList() ),
+                Matchers.containsInAnyOrder( go4, go5, go7, go8, go9 ) );
+        Assert.assertThat( go8.streamDescendants( false ).count(), Matchers.is( 0L ) );
+        Assert.assertThat( go0.streamDescendants().count(), Matchers.is( ( long ) allTerms.size() - 1 ) );
+    }
+
     @Test
     public void testGetNull() {
         GeneOntologyTerm term = go.getTerm(null );
@@ -410,6 +498,20 @@ public class GeneOntologyTest {
         Assert.assertThat( term.streamParents(false ).count(), Matchers.is( 0L ) );
     }
 
+    // TermInterner
+
+    @Test
+    public void testInternerSharesTermData() {
+        TermInterner interner = new TermInterner();
+        GeneOntologyTerm t1 = interner.create( new GOTermDTO( 1, new String( "GO:0008150" ), new String( "biological_process" ), "BP", false ) );
+        GeneOntologyTerm t2 = interner.create( new GOTermDTO( 2, new String( "GO:0008150" ), new String( "biological_process" ), "BP", false ) );
+        Assert.assertThat( t1, Matchers.is( t2 ) );
+        Assert.assertSame( t1.getGoId(), t2.getGoId() );
+        Assert.assertSame( t1.getName(), t2.getName() );
+        Assert.assertThat( interner.size(), Matchers.is( 2 ) );
+        Assert.assertThat( interner.getBytesSaved(), Matchers.greaterThan( 0L ) );
+    }
+
     // getEdition
 
     @Test
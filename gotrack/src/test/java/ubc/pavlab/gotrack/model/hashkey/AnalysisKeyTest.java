@@ -0,0 +1,129 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.model.hashkey;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+import ubc.pavlab.gotrack.analysis.MultipleTestCorrection;
+import ubc.pavlab.gotrack.model.*;
+import ubc.pavlab.gotrack.model.dto.EditionDTO;
+import ubc.pavlab.gotrack.model.dto.GOEditionDTO;
+
+import java.sql.Date;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * @author mjacobson
+ */
+public class AnalysisKeyTest {
+
+    private static final Species human = new Species( 7, "Human", "", 9606, null );
+
+    private static final Edition ed1 = new Edition( new EditionDTO( 7, 1, Date.valueOf( "2016-01-01" ), 1, 1 ),
+            human, new GOEdition( new GOEditionDTO( 1, Date.valueOf( "2016-01-01" ) ) ) );
+    private static final Edition ed2 = new Edition( new EditionDTO( 7, 2, Date.valueOf( "2016-02-01" ), 2, 2 ),
+            human, new GOEdition( new GOEditionDTO( 2, Date.valueOf( "2016-02-01" ) ) ) );
+
+    private static Gene gene( int id ) {
+        return new Gene.GeneBuilder( id, "Gene" + id, "", human, null ).build();
+    }
+
+    private static AnalysisKey key( Collection<Gene> genes, Collection<Aspect> aspects, int max,
+                                    Edition reference, int topN ) {
+        return new AnalysisKey( AnalysisKey.Kind.COMBINED, human, ed2, genes, aspects, MultipleTestCorrection.BH,
+                0.05, 20, max, reference, topN );
+    }
+
+    private static AnalysisKey enrichmentKey( Collection<Gene> genes, Edition reference, int topN ) {
+        return new AnalysisKey( AnalysisKey.Kind.ENRICHMENT, human, ed2, genes, null, MultipleTestCorrection.BH,
+                0.05, 20, 200, reference, topN );
+    }
+
+    @Test
+    public void testGenesOrderAndRepeats() {
+        List<Gene> genes = Lists.newArrayList( gene( 3 ), gene( 1 ), gene( 2 ) );
+        AnalysisKey a = key( genes, null, 200, ed2, 5 );
+        AnalysisKey b = key( Lists.newArrayList( gene( 1 ), gene( 2 ), gene( 3 ), gene( 1 ) ), null, 200, ed2, 5 );
+
+        Assert.assertThat( a, Matchers.is( b ) );
+        Assert.assertThat( a.hashCode(), Matchers.is( b.hashCode() ) );
+        Assert.assertThat( a, Matchers.not( key( genes.subList( 0, 2 ), null, 200, ed2, 5 ) ) );
+    }
+
+    @Test
+    public void testAspects() {
+        List<Gene> genes = Lists.newArrayList( gene( 1 ) );
+        AnalysisKey none = key( genes, null, 200, ed2, 5 );
+
+        Assert.assertThat( key( genes, Sets.newHashSet(), 200, ed2, 5 ), Matchers.is( none ) );
+        Assert.assertThat( key( genes, Lists.newArrayList( Aspect.values() ), 200, ed2, 5 ), Matchers.is( none ) );
+        Assert.assertThat( key( genes, Lists.newArrayList( Aspect.BP, Aspect.BP ), 200, ed2, 5 ),
+                Matchers.is( key( genes, Sets.newHashSet( Aspect.BP ), 200, ed2, 5 ) ) );
+        Assert.assertThat( key( genes, Sets.newHashSet( Aspect.BP ), 200, ed2, 5 ), Matchers.not( none ) );
+    }
+
+    @Test
+    public void testUnboundedMax() {
+        List<Gene> genes = Lists.newArrayList( gene( 1 ) );
+
+        Assert.assertThat( key( genes, null, 0, ed2, 5 ), Matchers.is( key( genes, null, -1, ed2, 5 ) ) );
+        Assert.assertThat( key( genes, null, 0, ed2, 5 ), Matchers.not( key( genes, null, 200, ed2, 5 ) ) );
+    }
+
+    @Test
+    public void testSimilarityOptions() {
+        List<Gene> genes = Lists.newArrayList( gene( 1 ) );
+
+        Assert.assertThat( key( genes, null, 200, ed2, 5 ), Matchers.not( key( genes, null, 200, ed2, 10 ) ) );
+        Assert.assertThat( key( genes, null, 200, ed1, 5 ), Matchers.not( key( genes, null, 200, ed2, 5 ) ) );
+
+        // Similarity options are ignored for enrichment alone
+        Assert.assertThat( enrichmentKey( genes, null, 5 ), Matchers.is( enrichmentKey( genes, ed2, 10 ) ) );
+    }
+
+    @Test
+    public void testKind() {
+        List<Gene> genes = Lists.newArrayList( gene( 1 ) );
+
+        // An enrichment alone is never found for a combined analysis
+        Assert.assertThat( enrichmentKey( genes, ed2, 5 ), Matchers.not( key( genes, null, 200, ed2, 5 ) ) );
+        Assert.assertThat( enrichmentKey( genes, ed2, 5 ).hashCode(),
+                Matchers.not( key( genes, null, 200, ed2, 5 ).hashCode() ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCombinedRequiresReference() {
+        key( Lists.newArrayList( gene( 1 ) ), null, 200, null, 5 );
+    }
+
+    @Test
+    public void testCurrentEdition() {
+        List<Gene> genes = Lists.newArrayList( gene( 1 ) );
+
+        // Analyses run before new data was loaded are not the same
+        Assert.assertThat( new AnalysisKey( AnalysisKey.Kind.COMBINED, human, ed1, genes, null,
+                MultipleTestCorrection.BH, 0.05, 20, 200, ed2, 5 ), Matchers.not( key( genes, null, 200, ed2, 5 ) ) );
+    }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * The gotrack project
+ *
+ * Copyright (c) 2018 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package ubc.pavlab.gotrack.rest;
+
+import com.google.common.collect.Sets;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import ubc.pavlab.gotrack.model.StatusPoller;
+
+import javax.ws.rs.core.Response;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * @author mjacobson
+ */
+public class AnalysisJobQueueTest {
+
+    private AnalysisJobQueue queue;
+
+    private final CountDownLatch started = new CountDownLatch( 1 );
+    private final CountDownLatch proceed = new CountDownLatch( 1 );
+
+    @After
+    public void after() {
+        proceed.countDown();
+        if ( queue != null ) {
+            queue.shutdown();
+        }
+    }
+
+    /**
+     * Job which reports a status, waits until the test lets it proceed and then reports another.
+     */
+    private Function<StatusPoller, Response> blocking() {
+        return statusPoller -> {
+            statusPoller.newStatus( "Started", 10 );
+            started.countDown();
+            try {
+                proceed.await( 10, TimeUnit.SECONDS );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            statusPoller.newStatus( "Complete", 100 );
+            return null;
+        };
+    }
+
+    private static Function<StatusPoller, Response> quick() {
+        return statusPoller -> {
+            statusPoller.newStatus( "Complete", 100 );
+            return Response.ok().build();
+        };
+    }
+
+    private static void awaitFinished( AnalysisJobQueue.Job job ) throws InterruptedException {
+        for ( int i = 0; i < 500 && !job.isFinished(); i++ ) {
+            Thread.sleep( 10 );
+        }
+        Assert.assertThat( job.isFinished(), Matchers.is( true ) );
+    }
+
+    private static void awaitIdle( AnalysisJobQueue queue ) throws InterruptedException {
+        for ( int i = 0; i < 500 && ( queue.getRunning() > 0 || queue.getQueued() > 0 ); i++ ) {
+            Thread.sleep( 10 );
+        }
+        Assert.assertThat( queue.getRunning(), Matchers.is( 0 ) );
+    }
+
+    @Test
+    public void testComplete() throws InterruptedException {
+        queue = new AnalysisJobQueue( 1, 1, 1, 60 );
+        AnalysisJobQueue.Job job = queue.submit( "a", quick() );
+        awaitFinished( job );
+
+        Assert.assertThat( job.getState(), Matchers.is( AnalysisJobQueue.State.COMPLETE ) );
+        Assert.assertThat( job.getResult().getStatus(), Matchers.is( 200 ) );
+        Assert.assertThat( queue.get( job.getId() ), Matchers.sameInstance( job ) );
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void testQueueFull() throws InterruptedException {
+        queue = new AnalysisJobQueue( 1, 1, 10, 60 );
+        queue.submit( "a", blocking() );
+        Assert.assertThat( started.await( 5, TimeUnit.SECONDS ), Matchers.is( true ) );
+        queue.submit( "b", quick() );
+
+        queue.submit( "c", quick() );
+    }
+
+    @Test
+    public void testTooManyJobsPerClient() throws InterruptedException {
+        queue = new AnalysisJobQueue( 1, 10, 2, 60 );
+        queue.submit( "a", blocking() );
+        queue.submit( "a", quick() );
+
+        try {
+            queue.submit( "a", quick() );
+            Assert.fail( "Expected TooManyJobsException" );
+        } catch ( AnalysisJobQueue.TooManyJobsException e ) {
+            // Expected
+        }
+
+        // Other clients are not limited by this one
+        queue.submit( "b", quick() );
+
+        // Finished jobs no longer count
+        proceed.countDown();
+        awaitIdle( queue );
+        awaitFinished( queue.submit( "a", quick() ) );
+    }
+
+    @Test
+    public void testCancelQueued() throws InterruptedException {
+        queue = new AnalysisJobQueue( 1, 10, 2, 60 );
+        AnalysisJobQueue.Job running = queue.submit( "a", blocking() );
+        Assert.assertThat( started.await( 5, TimeUnit.SECONDS ), Matchers.is( true ) );
+        AnalysisJobQueue.Job queued = queue.submit( "a", quick() );
+
+        Assert.assertThat( queue.cancel( queued.getId() ), Matchers.sameInstance( queued ) );
+        Assert.assertThat( queued.getState(), Matchers.is( AnalysisJobQueue.State.CANCELLED ) );
+        Assert.assertThat( queue.getQueued(), Matchers.is( 0 ) );
+
+        // A job which never started gives its slot back at once
+        queue.submit( "a", quick() );
+
+        proceed.countDown();
+        awaitFinished( running );
+        Assert.assertThat( running.getState(), Matchers.is( AnalysisJobQueue.State.COMPLETE ) );
+        Assert.assertThat( queued.getStatusPoller().getStatuses(), Matchers.empty() );
+    }
+
+    @Test
+    public void testCancelRunning() throws InterruptedException {
+        queue = new AnalysisJobQueue( 2, 10, 1, 60 );
+        AnalysisJobQueue.Job running = queue.submit( "a", blocking() );
+        Assert.assertThat( started.await( 5, TimeUnit.SECONDS ), Matchers.is( true ) );
+
+        queue.cancel( running.getId() );
+        Assert.assertThat( running.getState(), Matchers.is( AnalysisJobQueue.State.CANCELLED ) );
+
+        // The cancelled job still occupies a thread until its next status, so it still counts for its client
+        try {
+            queue.submit( "a", quick() );
+            Assert.fail( "Expected TooManyJobsException" );
+        } catch ( AnalysisJobQueue.TooManyJobsException e ) {
+            // Expected
+        }
+
+        // Stops at its next status
+        proceed.countDown();
+        awaitIdle( queue );
+        Assert.assertThat( running.getState(), Matchers.is( AnalysisJobQueue.State.CANCELLED ) );
+        Assert.assertThat( running.getStatusPoller().getStatuses(), Matchers.contains( "Started" ) );
+
+        awaitFinished( queue.submit( "a", quick() ) );
+    }
+
+    @Test
+    public void testClientsBehindProxy() throws InterruptedException {
+        Set<String> proxies = Sets.newHashSet( "10.0.0.1", "10.0.0.2" );
+        String a = AnalysisJobQueue.client( "10.0.0.1", "192.0.2.1", proxies );
+        String b = AnalysisJobQueue.client( "10.0.0.1", "192.0.2.2", proxies );
+
+        Assert.assertThat( a, Matchers.is( "192.0.2.1" ) );
+        Assert.assertThat( b, Matchers.is( "192.0.2.2" ) );
+
+        // Chained proxies, the client may prepend anything it likes
+        Assert.assertThat( AnalysisJobQueue.client( "10.0.0.1", "spoofed, 192.0.2.1, 10.0.0.2", proxies ),
+                Matchers.is( "192.0.2.1" ) );
+
+        // Header is ignored from untrusted peers or when absent
+        Assert.assertThat( AnalysisJobQueue.client( "192.0.2.3", "192.0.2.1", proxies ), Matchers.is( "192.0.2.3" ) );
+        Assert.assertThat( AnalysisJobQueue.client( "10.0.0.1", null, proxies ), Matchers.is( "10.0.0.1" ) );
+
+        // Clients behind the same proxy each have their own limit
+        queue = new AnalysisJobQueue( 1, 10, 1, 60 );
+        queue.submit( a, blocking() );
+        queue.submit( b, quick() );
+        try {
+            queue.submit( a, quick() );
+            Assert.fail( "Expected TooManyJobsException" );
+        } catch ( AnalysisJobQueue.TooManyJobsException e ) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testUnknownJob() {
+        queue = new AnalysisJobQueue( 1, 1, 1, 60 );
+        Assert.assertThat( queue.get( "unknown" ), Matchers.nullValue() );
+        Assert.assertThat( queue.cancel( "unknown" ), Matchers.nullValue() );
+    }
+
+}
@@ -19,7 +19,9 @@
 
 package ubc.pavlab.gotrack.utilities;
 
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 import org.hamcrest.Matchers;
@@ -405,4 +407,91 @@ public class JaccardTest {
         int res = Jaccard.unionSize( integerSetEmpty, integerSetEmpty );
         Assert.assertThat( res, Matchers.is( 0 ) );
     }
+
+    // Ordinals
+
+    private static long[] bitSet( int... ordinals ) {
+        long[] bits = new long[2];
+        for ( int ordinal : ordinals ) {
+            bits[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return bits;
+    }
+
+    @Test
+    public void testSimilarityIntArray() {
+        Double res = Jaccard.similarity( new int[] { 1, 2, 4, 6, 7, 8, 9 }, new int[] { 1, 2, 4, 6 } );
+        Assert.assertThat( res, Matchers.closeTo( 0.57143, 0.00001 ) );
+    }
+
+    @Test
+    public void testSimilarityIntArrayEmpty() {
+        Double res = Jaccard.similarity( new int[] { 1, 2, 4, 6 }, new int[0] );
+        Assert.assertThat( res, Matchers.is( 0.0 ) );
+    }
+
+    @Test
+    public void testSimilarityIntArrayEmptyToEmpty() {
+        Double res = Jaccard.similarity( new int[0], new int[0] );
+        Assert.assertThat( res, Matchers.is( 1.0 ) );
+    }
+
+    @Test
+    public void testSimilarityBitSet() {
+        Double res = Jaccard.similarity( bitSet( 1, 2, 4, 6, 70, 80, 90 ), bitSet( 1, 2, 4, 6 ) );
+        Assert.assertThat( res, Matchers.closeTo( 0.57143, 0.00001 ) );
+    }
+
+    @Test
+    public void testSimilarityBitSetEmptyToEmpty() {
+        Double res = Jaccard.similarity( bitSet(), new long[0] );
+        Assert.assertThat( res, Matchers.is( 1.0 ) );
+    }
+
+    @Test
+    public void testSimilarityIntArrayBitSet() {
+        Double res = Jaccard.similarity( new int[] { 1, 2, 4, 6 }, bitSet( 1, 2, 4, 6, 70, 80, 90 ) );
+        Assert.assertThat( res, Matchers.closeTo( 0.57143, 0.00001 ) );
+    }
+
+    @Test
+    public void testIntersectSizeIntArrayGalloping() {
+        int[] large = new int[1000];
+        for ( int i = 0; i < large.length; i++ ) {
+            large[i] = 2 * i;
+        }
+        int[] small = { 0, 3, 500, 999, 1998, 2000 };
+        Assert.assertThat( Jaccard.intersectSize( small, large ), Matchers.is( 3 ) );
+        Assert.assertThat( Jaccard.intersectSize( large, small ), Matchers.is( 3 ) );
+    }
+
+    @Test
+    public void testIntersectSizeOrdinalsMatchSets() {
+        Random random = new Random( 1 );
+        for ( int trial = 0; trial < 100; trial++ ) {
+            TreeSet<Integer> a = new TreeSet<>();
+            TreeSet<Integer> b = new TreeSet<>();
+            int sizeA = random.nextInt( 10 ) + 1;
+            int sizeB = random.nextInt( 500 ) + 1;
+            while ( a.size() < sizeA ) a.add( random.nextInt( 1000 ) );
+            while ( b.size() < sizeB ) b.add( random.nextInt( 1000 ) );
+
+            int[] sortedA = a.stream().mapToInt( Integer::intValue ).toArray();
+            int[] sortedB = b.stream().mapToInt( Integer::intValue ).toArray();
+            long[] bitsB = new long[16];
+            for ( int ordinal : sortedB ) {
+                bitsB[ordinal >>> 6] |= 1L << ordinal;
+            }
+
+            int expected = Jaccard.intersectSize( a, b );
+            Assert.assertThat( Jaccard.intersectSize( sortedA, sortedB ), Matchers.is( expected ) );
+            Assert.assertThat( Jaccard.intersectSize( sortedA, bitsB ), Matchers.is( expected ) );
+        }
+    }
+
+    @Test
+    public void testPreferBitSet() {
+        Assert.assertThat( Jaccard.preferBitSet( 10, 10000 ), Matchers.is( false ) );
+        Assert.assertThat( Jaccard.preferBitSet( 1000, 10000 ), Matchers.is( true ) );
+    }
 }